@@ -0,0 +1,144 @@
+// Author: Ivan Ramos, <ivan-1081@hotmail.es>
+// Open Source Software; you can modify and/or share it
+package Benchmarks;
+
+import Hardware.VelodyneLidarHDL.LidarGeometry;
+import Hardware.VelodyneLidarHDL.PacketDecoder;
+import Simulation.PacketGenerator;
+import Simulation.Scene;
+import TerrainAnalysis.Obstacle;
+import TerrainAnalysis.ObstacleFinder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+/**
+ * AnalysisBenchmark measures ObstacleFinder over frames decoded the same way VelodyneLidar decodes them
+ * (anomaly threshold set to the finder's tolerance). Frames decoded without an anomaly threshold are used to compare
+ * full-resolution and multi-resolution (coarse to fine) searches.
+ *
+ * <p>Packets come from a PacketGenerator looking at a single boulder straight ahead. Setup checks that the polar search
+ * finds that boulder where the Scene placed it, so a decoder or geometry change that breaks the pipeline fails the run
+ * instead of benchmarking frames with nothing in them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AnalysisBenchmark {
+
+    private static final double BOULDER_X = 0.0;          /**<Boulder's center X coordinate in meters */
+    private static final double BOULDER_Y = 0.6;          /**<Boulder's center Y coordinate in meters */
+    private static final double BOULDER_RADIUS = 0.1;     /**<Boulder's radius in meters */
+    private static final double BOULDER_HEIGHT = 0.15;    /**<Boulder's height in meters */
+    private static final double GROUND_TRUTH_TOLERANCE = 0.1; /**<Largest error in meters accepted on the boulder's bounds */
+
+    @Param({"350", "2000", "5000"})
+    public int numberOfAzimuths;
+
+    private PacketDecoder.HDLFrame _polarFrame;
+    private PacketDecoder.HDLFrame _pointCloudFrame;
+    private PacketDecoder.HDLFrame _unflaggedPolarFrame;
+    private ObstacleFinder _finder;
+    private ObstacleFinder _multiResolutionFinder;
+
+    @Setup
+    public void setup(){
+        LidarGeometry geometry = LidarGeometry.DEFAULT;
+        PacketDecoder polarDecoder = new PacketDecoder(false, geometry);
+        new PacketGenerator(new Scene(), geometry, 600).calibrate(polarDecoder);
+        polarDecoder.SetAnomalyThreshold(0.07, 0.00);
+        _polarFrame = _decode(polarDecoder, _packets(geometry));
+        PacketDecoder pointCloudDecoder = new PacketDecoder(true, geometry);
+        pointCloudDecoder.SetAnomalyThreshold(0.07, 0.00);
+        _pointCloudFrame = _decode(pointCloudDecoder, _packets(geometry));
+        PacketDecoder unflaggedDecoder = new PacketDecoder(false, geometry);
+        new PacketGenerator(new Scene(), geometry, 600).calibrate(unflaggedDecoder);
+        _unflaggedPolarFrame = _decode(unflaggedDecoder, _packets(geometry));
+        _finder = new ObstacleFinder(0.07, 0.00, 20);
+        _multiResolutionFinder = new ObstacleFinder(0.07, 0.00, 20);
+        _multiResolutionFinder.setMultiResolution(true);
+        _checkGroundTruth();
+    }
+    /**
+     * Packets for a frame centered straight ahead, where the boulder is.
+     */
+    private ArrayList<byte[]> _packets(LidarGeometry geometry){
+        Scene scene = new Scene().addBoulder(BOULDER_X, BOULDER_Y, BOULDER_RADIUS, BOULDER_HEIGHT);
+        PacketGenerator generator = new PacketGenerator(scene, geometry, 600);
+        //Frame azimuths decrease as raw azimuths grow, so start half a frame before the raw azimuth facing forward
+        generator.setAzimuth(geometry.getRotationAngle() - numberOfAzimuths * 5);
+        return generator.framePackets(numberOfAzimuths);
+    }
+
+    private PacketDecoder.HDLFrame _decode(PacketDecoder decoder, ArrayList<byte[]> packets){
+        int[] length = {PacketGenerator.PACKET_SIZE};
+        for(byte[] data : packets){
+            decoder.DecodePacket(data, length);
+        }
+        return decoder.GetLatestFrame(numberOfAzimuths);
+    }
+    /**
+     * Make sure the polar search recovers the Scene's boulder: a single obstacle spanning the boulder's width, with its
+     * closest point on the boulder's near side.
+     */
+    private void _checkGroundTruth(){
+        _finder.findObstaclesPolar(_polarFrame);
+        if(_finder.getNumberOfObticles() != 1){
+            throw new IllegalStateException("AnalysisBenchmark: Expected the boulder only, found "
+                    + _finder.getNumberOfObticles() + " obstacles");
+        }
+        Obstacle boulder = _finder.getLatestObstacleFound();
+        double left = boulder.getLeftMostPoint()[0];
+        double right = boulder.getRightMostPoint()[0];
+        double closest = boulder.getClosestPoint()[1];
+        if(java.lang.Math.abs(left - (BOULDER_X - BOULDER_RADIUS)) > GROUND_TRUTH_TOLERANCE
+                || java.lang.Math.abs(right - (BOULDER_X + BOULDER_RADIUS)) > GROUND_TRUTH_TOLERANCE
+                || java.lang.Math.abs(closest - (BOULDER_Y - BOULDER_RADIUS)) > GROUND_TRUTH_TOLERANCE){
+            throw new IllegalStateException("AnalysisBenchmark: Boulder found at X " + left + " to " + right
+                    + ", closest Y " + closest + ", placed at X " + (BOULDER_X - BOULDER_RADIUS) + " to "
+                    + (BOULDER_X + BOULDER_RADIUS) + ", closest Y " + (BOULDER_Y - BOULDER_RADIUS));
+        }
+    }
+
+    @Benchmark
+    public int findObstaclesPolar(){
+        _finder.clearObsticlesSeen();
+        _finder.findObstaclesPolar(_polarFrame);
+        return _finder.getNumberOfObticles();
+    }
+
+    @Benchmark
+    public int findObstaclesCartician(){
+        _finder.clearObsticlesSeen();
+        _finder.findObstaclesCartician(_pointCloudFrame);
+        return _finder.getNumberOfObticles();
+    }
+
+    @Benchmark
+    public int findObstaclesPolarFullResolution(){
+        _finder.clearObsticlesSeen();
+        _finder.findObstaclesPolar(_unflaggedPolarFrame);
+        return _finder.getNumberOfObticles();
+    }
+
+    @Benchmark
+    public int findObstaclesPolarMultiResolution(){
+        _multiResolutionFinder.clearObsticlesSeen();
+        _multiResolutionFinder.findObstaclesPolar(_unflaggedPolarFrame);
+        return _multiResolutionFinder.getNumberOfObticles();
+    }
+}
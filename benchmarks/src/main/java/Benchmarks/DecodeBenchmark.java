@@ -0,0 +1,93 @@
+// Author: Ivan Ramos, <ivan-1081@hotmail.es>
+// Open Source Software; you can modify and/or share it
+package Benchmarks;
+
+import Hardware.VelodyneLidarHDL.LidarGeometry;
+import Hardware.VelodyneLidarHDL.PacketDecoder;
+import Simulation.PacketGenerator;
+import Simulation.Scene;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+/**
+ * DecodeBenchmark measures PacketDecoder.DecodePacket() from raw packets to a full HDLFrame, for both polar and
+ * point-cloud decoders configured the same way VelodyneLidar configures them. Packets come from a PacketGenerator
+ * looking at a boulder on flat ground.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DecodeBenchmark {
+
+    private static final int STREAM_PACKETS = 3016;  /**<Consecutive packets cycled through by decodePacket() (4 rotations at 600 RPM) */
+
+    @Param({"350", "2000", "5000"})
+    public int numberOfAzimuths;
+
+    @Param({"false", "true"})
+    public boolean generatePointCloud;
+
+    private PacketDecoder _decoder;
+    private ArrayList<byte[]> _packets;
+    private byte[][] _stream;
+    private int _next = 0;
+    private final int[] _length = {PacketGenerator.PACKET_SIZE};
+
+    @Setup
+    public void setup(){
+        LidarGeometry geometry = LidarGeometry.DEFAULT;
+        _decoder = new PacketDecoder(generatePointCloud, geometry);
+        new PacketGenerator(new Scene(), geometry, 600).calibrate(_decoder);
+        _decoder.SetAnomalyThreshold(0.07, 0.00);
+        Scene scene = new Scene().addBoulder(0.0, 0.6, 0.1, 0.15);
+        _packets = new PacketGenerator(scene, geometry, 600).framePackets(numberOfAzimuths);
+        PacketGenerator generator = new PacketGenerator(scene, geometry, 600);
+        _stream = new byte[STREAM_PACKETS][PacketGenerator.PACKET_SIZE];
+        for(byte[] data : _stream){
+            generator.fillPacket(data);
+        }
+    }
+    /**
+     * Decode every packet of a frame and pull the frame out of the decoder.
+     */
+    @Benchmark
+    public PacketDecoder.HDLFrame decodeFrame(){
+        //Packets start over every frame, which would otherwise look like a gap of lost packets
+        _decoder.GetContinuity().reset();
+        for(byte[] data : _packets){
+            _decoder.DecodePacket(data, _length);
+        }
+        return _decoder.GetLatestFrame(numberOfAzimuths);
+    }
+    /**
+     * Decode the next packet of a continuous stream, handing frames out as VelodyneLidar does so the frame being built
+     * never grows past numberOfAzimuths.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public PacketDecoder.HDLFrame decodePacket(){
+        if(_next == STREAM_PACKETS){
+            //Stream starts over, which would otherwise look like a gap of lost packets
+            _next = 0;
+            _decoder.GetContinuity().reset();
+        }
+        _decoder.DecodePacket(_stream[_next++], _length);
+        return _decoder.GetLatestFrame(numberOfAzimuths);
+    }
+}
@@ -0,0 +1,109 @@
+// Author: Ivan Ramos, <ivan-1081@hotmail.es>
+// Open Source Software; you can modify and/or share it
+package Benchmarks;
+
+import Hardware.VelodyneLidarHDL.LidarGeometry;
+import Hardware.VelodyneLidarHDL.PacketDecoder;
+import Simulation.PacketGenerator;
+import Simulation.Scene;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+/**
+ * FrameBenchmark measures how frames are filled (addPoint()/addDistance()) and read back for analysis
+ * (getSortedDistances()/getSortedPointCloud()).
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FrameBenchmark {
+
+    @Param({"350", "2000", "5000"})
+    public int numberOfAzimuths;
+
+    private PacketDecoder _polarDecoder;
+    private PacketDecoder _pointCloudDecoder;
+    private PacketDecoder.HDLFrame _polarFrame;
+    private PacketDecoder.HDLFrame _pointCloudFrame;
+    private final double[] _point = {0.5, 1.5, 0.01};
+
+    @Setup
+    public void setup(){
+        LidarGeometry geometry = LidarGeometry.DEFAULT;
+        _polarDecoder = new PacketDecoder(false, geometry);
+        new PacketGenerator(new Scene(), geometry, 600).calibrate(_polarDecoder);
+        _polarFrame = _decode(_polarDecoder, _packets(geometry));
+        _pointCloudDecoder = new PacketDecoder(true, geometry);
+        _pointCloudFrame = _decode(_pointCloudDecoder, _packets(geometry));
+    }
+
+    private ArrayList<byte[]> _packets(LidarGeometry geometry){
+        Scene scene = new Scene().addBoulder(0.0, 0.6, 0.1, 0.15);
+        return new PacketGenerator(scene, geometry, 600).framePackets(numberOfAzimuths);
+    }
+
+    private PacketDecoder.HDLFrame _decode(PacketDecoder decoder, ArrayList<byte[]> packets){
+        int[] length = {PacketGenerator.PACKET_SIZE};
+        for(byte[] data : packets){
+            decoder.DecodePacket(data, length);
+        }
+        return decoder.GetLatestFrame(numberOfAzimuths);
+    }
+    /**
+     * Fill a new frame with one distance per laser and azimuth.
+     */
+    @Benchmark
+    public PacketDecoder.HDLFrame addDistance(){
+        PacketDecoder.HDLFrame frame = _polarDecoder.new HDLFrame();
+        for(int azimuth = 0; azimuth < numberOfAzimuths; azimuth++){
+            for(int laserID = 0; laserID < 16; laserID++){
+                frame.addDistance(2.0, laserID, azimuth);
+            }
+        }
+        return frame;
+    }
+    /**
+     * Fill a new frame with one point per laser and azimuth.
+     */
+    @Benchmark
+    public PacketDecoder.HDLFrame addPoint(){
+        PacketDecoder.HDLFrame frame = _pointCloudDecoder.new HDLFrame();
+        for(int azimuth = 0; azimuth < numberOfAzimuths; azimuth++){
+            for(int laserID = 0; laserID < 16; laserID++){
+                frame.addPoint(_point, laserID, azimuth);
+            }
+        }
+        return frame;
+    }
+
+    @Benchmark
+    public double[][][] getSortedDistances(){
+        int n = _polarFrame.getNumberOfAzimuthsInFrame();
+        double[][][] distances = new double[16][n][3];
+        _polarFrame.getSortedDistances(distances, n);
+        return distances;
+    }
+
+    @Benchmark
+    public double[][][] getSortedPointCloud(){
+        int n = _pointCloudFrame.getNumberOfAzimuthsInFrame();
+        double[][][] pointCloud = new double[16][n][3];
+        _pointCloudFrame.getSortedPointCloud(pointCloud, n);
+        return pointCloud;
+    }
+}
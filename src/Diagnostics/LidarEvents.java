@@ -0,0 +1,145 @@
+// Author: Ivan Ramos, <ivan-1081@hotmail.es>
+// Open Source Software; you can modify and/or share it
+package Diagnostics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+/**
+ * LidarEvents class groups the Java Flight Recorder events emitted by the lidar pipeline, so lidar work can be lined up
+ * with GC pauses and thread stalls in the same recording. Events cost nothing but a flag check while no recording is
+ * running, and stack traces are turned off so they stay cheap enough to leave on during competitions.
+ *
+ * <p>Ex: java -XX:StartFlightRecording=filename=rover.jfr,settings=profile ...
+ * <p>Then open rover.jfr with JDK Mission Control, or print the lidar events with:
+ *  jfr print --categories "Velodyne Lidar" rover.jfr
+ */
+public final class LidarEvents {
+
+    private LidarEvents(){
+
+    }
+    /**
+     * A batch of packets read from the socket. Emitted once every PacketDriver.EVENT_BATCH_SIZE packets instead of once
+     * per packet; the event spans from the first to the last packet of the batch.
+     */
+    @Name("VelodyneLidar.PacketBatchReceived")
+    @Label("Packet Batch Received")
+    @Category({"Velodyne Lidar", "Receive"})
+    @StackTrace(false)
+    public static class PacketBatchReceived extends Event{
+        @Label("Port")
+        public int port;
+        @Label("Packets")
+        public int packets;
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+        @Label("Receive Errors")
+        public int errors;
+    }
+    /**
+     * A single packet decoded into the current frame.
+     */
+    @Name("VelodyneLidar.PacketDecoded")
+    @Label("Packet Decoded")
+    @Category({"Velodyne Lidar", "Decode"})
+    @StackTrace(false)
+    public static class PacketDecoded extends Event{
+        @Label("Blocks In View")
+        @Description("Blocks of the packet inside the field of view")
+        public int blocksInView;
+        @Label("Blocks Missing")
+        @Description("Blocks lost right before the packet, inside the field of view")
+        public int blocksMissing;
+        @Label("Sensor Timestamp")
+        @Description("Microseconds past the hour")
+        public long sensorTimestamp;
+    }
+    /**
+     * A frame handed out by the decoder.
+     */
+    @Name("VelodyneLidar.FrameCompleted")
+    @Label("Frame Completed")
+    @Category({"Velodyne Lidar", "Decode"})
+    @StackTrace(false)
+    public static class FrameCompleted extends Event{
+        @Label("Azimuths")
+        public int azimuths;
+        @Label("Packets")
+        public int packets;
+        @Label("Packets Missing")
+        public int packetsMissing;
+        @Label("Completeness")
+        @Description("Fraction of the blocks inside the field of view that made it to the frame")
+        public double completeness;
+        @Label("Assembly Time")
+        @Description("Time between the first and last packet of the frame arriving")
+        @Timespan(Timespan.NANOSECONDS)
+        public long assemblyTime;
+    }
+    /**
+     * A calibration file fed to the decoder.
+     */
+    @Name("VelodyneLidar.CalibrationLoaded")
+    @Label("Calibration Loaded")
+    @Category({"Velodyne Lidar", "Calibration"})
+    public static class CalibrationLoaded extends Event{
+        @Label("File")
+        public String file;
+        @Label("Packets")
+        public int packets;
+        @Label("Success")
+        public boolean success;
+    }
+    /**
+     * A search for obstacles over a single frame.
+     */
+    @Name("VelodyneLidar.ObstacleSearch")
+    @Label("Obstacle Search")
+    @Category({"Velodyne Lidar", "Analysis"})
+    @StackTrace(false)
+    public static class ObstacleSearch extends Event{
+        @Label("Mode")
+        @Description("polar, cartician or sparse, followed by multires when walked coarse to fine")
+        public String mode;
+        @Label("Azimuths")
+        public int azimuths;
+        @Label("Seeds")
+        @Description("Returns that triggered a BFS")
+        public int seeds;
+        @Label("Suppressed Seeds")
+        @Description("Returns kept from triggering a BFS by the persistence filter")
+        public int suppressedSeeds;
+        @Label("Visited Cells")
+        @Description("Cells taken off the BFS queues")
+        public int visitedCells;
+        @Label("Obstacles")
+        public int obstacles;
+        @Label("Complete")
+        @Description("False if a time budget ran out before every seed was searched")
+        public boolean complete;
+    }
+    /**
+     * A list of obstacles handed to the client.
+     */
+    @Name("VelodyneLidar.ResultPublished")
+    @Label("Result Published")
+    @Category({"Velodyne Lidar", "Publish"})
+    @StackTrace(false)
+    public static class ResultPublished extends Event{
+        @Label("Port")
+        public int port;
+        @Label("Obstacles")
+        public int obstacles;
+        @Label("Data Age")
+        @Description("Time since the first packet behind the result arrived")
+        @Timespan(Timespan.NANOSECONDS)
+        public long age;
+    }
+}
@@ -0,0 +1,109 @@
+// Author: Ivan Ramos, <ivan-1081@hotmail.es>
+// Open Source Software; you can modify and/or share it
+package Diagnostics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+/**
+ * LogLinearHistogram class used to record latencies (or any other positive value) in a fixed amount of memory. Values
+ * are placed in buckets that double in width every power of two, and each power of two is split into 32 linear
+ * sub-buckets (same idea as HdrHistogram). Every value is kept within ~3% of its real value, from 0 up to 2^40
+ * (~18 minutes when recording nanoseconds). Larger values are clamped to the last bucket.
+ *
+ * <p>record() function only increments a couple of atomic counters, so it can be called from any thread on the hot path.
+ * <p>getPercentile() function is used to read back p50/p99/... at any time.
+ */
+public class LogLinearHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;                       /**<32 sub-buckets per power of two */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_BIT = 40;                              /**<Largest power of two tracked */
+    private static final int NUMBER_OF_BUCKETS = SUB_BUCKETS * (MAX_BIT - SUB_BUCKET_BITS + 2);
+    private static final long MAX_VALUE = (1L << (MAX_BIT + 1)) - 1;
+
+    private final AtomicLongArray _counts = new AtomicLongArray(NUMBER_OF_BUCKETS);
+    private final AtomicLong _totalCount = new AtomicLong(0);
+    private final AtomicLong _sum = new AtomicLong(0);
+    private final AtomicLong _max = new AtomicLong(0);
+    /**
+     * Record a single value. Negative values are recorded as 0.
+     *
+     * @param value Value to record (usually nanoseconds)
+     */
+    public void record(long value){
+        value = (value < 0)? 0 : ((value > MAX_VALUE)? MAX_VALUE : value);
+        _counts.getAndIncrement(_bucketIndex(value));
+        _totalCount.getAndIncrement();
+        _sum.getAndAdd(value);
+        long max;
+        while(value > (max = _max.get()) && !_max.compareAndSet(max, value)){
+        }
+    }
+    /**
+     * Get the value below which a percentage of all recorded values fall.
+     *
+     * @param percentile Percentile (0 - 100)
+     * @return Value at percentile, 0 if nothing has been recorded
+     */
+    public long getPercentile(double percentile){
+        long total = _totalCount.get();
+        if(total == 0){
+            return 0;
+        }
+        long target = (long) java.lang.Math.ceil(total * java.lang.Math.min(100.0, java.lang.Math.max(0.0, percentile)) / 100.0);
+        target = java.lang.Math.max(1, target);
+        long seen = 0;
+        for(int index = 0; index < NUMBER_OF_BUCKETS; index++){
+            seen += _counts.get(index);
+            if(seen >= target){
+                return java.lang.Math.min(_bucketValue(index), _max.get());
+            }
+        }
+        return _max.get();
+    }
+
+    public long getCount(){
+        return _totalCount.get();
+    }
+
+    public long getMax(){
+        return _max.get();
+    }
+
+    public double getMean(){
+        long total = _totalCount.get();
+        return (total == 0)? 0.0 : (double) _sum.get() / total;
+    }
+    /**
+     * Clear all recorded values. Values recorded while resetting may be partially lost.
+     */
+    public void reset(){
+        for(int index = 0; index < NUMBER_OF_BUCKETS; index++){
+            _counts.set(index, 0);
+        }
+        _totalCount.set(0);
+        _sum.set(0);
+        _max.set(0);
+    }
+    /**
+     * Get the bucket a value falls in.
+     */
+    private static int _bucketIndex(long value){
+        if(value < SUB_BUCKETS){
+            return (int) value;
+        }
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+    /**
+     * Get the largest value that falls in a bucket.
+     */
+    private static long _bucketValue(int index){
+        if(index < SUB_BUCKETS){
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        long top = SUB_BUCKETS + (index - SUB_BUCKETS) % SUB_BUCKETS;
+        return ((top + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,337 @@
+// Author: Ivan Ramos, <ivan-1081@hotmail.es>
+// Open Source Software; you can modify and/or share it
+package Diagnostics;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+/**
+ * PipelineMetrics class used to keep track of where time goes between a packet arriving and obstacles being handed to
+ * the client. Each stage of the pipeline records its latency into a LogLinearHistogram, and counters keep track of
+ * packets, frames and what each frame contained. Every VelodyneLidar owns one.
+ * <p>Data age is tracked apart from the stages: how old the oldest packet behind a list of obstacles is when the list
+ * gets published, and when the client consumes it (see TerrainAnalysis.ObstacleList).
+ *
+ * <p>record() and count() functions only touch atomic counters, so they cost nanoseconds on the hot path.
+ * <p>snapshot() function returns percentiles and rates (since the previous snapshot) through a Java API.
+ * <p>startPeriodicLog() function prints snapshot() as a single compact line every period.
+ */
+public class PipelineMetrics {
+    /**
+     * Stages of the pipeline, in the order a packet goes through them.
+     */
+    public static enum Stage{
+        RECEIVE,        /**<Waiting for and reading a single packet. Receives that time out are only counted */
+        DECODE,         /**<Decoding a single packet into the frame */
+        FRAME_ASSEMBLY, /**<From the first packet of a frame until the frame is complete */
+        SORT,           /**<Sorting a frame before searching it */
+        ANALYSIS,       /**<Looking for obstacles in a frame (sort included) */
+        PUBLISH;        /**<Handing obstacles to the client */
+    }
+
+    private final LogLinearHistogram[] _latencies = new LogLinearHistogram[Stage.values().length];
+    private final LongAdder _packets = new LongAdder();
+    private final LongAdder _frames = new LongAdder();
+    private final LongAdder _packetsMissing = new LongAdder();
+    private final LongAdder _skippedFrames = new LongAdder();
+    private final LongAdder _receiveTimeouts = new LongAdder();  /**<Receives that timed out without a packet */
+    private final LongAdder _sceneCacheHits = new LongAdder();   /**<Frames answered with a cached result */
+    private final LongAdder _sceneCacheMisses = new LongAdder(); /**<Frames searched while a SceneCache was set */
+    private final LogLinearHistogram _azimuthsPerFrame = new LogLinearHistogram();
+    private final LogLinearHistogram _anomaliesPerFrame = new LogLinearHistogram();
+    private final LogLinearHistogram _obstaclesPerFrame = new LogLinearHistogram();
+    private final LogLinearHistogram _publishAge = new LogLinearHistogram();   /**<First packet arrival to obstacles published */
+    private final LogLinearHistogram _consumerAge = new LogLinearHistogram();  /**<First packet arrival to obstacles consumed */
+    private long _lastSnapshotNanos = System.nanoTime();  /**<Time of the previous snapshot, used for rates */
+    private long _lastPackets = 0;
+    private long _lastFrames = 0;
+    private ScheduledExecutorService _logger;
+    /**
+     * PipelineMetrics constructor.
+     */
+    public PipelineMetrics(){
+        for(int i = 0; i < _latencies.length; i++){
+            _latencies[i] = new LogLinearHistogram();
+        }
+    }
+    /**
+     * Record how long a stage took.
+     *
+     * @param stage Stage of the pipeline
+     * @param nanos Time taken in nanoseconds
+     */
+    public void record(Stage stage, long nanos){
+        _latencies[stage.ordinal()].record(nanos);
+    }
+
+    public void countPacket(){
+        _packets.increment();
+    }
+    /**
+     * Count a receive that timed out without a packet. Its wait is not recorded as RECEIVE latency.
+     */
+    public void countReceiveTimeout(){
+        _receiveTimeouts.increment();
+    }
+    /**
+     * Count a complete frame.
+     *
+     * @param azimuths Number of azimuths in the frame
+     * @param anomalies Number of anomalous returns flagged in the frame
+     */
+    public void countFrame(int azimuths, int anomalies){
+        _frames.increment();
+        _azimuthsPerFrame.record(azimuths);
+        _anomaliesPerFrame.record(anomalies);
+    }
+    /**
+     * Count packets lost before reaching the decoder.
+     *
+     * @param packets Number of packets lost
+     */
+    public void countMissingPackets(int packets){
+        _packetsMissing.add(packets);
+    }
+    /**
+     * Count a frame thrown away without being analyzed (e.g. too many packets lost).
+     */
+    public void countSkippedFrame(){
+        _skippedFrames.increment();
+    }
+    /**
+     * Count a frame checked against a SceneCache.
+     *
+     * @param hit True if a cached result was handed out instead of searching the frame
+     */
+    public void countSceneCache(boolean hit){
+        if(hit){
+            _sceneCacheHits.increment();
+        }else{
+            _sceneCacheMisses.increment();
+        }
+    }
+    /**
+     * Count the obstacles found in a frame.
+     *
+     * @param obstacles Number of obstacles found
+     */
+    public void countObstacles(int obstacles){
+        _obstaclesPerFrame.record(obstacles);
+    }
+
+    /**
+     * Record how old the data behind a list of obstacles was when the list got published.
+     *
+     * @param nanos Time since the first packet of the frame arrived, in nanoseconds
+     */
+    public void recordPublishAge(long nanos){
+        _publishAge.record(nanos);
+    }
+    /**
+     * Record how old the data behind a list of obstacles was when the client consumed it.
+     *
+     * @param nanos Time since the first packet of the frame arrived, in nanoseconds
+     */
+    public void recordConsumerAge(long nanos){
+        _consumerAge.record(nanos);
+    }
+
+    public LogLinearHistogram getLatency(Stage stage){
+        return _latencies[stage.ordinal()];
+    }
+
+    public LogLinearHistogram getPublishAge(){
+        return _publishAge;
+    }
+
+    public LogLinearHistogram getConsumerAge(){
+        return _consumerAge;
+    }
+
+    public long getNumberOfPackets(){
+        return _packets.sum();
+    }
+
+    public long getNumberOfFrames(){
+        return _frames.sum();
+    }
+
+    public long getNumberOfMissingPackets(){
+        return _packetsMissing.sum();
+    }
+
+    public long getNumberOfSkippedFrames(){
+        return _skippedFrames.sum();
+    }
+
+    public long getNumberOfReceiveTimeouts(){
+        return _receiveTimeouts.sum();
+    }
+
+    public long getNumberOfSceneCacheHits(){
+        return _sceneCacheHits.sum();
+    }
+
+    public long getNumberOfSceneCacheMisses(){
+        return _sceneCacheMisses.sum();
+    }
+    /**
+     * Get the fraction of frames answered with a cached result, out of those checked against a SceneCache.
+     *
+     * @return Hit rate (0 - 1), NaN if no frame was checked
+     */
+    public double getSceneCacheHitRate(){
+        long hits = _sceneCacheHits.sum();
+        long lookups = hits + _sceneCacheMisses.sum();
+        return (lookups == 0)? Double.NaN : (double) hits / lookups;
+    }
+    /**
+     * Take a snapshot of every histogram and counter. Rates are computed since the previous snapshot.
+     *
+     * @return Snapshot of the current metrics
+     */
+    public synchronized Snapshot snapshot(){
+        long now = System.nanoTime();
+        long packets = _packets.sum();
+        long frames = _frames.sum();
+        double seconds = java.lang.Math.max(1e-9, (now - _lastSnapshotNanos) / 1e9);
+        Snapshot snapshot = new Snapshot(this, (packets - _lastPackets) / seconds, (frames - _lastFrames) / seconds, packets, frames);
+        _lastSnapshotNanos = now;
+        _lastPackets = packets;
+        _lastFrames = frames;
+        return snapshot;
+    }
+    /**
+     * Print a snapshot every period until stopPeriodicLog() is called.
+     *
+     * @param label Text placed at the start of every line (e.g. which lidar)
+     * @param periodMillis Time between lines in milliseconds
+     */
+    public synchronized void startPeriodicLog(final String label, long periodMillis){
+        stopPeriodicLog();
+        _logger = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+            public Thread newThread(Runnable r){
+                Thread thread = new Thread(r, "PipelineMetrics-" + label);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        _logger.scheduleAtFixedRate(new Runnable(){
+            public void run(){
+                System.out.println(label + " " + snapshot());
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopPeriodicLog(){
+        if(_logger != null){
+            _logger.shutdownNow();
+            _logger = null;
+        }
+    }
+    /**
+     * Clear every histogram and counter.
+     */
+    public synchronized void reset(){
+        for(LogLinearHistogram histogram : _latencies){
+            histogram.reset();
+        }
+        _azimuthsPerFrame.reset();
+        _anomaliesPerFrame.reset();
+        _obstaclesPerFrame.reset();
+        _publishAge.reset();
+        _consumerAge.reset();
+        _packets.reset();
+        _frames.reset();
+        _packetsMissing.reset();
+        _skippedFrames.reset();
+        _receiveTimeouts.reset();
+        _sceneCacheHits.reset();
+        _sceneCacheMisses.reset();
+        _lastPackets = 0;
+        _lastFrames = 0;
+        _lastSnapshotNanos = System.nanoTime();
+    }
+    /**
+     * Snapshot class holding the values of a PipelineMetrics at a single point in time. All latencies are in nanoseconds.
+     */
+    public static class Snapshot{
+        public final double packetsPerSecond;
+        public final double framesPerSecond;
+        public final long totalPackets;
+        public final long totalFrames;
+        public final long packetsMissing;   /**<Packets lost before reaching the decoder (total) */
+        public final long skippedFrames;    /**<Frames thrown away without being analyzed (total) */
+        public final long receiveTimeouts;  /**<Receives that timed out without a packet (total) */
+        public final long sceneCacheHits;   /**<Frames answered with a cached result (total) */
+        public final long sceneCacheMisses; /**<Frames searched while a SceneCache was set (total) */
+        public final long[] p50 = new long[Stage.values().length];  /**<Median latency per stage (indexed by Stage.ordinal()) */
+        public final long[] p99 = new long[Stage.values().length];  /**<99th percentile latency per stage */
+        public final long[] max = new long[Stage.values().length];  /**<Worst latency per stage */
+        public final long[] count = new long[Stage.values().length]; /**<Number of values recorded per stage */
+        public final double azimuthsPerFrame;
+        public final double anomaliesPerFrame;
+        public final double obstaclesPerFrame;
+        public final long[] publishAge;     /**<p50, p99 and max age of the data when published */
+        public final long[] consumerAge;    /**<p50, p99 and max age of the data when consumed */
+
+        private Snapshot(PipelineMetrics metrics, double packetsPerSecond, double framesPerSecond, long totalPackets, long totalFrames){
+            this.packetsPerSecond = packetsPerSecond;
+            this.framesPerSecond = framesPerSecond;
+            this.totalPackets = totalPackets;
+            this.totalFrames = totalFrames;
+            this.packetsMissing = metrics._packetsMissing.sum();
+            this.skippedFrames = metrics._skippedFrames.sum();
+            this.receiveTimeouts = metrics._receiveTimeouts.sum();
+            this.sceneCacheHits = metrics._sceneCacheHits.sum();
+            this.sceneCacheMisses = metrics._sceneCacheMisses.sum();
+            for(Stage stage : Stage.values()){
+                LogLinearHistogram histogram = metrics.getLatency(stage);
+                p50[stage.ordinal()] = histogram.getPercentile(50);
+                p99[stage.ordinal()] = histogram.getPercentile(99);
+                max[stage.ordinal()] = histogram.getMax();
+                count[stage.ordinal()] = histogram.getCount();
+            }
+            this.azimuthsPerFrame = metrics._azimuthsPerFrame.getMean();
+            this.anomaliesPerFrame = metrics._anomaliesPerFrame.getMean();
+            this.obstaclesPerFrame = metrics._obstaclesPerFrame.getMean();
+            this.publishAge = _summary(metrics._publishAge);
+            this.consumerAge = _summary(metrics._consumerAge);
+        }
+        /**
+         * Compact single line version of the snapshot. Latencies are printed as p50/p99/max in microseconds.
+         */
+        @Override
+        public String toString(){
+            StringBuilder s = new StringBuilder();
+            s.append(String.format("pkt/s=%.0f fr/s=%.2f az/fr=%.0f anom/fr=%.0f obs/fr=%.1f lost=%d skip=%d",
+                packetsPerSecond, framesPerSecond, azimuthsPerFrame, anomaliesPerFrame, obstaclesPerFrame, packetsMissing, skippedFrames));
+            if(receiveTimeouts > 0){
+                s.append(String.format(" timeout=%d", receiveTimeouts));
+            }
+            if(sceneCacheHits + sceneCacheMisses > 0){
+                s.append(String.format(" cache=%.0f%%", 100.0 * sceneCacheHits / (sceneCacheHits + sceneCacheMisses)));
+            }
+            for(Stage stage : Stage.values()){
+                if(count[stage.ordinal()] == 0){
+                    continue;
+                }
+                s.append(String.format(" %s=%.0f/%.0f/%.0fus", stage.name().toLowerCase(),
+                    p50[stage.ordinal()] / 1e3, p99[stage.ordinal()] / 1e3, max[stage.ordinal()] / 1e3));
+            }
+            if(publishAge[2] > 0){
+                s.append(String.format(" age@publish=%.0f/%.0f/%.0fus", publishAge[0] / 1e3, publishAge[1] / 1e3, publishAge[2] / 1e3));
+            }
+            if(consumerAge[2] > 0){
+                s.append(String.format(" age@consumer=%.0f/%.0f/%.0fus", consumerAge[0] / 1e3, consumerAge[1] / 1e3, consumerAge[2] / 1e3));
+            }
+            return s.toString();
+        }
+
+        private static long[] _summary(LogLinearHistogram histogram){
+            return new long[] {histogram.getPercentile(50), histogram.getPercentile(99), histogram.getMax()};
+        }
+    }
+}
@@ -0,0 +1,34 @@
+// Author: Ivan Ramos, <ivan-1081@hotmail.es>
+// Open Source Software; you can modify and/or share it
+package Hardware.VelodyneLidarHDL;
+
+/**
+ * An interface to define all constants used in the VelodyneLidar package
+ */
+interface Constants{
+
+    static final int HDL_NUM_BYTES_PER_RETURN = 3;      /**<Number of bytes used to represent a single laser return */
+    static final int HDL_NUM_BYTES_PER_BLOCK = 100;     /**<Number of bytes within a single block (one block per azimuth sampled) */
+    static final int HDL_NUM_ROT_ANGLES = 36001;        /**<Number of possible azimuth values (360 degrees with resolution of 0.01) */
+    static final int HDL_LASER_PER_FIRING = 32;         /**<Number of lasers fired per firing sequence/ azimuth sampled (16 per column, fire twice) */
+    static final int HDL_MAX_NUM_LASERS = 64;           /**<Maximum number of laser a Velodyne Lidar can have */
+    static final int HDL_FIRING_PER_PKT = 12;           /**<Number of firing sequences/ azimuths sampled contained in each packet */
+    static final int PORT_NUMBER = 2368;                /**<Default port number */
+    static final int BLOCK_START_FLAG = 0xFFEE;         /**<Flag to indicate start of new block within packet */
+    static final int PACKET_HEADER_OFFSET = 0x0000;     /**<Flag to indicate end of header inside GPS packet */
+    static final int PACKET_HEADER_SIZE = 42;           /**<Number of bytes inside GPS packet used for header */
+    static final int PACKET_UNUSED_OFFSET = 0x002A;     /**<Flag to indicate end of unused bytes within GPS packet */
+    static final int PACKET_UNUSED_SIZE = 198;          /**<Number of unused bytes within GPS packet */
+    static final int PACKET_TIMESTAMP_OFFSET = 0x00F0;  /**<Flag to indicate start of GPS timestamp */
+    static final int PACKET_TIMESTAMP_SIZE = 4;         /**<Number of bytes used to indicate timestamp */
+    static final int LIDAR_ROTATION_ANGLE = 9000;        /**<Lidar's physical rotation angle. Positive angle indicates CCW rotation */
+    static final int LIDAR_TILT_ANGLE = 3760;           /**<Lidar inclination angle * 100. Possitive value means tilted down. */
+    static final double LIDAR_HIGHT_M = 0.383;          /**<Lidar's height in meters */
+    static final double LIDAR_RESOLUTION_M = 0.002;     /**<Lidar's resolution in meters */
+    /**
+     * Enum used to give cordinate-based indexing
+     */
+    public static enum pointCouldCoord{
+        x, y, z;
+    }
+}
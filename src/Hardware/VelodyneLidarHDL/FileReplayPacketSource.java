@@ -0,0 +1,193 @@
+// Author: Ivan Ramos, <ivan-1081@hotmail.es>
+// Open Source Software; you can modify and/or share it
+package Hardware.VelodyneLidarHDL;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+/**
+ * FileReplayPacketSource replays a capture file as if it were coming from the lidar. Captures are either raw packets
+ * placed one after the other (same format used by the calibration file) or logs written by PacketRecorder. The file is
+ * memory mapped a window at a time, so captures of any size can be replayed without loading them to the heap.
+ *
+ * <p>Packets are replayed at the pace they were recorded (based on the arrival time stored by PacketRecorder, or the
+ * timestamp inside every packet for raw captures) or as fast as possible, which is how end-to-end throughput is measured.
+ * <p>setLoop() function restarts the capture once it ends, which is useful for soak tests. Otherwise GetPacket() returns
+ * false once every packet has been replayed.
+ */
+public class FileReplayPacketSource implements PacketSource {
+
+    private static final int PACKET_SIZE = 1206;                    /**<Size of a VLP-16 data packet */
+    private static final int TIMESTAMP_OFFSET = 1200;               /**<Offset of the timestamp (microseconds past the hour, LSB first) */
+    private static final long MICROSECONDS_PER_HOUR = 3600000000L;
+    private static final int PACKETS_PER_WINDOW = 65536;            /**<Number of packets mapped at a time (~79 MB) */
+
+    private RandomAccessFile _file;
+    private FileChannel _channel;
+    private long _numberOfPackets = 0;      /**<Number of packets in capture */
+    private int _headerSize = 0;            /**<Bytes before the first packet */
+    private int _recordSize = PACKET_SIZE;  /**<Bytes between the start of two packets */
+    private boolean _hasArrivalTimes = false; /**<True for PacketRecorder logs (arrival nanoTime before every packet) */
+    private long _arrivalNanos;             /**<Arrival time of the last packet read from a PacketRecorder log */
+    private MappedByteBuffer _window;       /**<Currently mapped part of the capture */
+    private long _windowStart = -1;         /**<Index of the first packet in _window */
+    private long _nextPacket = 0;           /**<Index of the next packet to be replayed */
+    private boolean _realTime;              /**<Replay at the recorded pace */
+    private boolean _loop = false;          /**<Restart capture once it ends */
+    private long _startNanos = -1;          /**<System.nanoTime() matching the start of the recorded time */
+    private long _elapsedUs = 0;            /**<Recorded time since the first replayed packet */
+    private long _lastTimestamp = Long.MIN_VALUE; /**<Timestamp (microseconds) of the newest packet so far, Long.MIN_VALUE if none */
+    private long _packetsReplayed = 0;
+    /**
+     * FileReplayPacketSource constructor.
+     *
+     * @param captureFile File containing the raw packets
+     * @param realTime True to replay at the recorded pace, false to replay as fast as possible
+     */
+    public FileReplayPacketSource(String captureFile, boolean realTime){
+        _realTime = realTime;
+        try{
+            _file = new RandomAccessFile(captureFile, "r");
+            _channel = _file.getChannel();
+            //PacketRecorder logs start with a header, raw captures start straight with a packet
+            if(_file.length() >= PacketRecorder.HEADER_SIZE && _file.readLong() == PacketRecorder.MAGIC){
+                _recordSize = _file.readInt();
+                _headerSize = PacketRecorder.HEADER_SIZE;
+                _hasArrivalTimes = true;
+            }
+            _numberOfPackets = (_channel.size() - _headerSize) / _recordSize;
+            System.out.println("FileReplayPacketSource: Opened " + captureFile + " with " + _numberOfPackets + " packets.");
+        }catch(IOException e){
+            System.out.println("FileReplayPacketSource: Error opening capture - " + e.getMessage() + ".");
+            close();
+        }
+    }
+    /**
+     * Get the next packet in the capture, waiting for its turn if replaying in real time.
+     *
+     * @param data Byte buffer to receive packet in
+     * @param data_length Size for provided data buffer
+     * @return True if a packet was placed in data, false once the capture has ended (and is not looping)
+     */
+    @Override
+    public boolean GetPacket(byte[] data, int[] data_length){
+        if(_numberOfPackets == 0 || data_length[0] < PACKET_SIZE){
+            return false;
+        }
+        if(_nextPacket >= _numberOfPackets){
+            if(!_loop){
+                return false;
+            }
+            rewind();
+        }
+        if(!_mapWindow(_nextPacket)){
+            return false;
+        }
+        _window.position((int) ((_nextPacket - _windowStart) * _recordSize));
+        if(_hasArrivalTimes){
+            _arrivalNanos = _window.getLong();
+        }
+        _window.get(data, 0, PACKET_SIZE);
+        _nextPacket++;
+        _pace(data);
+        _packetsReplayed++;
+        return true;
+    }
+    /**
+     * Go back to the first packet in the capture. Pacing starts over from the next packet.
+     */
+    public void rewind(){
+        _nextPacket = 0;
+        _lastTimestamp = Long.MIN_VALUE;
+        _startNanos = -1;
+        _elapsedUs = 0;
+    }
+
+    public void setLoop(boolean loop){
+        _loop = loop;
+    }
+
+    public void setRealTime(boolean realTime){
+        _realTime = realTime;
+        _startNanos = -1;
+        _elapsedUs = 0;
+    }
+
+    public long getNumberOfPackets(){
+        return _numberOfPackets;
+    }
+
+    public long getPacketsReplayed(){
+        return _packetsReplayed;
+    }
+    /**
+     * Unmap and close the capture file.
+     */
+    @Override
+    public void close(){
+        _window = null;
+        _numberOfPackets = 0;
+        try{
+            if(_file != null){
+                _file.close();
+            }
+        }catch(IOException e){
+            System.out.println("FileReplayPacketSource: Error closing capture - " + e.getMessage() + ".");
+        }
+    }
+    /**
+     * Make sure the packet at index is inside the mapped window.
+     */
+    private boolean _mapWindow(long index){
+        if(_window != null && index >= _windowStart && index < _windowStart + PACKETS_PER_WINDOW){
+            return true;
+        }
+        long start = (index / PACKETS_PER_WINDOW) * PACKETS_PER_WINDOW;
+        long packets = java.lang.Math.min(PACKETS_PER_WINDOW, _numberOfPackets - start);
+        try{
+            _window = _channel.map(FileChannel.MapMode.READ_ONLY, _headerSize + start * _recordSize, packets * _recordSize);
+            _windowStart = start;
+            return true;
+        }catch(IOException e){
+            System.out.println("FileReplayPacketSource: Error mapping capture - " + e.getMessage() + ".");
+            return false;
+        }
+    }
+    /**
+     * Wait until the packet is due based on the time recorded between it and the previous packet.
+     */
+    private void _pace(byte[] data){
+        if(_hasArrivalTimes){
+            long timestamp = _arrivalNanos / 1000;
+            if(_lastTimestamp != Long.MIN_VALUE){
+                _elapsedUs += java.lang.Math.max(0, timestamp - _lastTimestamp);
+            }
+            _lastTimestamp = timestamp;
+        }else{
+            long timestamp = (data[TIMESTAMP_OFFSET] & 0xFFL) | ((data[TIMESTAMP_OFFSET + 1] & 0xFFL) << 8)
+                | ((data[TIMESTAMP_OFFSET + 2] & 0xFFL) << 16) | ((data[TIMESTAMP_OFFSET + 3] & 0xFFL) << 24);
+            long delta = (_lastTimestamp != Long.MIN_VALUE)? timestamp - _lastTimestamp : 0;
+            //Timestamp goes back to zero at the top of the hour
+            if(delta < -MICROSECONDS_PER_HOUR / 2){
+                delta += MICROSECONDS_PER_HOUR;
+            }
+            //Reordered or duplicated packets take no time, and pacing goes on from the newest timestamp seen
+            if(delta >= 0){
+                _elapsedUs += delta;
+                _lastTimestamp = timestamp;
+            }
+        }
+        if(!_realTime){
+            return;
+        }
+        if(_startNanos < 0){
+            _startNanos = System.nanoTime() - _elapsedUs * 1000;
+        }
+        long wait;
+        while((wait = _startNanos + _elapsedUs * 1000 - System.nanoTime()) > 0){
+            LockSupport.parkNanos(wait);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+// Author: Ivan Ramos, <ivan-1081@hotmail.es>
+// Open Source Software; you can modify and/or share it
+package Hardware.VelodyneLidarHDL;
+
+/**
+ * LidarGeometry class used to describe how a single lidar is mounted on the robot. Each PacketDecoder (and therefore each
+ * VelodyneLidar) gets its own geometry so several lidars with different mounts can be used at the same time.
+ *
+ * <p>getHeightAt() function returns the estimated height of the sensors for an specific azimuth angle.
+ * <p>getElevationCos()/getElevationSin() functions return the elevation angle of a laser once the tilt is applied.
+ * <p>toFrameAzimuth() function converts a raw azimuth angle coming from a packet into the azimuth used by frames.
+ * <p>toCartesian() function converts a single return in polar coordinates to cartician coordinates.
+ * <p>toRobotFrame() function converts a single return to the robot's frame with the lidar's full mount (rotation matrix
+ * plus translation), which is what fusing several lidars needs.
+ */
+public class LidarGeometry {
+
+    public static final LidarGeometry DEFAULT = new LidarGeometry(Constants.LIDAR_ROTATION_ANGLE, Constants.LIDAR_TILT_ANGLE, Constants.LIDAR_HIGHT_M); /**<Geometry of our original setup */
+
+    private static final double HEIGHT_SLOPE_FRONT = 0.00002285714285714286;  /**<Measured change in sensor height per azimuth unit before the rotation angle */
+    private static final double HEIGHT_SLOPE_BACK = -0.000037142857142857143; /**<Measured change in sensor height per azimuth unit past the rotation angle */
+
+    private final int _rotationAngle;   /**<Lidar's physical rotation angle * 100. Positive angle indicates CCW rotation */
+    private final int _tiltAngle;       /**<Lidar inclination angle * 100. Possitive value means tilted down */
+    private final int _rollAngle;       /**<Lidar roll angle * 100. Positive value means right side down */
+    private final int _yawAngle;        /**<Lidar yaw angle * 100 on top of the rotation angle. Positive angle indicates CCW rotation */
+    private final double _height;       /**<Lidar's height in meters */
+    private final double _offsetX;      /**<Lidar's position along the robot's X axis (right), in meters */
+    private final double _offsetY;      /**<Lidar's position along the robot's Y axis (forward), in meters */
+    private final double[] _mount = new double[9]; /**<Rotation (row major) from the lidar's frame to the robot's, see toRobotFrame() */
+    private final double[] _laserCos = new double[Constants.HDL_LASER_PER_FIRING / 2]; /**<Cosine of each laser's elevation angle, untilted */
+    private final double[] _laserSin = new double[Constants.HDL_LASER_PER_FIRING / 2]; /**<Sine of each laser's elevation angle, untilted */
+    private final double[] _heightMap = new double[Constants.HDL_NUM_ROT_ANGLES]; /**<Height of the sensors for each azimuth angle */
+    private final double[] _elevationCos = new double[Constants.HDL_LASER_PER_FIRING / 2]; /**<Cosine of each laser's elevation angle once tilted */
+    private final double[] _elevationSin = new double[Constants.HDL_LASER_PER_FIRING / 2]; /**<Sine of each laser's elevation angle once tilted */
+    /**
+     * Constructor for LidarGeometry. Height is estimated by linearly interpolating between the two outer most
+     * azimuth angles and the rotation angle.
+     *
+     * @param rotationAngle Lidar's physical rotation angle (degrees * 100). Positive angle indicates CCW rotation
+     * @param tiltAngle Lidar's inclination angle (degrees * 100). Positive value means tilted down
+     * @param height Lidar's height in meters
+     */
+    public LidarGeometry(int rotationAngle, int tiltAngle, double height){
+        this(rotationAngle, tiltAngle, height, 0.0, 0.0);
+    }
+    /**
+     * Constructor for LidarGeometry of a lidar that is not mounted at the robot's center. The offsets are only used when
+     * converting to the robot's frame (see toRobotFrame()), which is needed when fusing several lidars. The tilt is taken
+     * as a pitch toward the lidar's front (frame azimuth 0), with no roll or yaw.
+     *
+     * @param rotationAngle Lidar's physical rotation angle (degrees * 100). Positive angle indicates CCW rotation
+     * @param tiltAngle Lidar's inclination angle (degrees * 100). Positive value means tilted down
+     * @param height Lidar's height in meters
+     * @param offsetX Lidar's position along the robot's X axis (right), in meters
+     * @param offsetY Lidar's position along the robot's Y axis (forward), in meters
+     */
+    public LidarGeometry(int rotationAngle, int tiltAngle, double height, double offsetX, double offsetY){
+        this(rotationAngle, 0, tiltAngle, 0, offsetX, offsetY, height);
+    }
+    /**
+     * Constructor for LidarGeometry of a lidar with a full mount: roll, pitch and yaw of the lidar, plus its position on
+     * the robot. The mount is used as a rigid-body transform by toRobotFrame(). Frame azimuths stay in the lidar's own
+     * frame (front at azimuth 0), so a lidar facing backwards is given the same rotation angle as one facing forward and
+     * a yaw of 18000. The pitch is also used as the tilt by the functions working in the lidar's own frame
+     * (toCartesian(), getElevationCos(), ...), which know nothing of roll or yaw.
+     *
+     * <p>Ex:
+     *  LidarGeometry back = new LidarGeometry(9000, 0, 3760, 18000, 0.0, -0.5, 0.383);
+     *
+     * @param rotationAngle Lidar's physical rotation angle (degrees * 100). Positive angle indicates CCW rotation
+     * @param rollAngle Lidar's roll (degrees * 100) around the robot's Y axis. Positive value means right side down
+     * @param pitchAngle Lidar's pitch (degrees * 100) around the robot's X axis. Positive value means tilted down (see tiltAngle)
+     * @param yawAngle Lidar's yaw (degrees * 100) around the robot's Z axis, on top of the rotation angle. Positive angle indicates CCW rotation
+     * @param offsetX Lidar's position along the robot's X axis (right), in meters
+     * @param offsetY Lidar's position along the robot's Y axis (forward), in meters
+     * @param height Lidar's height in meters
+     */
+    public LidarGeometry(int rotationAngle, int rollAngle, int pitchAngle, int yawAngle, double offsetX, double offsetY, double height){
+        _rotationAngle = rotationAngle;
+        _tiltAngle = pitchAngle;
+        _rollAngle = rollAngle;
+        _yawAngle = yawAngle;
+        _height = height;
+        _offsetX = offsetX;
+        _offsetY = offsetY;
+        for(int i = 0; i < Constants.HDL_NUM_ROT_ANGLES; i++){
+            if(i < rotationAngle){
+                _heightMap[i] = HEIGHT_SLOPE_FRONT * i + height;
+            }else{
+                _heightMap[i] = HEIGHT_SLOPE_BACK * (i - 36000) + height;
+            }
+        }
+        for(int i = 0; i < Constants.HDL_LASER_PER_FIRING / 2; i++){
+            double rad = (PacketDecoder.elAngle_lookup_table[i] - pitchAngle) / 100.0 * java.lang.Math.PI / 180;
+            _elevationCos[i] = java.lang.Math.cos(rad);
+            _elevationSin[i] = java.lang.Math.sin(rad);
+            rad = PacketDecoder.elAngle_lookup_table[i] / 100.0 * java.lang.Math.PI / 180;
+            _laserCos[i] = java.lang.Math.cos(rad);
+            _laserSin[i] = java.lang.Math.sin(rad);
+        }
+        //Mount = yaw (around Z) * pitch (around X, front down) * roll (around Y, right side down)
+        double roll = rollAngle / 100.0 * java.lang.Math.PI / 180;
+        double pitch = pitchAngle / 100.0 * java.lang.Math.PI / 180;
+        double yaw = yawAngle / 100.0 * java.lang.Math.PI / 180;
+        double cr = java.lang.Math.cos(roll), sr = java.lang.Math.sin(roll);
+        double cp = java.lang.Math.cos(pitch), sp = java.lang.Math.sin(pitch);
+        double cy = java.lang.Math.cos(yaw), sy = java.lang.Math.sin(yaw);
+        double[] rollMatrix = {cr, 0, sr,   0, 1, 0,   -sr, 0, cr};
+        double[] pitchMatrix = {1, 0, 0,   0, cp, sp,   0, -sp, cp};
+        double[] yawMatrix = {cy, -sy, 0,   sy, cy, 0,   0, 0, 1};
+        System.arraycopy(_multiply(_multiply(yawMatrix, pitchMatrix), rollMatrix), 0, _mount, 0, 9);
+    }
+
+    public int getRotationAngle(){
+        return _rotationAngle;
+    }
+
+    public int getTiltAngle(){
+        return _tiltAngle;
+    }
+
+    public int getRollAngle(){
+        return _rollAngle;
+    }
+
+    public int getYawAngle(){
+        return _yawAngle;
+    }
+
+    public double getHeight(){
+        return _height;
+    }
+
+    public double getOffsetX(){
+        return _offsetX;
+    }
+
+    public double getOffsetY(){
+        return _offsetY;
+    }
+    /**
+     * Get the estimated height of the sensors at an azimuth angle.
+     *
+     * @param azimuth Azimuth angle used by frames
+     * @return Height in meters
+     */
+    public double getHeightAt(int azimuth){
+        return _heightMap[azimuth];
+    }
+    /**
+     * Get the cosine of a laser's elevation angle once the lidar's tilt is applied.
+     *
+     * @param laserID Laser ID (0 - 15)
+     * @return Cosine of elevation angle
+     */
+    public double getElevationCos(int laserID){
+        return _elevationCos[laserID % 16];
+    }
+    /**
+     * Get the sine of a laser's elevation angle once the lidar's tilt is applied.
+     *
+     * @param laserID Laser ID (0 - 15)
+     * @return Sine of elevation angle
+     */
+    public double getElevationSin(int laserID){
+        return _elevationSin[laserID % 16];
+    }
+    /**
+     * Perform signed modulus 36000 based on lidar's physical rotation angle to get the azimuth stored in frames.
+     *
+     * @param rawAzimuth Raw azimuth angle from block header
+     * @return Azimuth angle used by frames
+     */
+    public int toFrameAzimuth(int rawAzimuth){
+        int temp = _rotationAngle - rawAzimuth;
+        return (temp < 0) ? (36000 - (java.lang.Math.abs(temp) % 36000) ) % 36000: (temp % 36000);
+    }
+    /**
+     * Get the signed azimuth used to sort frames. Azimuths past the rotation angle are treated as negative angles.
+     *
+     * @param azimuth Azimuth angle used by frames
+     * @return Azimuth shifted by -36000 if past the lidar's rotation angle
+     */
+    public int unwrapAzimuth(int azimuth){
+        return (azimuth > _rotationAngle)? azimuth - 36000 : azimuth;
+    }
+    /**
+     * Turn given polar coordinates into cartician coordinates based on the laser Id, distance and azimuth values.
+     * Z is given relative to the ground using the estimated sensor height.
+     *
+     * @param azimuth Azimuth angle used by frames
+     * @param laserID Laser ID (0 - 15)
+     * @param distance Distance in meters
+     * @return Double array containing {X,Y,Z}
+     */
+    public double[] toCartesian(int azimuth, int laserID, double distance){
+        double xy_plane_projection = distance * getElevationCos(laserID);
+        double X = xy_plane_projection * PacketDecoder.Az_sin_lookup_table[azimuth];
+        double Y = xy_plane_projection * PacketDecoder.Az_cos_lookup_table[azimuth];
+        double Z = distance * getElevationSin(laserID) + _heightMap[azimuth];
+        return new double[] {X, Y, Z};
+    }
+    /**
+     * Turn given polar coordinates into cartician coordinates in the robot's frame. The return is placed in the lidar's
+     * own frame with the laser's untilted elevation, then rotated by the lidar's mount and shifted by its position, so
+     * tilt is handled at every azimuth (it turns into roll to the sides and changes sign behind the lidar). Z is given
+     * relative to the ground under the robot.
+     *
+     * @param azimuth Azimuth angle used by frames
+     * @param laserID Laser ID (0 - 15)
+     * @param distance Distance in meters
+     * @param point Return array for {X,Y,Z}. Must fit at least three values
+     */
+    public void toRobotFrame(int azimuth, int laserID, double distance, double[] point){
+        double xy_plane_projection = distance * _laserCos[laserID % 16];
+        double x = xy_plane_projection * PacketDecoder.Az_sin_lookup_table[azimuth];
+        double y = xy_plane_projection * PacketDecoder.Az_cos_lookup_table[azimuth];
+        double z = distance * _laserSin[laserID % 16];
+        point[0] = _mount[0] * x + _mount[1] * y + _mount[2] * z + _offsetX;
+        point[1] = _mount[3] * x + _mount[4] * y + _mount[5] * z + _offsetY;
+        point[2] = _mount[6] * x + _mount[7] * y + _mount[8] * z + _height;
+    }
+    /**
+     * Multiply two 3x3 row major matrices.
+     */
+    private static double[] _multiply(double[] a, double[] b){
+        double[] c = new double[9];
+        for(int row = 0; row < 3; row++){
+            for(int column = 0; column < 3; column++){
+                c[row * 3 + column] = a[row * 3] * b[column] + a[row * 3 + 1] * b[3 + column] + a[row * 3 + 2] * b[6 + column];
+            }
+        }
+        return c;
+    }
+}
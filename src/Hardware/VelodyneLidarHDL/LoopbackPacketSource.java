@@ -0,0 +1,94 @@
+// Author: Ivan Ramos, <ivan-1081@hotmail.es>
+// Open Source Software; you can modify and/or share it
+package Hardware.VelodyneLidarHDL;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+/**
+ * LoopbackPacketSource streams packets from another PacketSource (usually a FileReplayPacketSource) to a UDP port on
+ * loopback, and reads them back through a regular PacketDriver. Everything from the socket up runs exactly as it would
+ * with the lidar plugged in.
+ *
+ * <p>Packets are sent from their own thread at whatever pace the wrapped source gives them. As with the real lidar,
+ * packets that arrive while the socket buffer is full are lost.
+ * <p>close() function stops the emitter and closes both sockets.
+ */
+public class LoopbackPacketSource implements PacketSource {
+
+    private static final int PACKET_SIZE = 1206;    /**<Size of a VLP-16 data packet */
+
+    private final PacketSource _capture;            /**<Source of the packets being streamed */
+    private final PacketDriver _driver;             /**<Driver receiving the streamed packets */
+    private final int _port;
+    private volatile boolean _running = true;
+    private volatile long _packetsSent = 0;
+    /**
+     * LoopbackPacketSource constructor. Binds to the port and starts streaming right away.
+     *
+     * @param capture Source of the packets to be streamed
+     * @param port Port to stream to (2368 is the lidar's default port)
+     */
+    public LoopbackPacketSource(PacketSource capture, int port){
+        _capture = capture;
+        _port = port;
+        _driver = new PacketDriver(port);
+        Thread emitter = new Thread(new Runnable(){
+            public void run(){
+                _emit();
+            }
+        }, "LoopbackPacketSource-" + port);
+        emitter.setDaemon(true);
+        emitter.start();
+    }
+    /**
+     * Get a single packet from the loopback socket.
+     *
+     * @param data Byte buffer to receive packet in
+     * @param data_length Size for provided data buffer
+     * @return True if a packet was placed in data
+     */
+    @Override
+    public boolean GetPacket(byte[] data, int[] data_length){
+        return _driver.GetPacket(data, data_length);
+    }
+
+    @Override
+    public void setReceiveTimeout(int millis){
+        _driver.setReceiveTimeout(millis);
+    }
+
+    public long getPacketsSent(){
+        return _packetsSent;
+    }
+
+    public int getPort(){
+        return _port;
+    }
+    /**
+     * Stop the emitter and close both sockets along with the wrapped source.
+     */
+    @Override
+    public void close(){
+        _running = false;
+        _driver.close();
+    }
+    /**
+     * Emitter loop. Runs until the wrapped source runs out of packets or the source is closed.
+     */
+    private void _emit(){
+        byte[] data = new byte[PACKET_SIZE];
+        int[] data_length = {PACKET_SIZE};
+        try(DatagramSocket socket = new DatagramSocket()){
+            DatagramPacket packet = new DatagramPacket(data, PACKET_SIZE, InetAddress.getLoopbackAddress(), _port);
+            while(_running && _capture.GetPacket(data, data_length)){
+                socket.send(packet);
+                _packetsSent++;
+            }
+        }catch(IOException e){
+            System.out.println("LoopbackPacketSource: Error sending packet - " + e.getMessage() + ".");
+        }
+        _capture.close();
+    }
+}
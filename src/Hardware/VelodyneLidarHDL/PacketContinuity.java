@@ -0,0 +1,171 @@
+// Author: Ivan Ramos, <ivan-1081@hotmail.es>
+// Open Source Software; you can modify and/or share it
+package Hardware.VelodyneLidarHDL;
+
+/**
+ * PacketContinuity class used by the PacketDecoder to check that consecutive packets make sense. The VLP-16 sends a
+ * packet every 1327.104 us no matter the RPM, and every block moves the azimuth by the same step, so both the GPS
+ * timestamp and the azimuth of consecutive packets can be used to tell when packets went missing.
+ *
+ * <p>update() function is called once per packet and returns how many blocks are missing before it.
+ * <p>getRPM() and getPacketRate() functions return live estimates of the rotation and packet rates.
+ * <p>get...() counters return totals since the decoder was created.
+ */
+public class PacketContinuity {
+
+    public static final double PACKET_PERIOD_US = 1327.104;        /**<Time between two packets (12 blocks of 2 firing sequences) */
+    private static final int BLOCKS_PER_PACKET = 12;
+    private static final int BYTES_PER_BLOCK = 100;
+    private static final int TIMESTAMP_OFFSET = 1200;               /**<Offset of the timestamp (microseconds past the hour, LSB first) */
+    private static final long MICROSECONDS_PER_HOUR = 3600000000L;
+    private static final double SMOOTHING = 0.05;                   /**<Weight given to every new sample in the live estimates */
+
+    private long _lastTimestamp = -1;       /**<Timestamp of the previous packet, -1 if none */
+    private int _lastFirstAzimuth = -1;     /**<Azimuth of the first block of the previous packet */
+    private int _lastAzimuth = -1;          /**<Azimuth of the last block of the previous packet */
+    private double _azimuthStep = 0.0;      /**<Smoothed azimuth change between blocks */
+    private double _rpm = 0.0;              /**<Smoothed rotation rate */
+    private double _packetRate = 0.0;       /**<Smoothed packets per second */
+    private long _packetsReceived = 0;
+    private long _packetsMissing = 0;       /**<Packets missing based on timestamps */
+    private long _azimuthGaps = 0;          /**<Number of times the azimuth jumped more than a block */
+    private long _blocksMissing = 0;        /**<Blocks missing based on azimuth */
+    private int _gapStart = -1;             /**<Azimuth before the last gap found */
+    private int _lastPacketsMissing = 0;    /**<Packets missing right before the last packet */
+    /**
+     * Check a packet against the previous one.
+     *
+     * @param data Raw 1206-byte packet
+     * @return Number of blocks missing between the previous packet and this one (based on azimuth)
+     */
+    public int update(byte[] data){
+        _packetsReceived++;
+        int firstAzimuth = _blockAzimuth(data, 0);
+        //Step between blocks inside this packet. Dual return packets repeat every azimuth, so only count changes
+        int steps = 0;
+        int sum = 0;
+        int previous = firstAzimuth;
+        for(int block = 1; block < BLOCKS_PER_PACKET; block++){
+            int azimuth = _blockAzimuth(data, block);
+            int diff = (azimuth - previous + 36000) % 36000;
+            if(diff != 0){
+                sum += diff;
+                steps++;
+            }
+            previous = azimuth;
+        }
+        if(steps > 0){
+            double step = (double) sum / steps;
+            _azimuthStep = (_azimuthStep == 0.0)? step : _azimuthStep + SMOOTHING * (step - _azimuthStep);
+        }
+        //Azimuth continuity
+        int missingBlocks = 0;
+        _gapStart = -1;
+        if(_lastAzimuth >= 0 && _azimuthStep > 0){
+            int diff = (firstAzimuth - _lastAzimuth + 36000) % 36000;
+            if(diff > 1.5 * _azimuthStep){
+                missingBlocks = (int) java.lang.Math.min(java.lang.Math.round(diff / _azimuthStep) - 1, 36000 / _azimuthStep);
+                _gapStart = _lastAzimuth;
+                _azimuthGaps++;
+                _blocksMissing += missingBlocks;
+            }
+        }
+        //Timestamp continuity
+        long timestamp = (data[TIMESTAMP_OFFSET] & 0xFFL) | ((data[TIMESTAMP_OFFSET + 1] & 0xFFL) << 8)
+            | ((data[TIMESTAMP_OFFSET + 2] & 0xFFL) << 16) | ((data[TIMESTAMP_OFFSET + 3] & 0xFFL) << 24);
+        _lastPacketsMissing = 0;
+        if(_lastTimestamp >= 0){
+            long dt = timestamp - _lastTimestamp;
+            //Timestamp goes back to zero at the top of the hour
+            if(dt < -MICROSECONDS_PER_HOUR / 2){
+                dt += MICROSECONDS_PER_HOUR;
+            }
+            if(dt > 0){
+                if(dt > 1.5 * PACKET_PERIOD_US){
+                    _lastPacketsMissing = (int) (java.lang.Math.round(dt / PACKET_PERIOD_US) - 1);
+                    _packetsMissing += _lastPacketsMissing;
+                }
+                double rate = 1e6 / dt;
+                _packetRate = (_packetRate == 0.0)? rate : _packetRate + SMOOTHING * (rate - _packetRate);
+                int turned = (firstAzimuth - _lastFirstAzimuth + 36000) % 36000;
+                double rpm = (turned / 36000.0) / (dt / 60e6);
+                _rpm = (_rpm == 0.0)? rpm : _rpm + SMOOTHING * (rpm - _rpm);
+            }
+        }
+        _lastTimestamp = timestamp;
+        _lastFirstAzimuth = firstAzimuth;
+        _lastAzimuth = _blockAzimuth(data, BLOCKS_PER_PACKET - 1);
+        return missingBlocks;
+    }
+    /**
+     * Forget the previous packet (e.g. after the stream was paused). Totals are kept.
+     */
+    public void reset(){
+        _lastTimestamp = -1;
+        _lastFirstAzimuth = -1;
+        _lastAzimuth = -1;
+        _gapStart = -1;
+    }
+    /**
+     * Get the raw azimuth before the gap found by the last update().
+     *
+     * @return Raw azimuth, -1 if the last packet had no gap before it
+     */
+    public int getGapStart(){
+        return _gapStart;
+    }
+    /**
+     * Get the smoothed azimuth change between consecutive blocks.
+     *
+     * @return Azimuth step (degrees * 100)
+     */
+    public double getAzimuthStep(){
+        return _azimuthStep;
+    }
+
+    /**
+     * Get the sensor's timestamp of the last packet checked.
+     *
+     * @return Microseconds past the hour, -1 if no packet has been checked since the last reset()
+     */
+    public long getTimestamp(){
+        return _lastTimestamp;
+    }
+
+    public double getRPM(){
+        return _rpm;
+    }
+
+    public double getPacketRate(){
+        return _packetRate;
+    }
+
+    public long getPacketsReceived(){
+        return _packetsReceived;
+    }
+
+    public long getPacketsMissing(){
+        return _packetsMissing;
+    }
+    /**
+     * Get the number of packets the timestamp says are missing right before the last packet.
+     *
+     * @return Number of packets
+     */
+    public int getLastPacketsMissing(){
+        return _lastPacketsMissing;
+    }
+
+    public long getAzimuthGaps(){
+        return _azimuthGaps;
+    }
+
+    public long getBlocksMissing(){
+        return _blocksMissing;
+    }
+
+    private static int _blockAzimuth(byte[] data, int block){
+        int offset = block * BYTES_PER_BLOCK;
+        return (((data[offset + 3] & 0xFF) << 8) | (data[offset + 2] & 0xFF)) % 36000;
+    }
+}
@@ -2,44 +2,17 @@
 // Open Source Software; you can modify and/or share it
 package Hardware.VelodyneLidarHDL;
 
+import Diagnostics.LidarEvents;
+
 import java.util.Deque;
 import java.util.LinkedList;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.lang.String;
 import java.util.Comparator;
-/**
- * An interface to define all constants used in the VelodyneLidar package
- */
-interface Constants{
-
-    static final int HDL_NUM_BYTES_PER_RETURN = 3;      /**<Number of bytes used to represent a single laser return */
-    static final int HDL_NUM_BYTES_PER_BLOCK = 100;     /**<Number of bytes within a single block (one block per azimuth sampled) */
-    static final int HDL_NUM_ROT_ANGLES = 36001;        /**<Number of possible azimuth values (360 degrees with resolution of 0.01) */
-    static final int HDL_LASER_PER_FIRING = 32;         /**<Number of lasers fired per firing sequence/ azimuth sampled (16 per column, fire twice) */
-    static final int HDL_MAX_NUM_LASERS = 64;           /**<Maximum number of laser a Velodyne Lidar can have */
-    static final int HDL_FIRING_PER_PKT = 12;           /**<Number of firing sequences/ azimuths sampled contained in each packet */
-    static final int PORT_NUMBER = 2368;                /**<Default port number */
-    static final int BLOCK_START_FLAG = 0xFFEE;         /**<Flag to indicate start of new block within packet */
-    static final int PACKET_HEADER_OFFSET = 0x0000;     /**<Flag to indicate end of header inside GPS packet */
-    static final int PACKET_HEADER_SIZE = 42;           /**<Number of bytes inside GPS packet used for header */
-    static final int PACKET_UNUSED_OFFSET = 0x002A;     /**<Flag to indicate end of unused bytes within GPS packet */
-    static final int PACKET_UNUSED_SIZE = 198;          /**<Number of unused bytes within GPS packet */
-    static final int PACKET_TIMESTAMP_OFFSET = 0x00F0;  /**<Flag to indicate start of GPS timestamp */
-    static final int PACKET_TIMESTAMP_SIZE = 4;         /**<Number of bytes used to indicate timestamp */
-    static final int LIDAR_ROTATION_ANGLE = 9000;        /**<Lidar's physical rotation angle. Positive angle indicates CCW rotation */
-    static final int LIDAR_TILT_ANGLE = 3760;           /**<Lidar inclination angle * 100. Possitive value means tilted down. */
-    static final double LIDAR_HIGHT_M = 0.383;          /**<Lidar's height in meters */
-    static final double LIDAR_RESOLUTION_M = 0.002;     /**<Lidar's resolution in meters */
-    /**
-     * Enum used to give cordinate-based indexing
-     */
-    public static enum pointCouldCoord{
-        x, y, z;
-    }
-}
 /**
  * PacketDecoder class
  *
@@ -59,6 +32,50 @@ public class PacketDecoder {
     public static int[]    elAngle_lookup_table = {1500, -100, 1300, -300, 1100, -500, 900, -700,   /**<Table to map laser id to elevation angle */
                                                     700, -900, 500, -1100, 300, -1300, 100, -1500};
     public static int[] laserIdMap = {15,13,11,9,7,5,3,1,14,12,10,8,6,4,2,0}; /**<Table to map firing sequence to laserID (i.e laser id 15 gets fired first) */                                            
+    private static boolean _tablesInitialized = false; /**<Static tables are shared by all decoders and only need to be filled once */
+    static{
+        //Azimuth tables do not depend on how the lidar is mounted
+        for(int i = 0; i < Constants.HDL_NUM_ROT_ANGLES; i++){
+            double rad = (i / 100.0) * java.lang.Math.PI / 180;
+            Az_cos_lookup_table[i] = java.lang.Math.cos(rad);
+            Az_sin_lookup_table[i] = java.lang.Math.sin(rad);
+        }
+    }
+    /**
+     * Callback used to walk every return stored in a frame (see HDLFrame.forEachReturn()).
+     */
+    public interface ReturnVisitor{
+        /**
+         * Called once per return.
+         * 
+         * @param laserID Laser from which the return was measured
+         * @param azimuth Azimuth angle, as integer, of the return
+         * @param distance Distance in meters
+         */
+        void visit(int laserID, int azimuth, double distance);
+    }
+    /**
+     * Callback fed with every point decoded in point cloud mode, as soon as it is decoded (see AddPointListener()).
+     * Called from the thread decoding packets.
+     */
+    public interface PointListener{
+        /**
+         * Called once per decoded return. Returns with no echo (distance 0) are left out.
+         * 
+         * @param laserID Laser from which the return was measured
+         * @param azimuth Azimuth angle, as integer, of the return
+         * @param x X coordinate in the robot's frame, in meters
+         * @param y Y coordinate in the robot's frame, in meters
+         * @param z Z coordinate (height above the ground), in meters
+         */
+        void point(int laserID, int azimuth, double x, double y, double z);
+        /**
+         * Called every time a frame is handed out by GetLatestFrame().
+         */
+        default void frameCompleted(){
+
+        }
+    }
     /**
      * HDLLaserReturn class implements Serializable to assure continous data representation
      * 
@@ -242,7 +259,8 @@ public class PacketDecoder {
          * @return timestamp integer
          */
         public int getTimestamp(){
-            ByteBuffer wrapped = ByteBuffer.wrap(_gpsTimestamp);
+            //Timestamp is sent LSB first
+            ByteBuffer wrapped = ByteBuffer.wrap(_gpsTimestamp).order(ByteOrder.LITTLE_ENDIAN);
             return wrapped.getInt();
         }
         /**
@@ -301,12 +319,59 @@ public class PacketDecoder {
 
         private HashMap<Integer,double[][]> _pointCould3DArray = new HashMap<Integer,double[][]>(); /**<HashMap to store 3D point cloud data. Azimuth angle serves as the key */
         private HashMap<Integer,double[]> _distance2DArray     = new HashMap<Integer,double[]>();   /**<HashMap to store 2D distance data. Azimuth angle serves as the key */
-        private int number_of_azimuths = 0; /**<Total number of azimuths used to create the frame */
+        protected int number_of_azimuths = 0; /**<Total number of azimuths used to create the frame */
+        private long[][] _anomalyMask;      /**<Per laser bitset (indexed by azimuth) of returns that deviate from ground by more than _anomalyTolerance. NULL if not tracked */
+        private double _anomalyTolerance = Double.NaN; /**<Tolerance used to fill _anomalyMask */
+        private double _anomalyGroundRef = 0.0;        /**<Ground reference used to fill _anomalyMask in point cloud mode */
+        private int _azimuthOrigin = 0;      /**<First azimuth covered by the frame's field of view */
+        private int _azimuthSpan = 36000;    /**<Number of azimuths covered by the frame's field of view */
+        private int _laserMask = 0xFFFF;     /**<Bit N is set if laser N is inside the frame's field of view */
+        private int _blocksReceived = 0;     /**<Blocks inside the field of view decoded into the frame */
+        private int _blocksMissing = 0;      /**<Blocks inside the field of view lost before reaching the decoder */
+        private int _packetsMissing = 0;     /**<Packets lost (based on timestamps) while the frame was being populated */
+        private int _packetsDecoded = 0;     /**<Packets decoded while the frame was being populated */
+        private long _firstPacketNanos;      /**<System.nanoTime() at which the first packet of the frame arrived */
+        private long _lastPacketNanos;       /**<System.nanoTime() at which the last packet of the frame arrived */
+        private long _firstTimestamp = -1;   /**<Sensor timestamp (microseconds past the hour) of the first packet, -1 if none */
+        private long _lastTimestamp = -1;    /**<Sensor timestamp (microseconds past the hour) of the last packet, -1 if none */
         /**
          * Default constructor. Use the other functions to populate.
          */
         public HDLFrame(){
             
+        }
+        /**
+         * Constructor for a frame that also keeps track, while being populated, of which returns deviate from the
+         * ground by more than the given tolerance. Use getAnomalyMask() to retrieve them.
+         * 
+         * @param anomalyTolerance Distance (polar) or height (cartician), in meters, a return has to deviate by to be flagged
+         * @param groundRef Ground reference, in meters, used when flagging point cloud entries
+         */
+        public HDLFrame(double anomalyTolerance, double groundRef){
+            this(anomalyTolerance, groundRef, 0, 36000, 0xFFFF);
+        }
+        /**
+         * Constructor for a frame restricted to a field of view. The anomaly mask is only allocated for the azimuths
+         * and lasers inside of it, and lasers outside of it report no deviation when sorted.
+         * 
+         * @param anomalyTolerance Distance (polar) or height (cartician), in meters, a return has to deviate by to be flagged. NaN disables flagging
+         * @param groundRef Ground reference, in meters, used when flagging point cloud entries
+         * @param azimuthOrigin First azimuth angle inside the field of view
+         * @param azimuthSpan Number of azimuth angles inside the field of view (36000 for full view)
+         * @param laserMask Bit N set if laser N is inside the field of view
+         */
+        public HDLFrame(double anomalyTolerance, double groundRef, int azimuthOrigin, int azimuthSpan, int laserMask){
+            _azimuthOrigin = azimuthOrigin;
+            _azimuthSpan = azimuthSpan;
+            _laserMask = laserMask;
+            if(!Double.isNaN(anomalyTolerance)){
+                _anomalyMask = new long[Constants.HDL_LASER_PER_FIRING / 2][];
+                for(int laserID = 0; laserID < Constants.HDL_LASER_PER_FIRING / 2; laserID++){
+                    _anomalyMask[laserID] = ((laserMask & (1 << laserID)) != 0)? new long[(azimuthSpan + 63) / 64] : new long[0];
+                }
+                _anomalyTolerance = anomalyTolerance;
+                _anomalyGroundRef = groundRef;
+            }
         }
         /**
          * Add a single point cloud entrie into frame.
@@ -353,6 +418,206 @@ public class PacketDecoder {
                 _distance2DArray.put(azimuth, temp);
             }
         }
+        /**
+         * Flag or unflag a single entry as deviating from the ground. Entries can be written more than once
+         * per frame, so the flag always reflects the latest return.
+         * 
+         * @param laserID Laser from which the return was measured
+         * @param azimuth Azimuth angle, as integer, of the return
+         * @param anomalous True if return deviates by more than the anomaly tolerance
+         */
+        private void setAnomaly(int laserID, int azimuth, boolean anomalous){
+            if(_anomalyMask == null){
+                return;
+            }
+            int offset = (azimuth - _azimuthOrigin + 36000) % 36000;
+            if(offset >= _azimuthSpan || (offset >>> 6) >= _anomalyMask[laserID].length){
+                return;
+            }
+            if(anomalous){
+                _anomalyMask[laserID][offset >>> 6] |= (1L << offset);
+            }else{
+                _anomalyMask[laserID][offset >>> 6] &= ~(1L << offset);
+            }
+        }
+        /**
+         * Check if the frame kept track of anomalous returns while being populated. Polar frames started before the
+         * decoder was calibrated, or still being populated when a calibration was loaded, have no mask.
+         * 
+         * @return True if getAnomalyMask() can be used
+         */
+        public boolean hasAnomalyMask(){
+            return _anomalyMask != null;
+        }
+        /**
+         * Get the tolerance used to flag anomalous returns.
+         * 
+         * @return Tolerance in meters, NaN if frame has no anomaly mask
+         */
+        public double getAnomalyTolerance(){
+            return _anomalyTolerance;
+        }
+        /**
+         * Get the ground reference used to flag anomalous point cloud entries.
+         * 
+         * @return Ground reference in meters
+         */
+        public double getAnomalyGroundRef(){
+            return _anomalyGroundRef;
+        }
+        /**
+         * Get the anomaly bitset for a single laser. Bit N of the set (word N / 64, bit N % 64) is set if the
+         * return at azimuth (getAzimuthOrigin() + N) % 36000 deviated from the ground by more than the anomaly
+         * tolerance. The array is not copied, so it must not be modified. Lasers outside of the field of view
+         * get an empty array.
+         * 
+         * @param laserID Laser for which to get the bitset
+         * @return Packed bitset indexed by azimuth offset, NULL if frame has no anomaly mask
+         */
+        public long[] getAnomalyMask(int laserID){
+            return (_anomalyMask == null)? null : _anomalyMask[laserID];
+        }
+        /**
+         * Walk every return stored in the frame. Lasers outside of the field of view and empty returns (distance of 0)
+         * are skipped.
+         * 
+         * @param visitor Callback for each return
+         */
+        public void forEachReturn(ReturnVisitor visitor){
+            for(java.util.Map.Entry<Integer,double[]> entry : _distance2DArray.entrySet()){
+                int azimuth = entry.getKey();
+                double[] distances = entry.getValue();
+                for(int laserID = 0; laserID < distances.length; laserID++){
+                    if(isLaserInView(laserID) && distances[laserID] > 0.0){
+                        visitor.visit(laserID, azimuth, distances[laserID]);
+                    }
+                }
+            }
+        }
+        /**
+         * Get the geometry of the lidar that produced the frame.
+         * 
+         * @return LidarGeometry of the decoder
+         */
+        public LidarGeometry getGeometry(){
+            return _geometry;
+        }
+        /**
+         * Get the first azimuth angle inside the frame's field of view. Offsets in the anomaly mask are relative to it.
+         * 
+         * @return Azimuth angle as integer
+         */
+        public int getAzimuthOrigin(){
+            return _azimuthOrigin;
+        }
+        /**
+         * Get the number of azimuth angles inside the frame's field of view.
+         * 
+         * @return Span of field of view, 36000 for a full view
+         */
+        public int getAzimuthSpan(){
+            return _azimuthSpan;
+        }
+        /**
+         * Check if a laser is inside the frame's field of view.
+         * 
+         * @param laserID Laser to check
+         * @return True if returns from laser are stored in frame
+         */
+        public boolean isLaserInView(int laserID){
+            return (_laserMask & (1 << laserID)) != 0;
+        }
+        /**
+         * Get the number of blocks (inside the field of view) decoded into the frame.
+         * 
+         * @return Number of blocks
+         */
+        public int getBlocksReceived(){
+            return _blocksReceived;
+        }
+        /**
+         * Get the number of blocks (inside the field of view) that never reached the decoder while the frame was being
+         * populated. Found from jumps in azimuth between consecutive packets.
+         * 
+         * @return Number of blocks
+         */
+        public int getBlocksMissing(){
+            return _blocksMissing;
+        }
+        /**
+         * Get the number of packets that never reached the decoder while the frame was being populated. Found from jumps
+         * in the packets' timestamps, so packets outside the field of view are counted as well.
+         * 
+         * @return Number of packets
+         */
+        public int getPacketsMissing(){
+            return _packetsMissing;
+        }
+        /**
+         * Get the number of packets decoded while the frame was being populated.
+         * 
+         * @return Number of packets
+         */
+        public int getPacketsDecoded(){
+            return _packetsDecoded;
+        }
+        /**
+         * Get the time at which the first packet of the frame arrived. Only meaningful if getPacketsDecoded() > 0.
+         * 
+         * @return System.nanoTime() at arrival
+         */
+        public long getFirstPacketNanos(){
+            return _firstPacketNanos;
+        }
+        /**
+         * Get the time at which the last packet of the frame arrived. Only meaningful if getPacketsDecoded() > 0.
+         * 
+         * @return System.nanoTime() at arrival
+         */
+        public long getLastPacketNanos(){
+            return _lastPacketNanos;
+        }
+        /**
+         * Get the sensor's (GPS) timestamp of the first packet of the frame.
+         * 
+         * @return Microseconds past the hour, -1 if no packet was decoded
+         */
+        public long getFirstSensorTimestamp(){
+            return _firstTimestamp;
+        }
+        /**
+         * Get the sensor's (GPS) timestamp of the last packet of the frame.
+         * 
+         * @return Microseconds past the hour, -1 if no packet was decoded
+         */
+        public long getLastSensorTimestamp(){
+            return _lastTimestamp;
+        }
+        /**
+         * Get the fraction of the blocks inside the field of view that made it to the frame.
+         * 
+         * @return Completeness between 0 and 1. 1 if no block was expected
+         */
+        public double getCompleteness(){
+            int expected = _blocksReceived + _blocksMissing;
+            return (expected == 0)? 1.0 : (double) _blocksReceived / expected;
+        }
+        /**
+         * Count all returns flagged as anomalous within the frame.
+         * 
+         * @return Number of anomalous entries, 0 if frame has no anomaly mask
+         */
+        public int getNumberOfAnomalies(){
+            int count = 0;
+            if(_anomalyMask != null){
+                for(long[] row : _anomalyMask){
+                    for(long word : row){
+                        count += Long.bitCount(word);
+                    }
+                }
+            }
+            return count;
+        }
         /**
          * Get a single point that corresponds to a single laser Id and azimuth.
          * 
@@ -392,8 +657,8 @@ public class PacketDecoder {
          */
         private double _interpolateDistance(HashMap<Integer,double[]> map, int az, int ID){
             //Move lowerBound and upperBound as close as possible to az. Must be valid entries in map.
-            int lowerBound = 0;
-            int upperBound = 36000;
+            int lowerBound = -1;
+            int upperBound = Constants.HDL_NUM_ROT_ANGLES;
             for(int azimuth : map.keySet()){
                  if(azimuth < az && azimuth > lowerBound){
                      lowerBound = azimuth;
@@ -402,6 +667,14 @@ public class PacketDecoder {
                      upperBound = azimuth;
                  }
             }
+            //If az is outside the sampled range, use the closest entry instead
+            if(lowerBound < 0 && upperBound == Constants.HDL_NUM_ROT_ANGLES){
+                return 0.0;
+            }else if(lowerBound < 0){
+                return map.get(upperBound)[ID];
+            }else if(upperBound == Constants.HDL_NUM_ROT_ANGLES){
+                return map.get(lowerBound)[ID];
+            }
             //Perform linear interpolation with the found bounds.
             double low = map.get(lowerBound)[ID];
             double high = map.get(upperBound)[ID];
@@ -409,6 +682,52 @@ public class PacketDecoder {
             double change = slope*(az - lowerBound);
             return low + change;
         }
+        /**
+         * Fill a dense table with getDistance() for every laser and azimuth angle. Sampled azimuths are sorted once and
+         * swept in order, so the whole table costs about as much as a handful of _interpolateDistance() calls.
+         * 
+         * @return Distances indexed by laser ID, then azimuth angle (0 - 36000)
+         */
+        private double[][] _denseDistances(){
+            double[][] table = new double[Constants.HDL_LASER_PER_FIRING / 2][Constants.HDL_NUM_ROT_ANGLES];
+            int[] keys = new int[_distance2DArray.size()];
+            int count = 0;
+            for(int azimuth : _distance2DArray.keySet()){
+                keys[count++] = azimuth;
+            }
+            if(count == 0){
+                return table;
+            }
+            Arrays.sort(keys);
+            double[][] samples = new double[count][];
+            for(int i = 0; i < count; i++){
+                samples[i] = _distance2DArray.get(keys[i]);
+            }
+            for(int ID = 0; ID < table.length; ID++){
+                int upper = 0;
+                for(int az = 0; az < Constants.HDL_NUM_ROT_ANGLES; az++){
+                    //Same result as _interpolateDistance(): closest entry outside the sampled range, linear inside of it
+                    while(upper < count && keys[upper] < az){
+                        upper++;
+                    }
+                    if(upper < count && keys[upper] == az){
+                        table[ID][az] = samples[upper][ID];
+                    }else if(upper == 0){
+                        table[ID][az] = samples[0][ID];
+                    }else if(upper == count){
+                        table[ID][az] = samples[count - 1][ID];
+                    }else{
+                        int lowerBound = keys[upper - 1];
+                        int upperBound = keys[upper];
+                        double low = samples[upper - 1][ID];
+                        double high = samples[upper][ID];
+                        double slope = (low - high)/(lowerBound - upperBound);
+                        table[ID][az] = low + slope*(az - lowerBound);
+                    }
+                }
+            }
+            return table;
+        }
         /**
          * Get the number of azimuths that currently make up the frame
          * 
@@ -436,6 +755,10 @@ public class PacketDecoder {
                 for(int i = 0; i < 3; i++){
                     return_data[index][i] = _pointCould3DArray.get(azimuth)[laserID][i];
                 }
+                //Lasers outside of the field of view have no height so they never trigger a search
+                if(!isLaserInView(laserID)){
+                    return_data[index][2] = Double.NaN;
+                }
                 index++;
             }
             Arrays.sort(return_data, new Comparator<double[]>(){
@@ -447,6 +770,7 @@ public class PacketDecoder {
         }
         /**
          * Get distance entries within frame for a single laser ID. Returned data is sorted based on the azimuth angle.
+         * Each entry holds {azimuth, distance - calibration distance, distance}.
          * 
          * @param laserID Laser for which user wishes to obtain all points within frame
          * @param return_data data buffer which will contain all sorted points once function returns
@@ -462,9 +786,11 @@ public class PacketDecoder {
             //Add all distances to return_data and sort based on azimuth angle
             for(int azimuth : _pointCould3DArray.keySet()){
                 return_data[index][0] = azimuth;
-                if(!_generatePointCloud){
-                    double calibrationDistance = _calibrationFrame.getDistance(laserID, azimuth);
-                    return_data[index][1] = _distance2DArray.get(azimuth)[laserID] - calibrationDistance;
+                if(!_generatePointCloud && isLaserInView(laserID)){
+                    double calibrationDistance = _calibrationDistance(laserID, azimuth);
+                    double distance = _distance2DArray.get(azimuth)[laserID];
+                    return_data[index][1] = distance - calibrationDistance;
+                    return_data[index][2] = distance;
                 }
                 index++;
             }
@@ -474,12 +800,12 @@ public class PacketDecoder {
                   double az1, az2;
                   //Take signed modulus of azimuth angle based on Lidar's rotation angle 
                   //i.e. if az = 345 and lidar is rotated by 90 deg CW, then angle should be 65 deg
-                  if(o1[0] > Constants.LIDAR_ROTATION_ANGLE){
+                  if(o1[0] > _geometry.getRotationAngle()){
                      az1 = o1[0] - 36000;
                   }else{
                      az1 = o1[0]; 
                   }
-                  if(o2[0] > Constants.LIDAR_ROTATION_ANGLE){
+                  if(o2[0] > _geometry.getRotationAngle()){
                      az2 = o2[0] - 36000;
                   }else{
                      az2 = o2[0]; 
@@ -523,12 +849,292 @@ public class PacketDecoder {
             }
         }
     }
+    /**
+     * HDLSparseFrame is a polar-only HDLFrame that discards, at decode time, every return matching the calibration
+     * frame. Only the anomalous cells (laser, azimuth, distance, deviation) are kept in compact primitive arrays
+     * alongside a bitset of the sampled azimuths, so a frame over mostly flat terrain takes kilobytes instead of
+     * megabytes. Distances for discarded cells are answered with the calibration distance.
+     * 
+     * <p>addReturn() function is called by the decoder for every return pushed to the frame.
+     * <p>getNumberOfCells() and the getCell() functions are used to walk the anomalous cells.
+     * <p>findCell() function is used to look up a cell given a laser ID and azimuth angle.
+     * <p>getSortedAzimuths() function returns all sampled azimuths in the same order as getSortedDistances().
+     */
+    public class HDLSparseFrame extends HDLFrame{
+
+        private long[] _azimuthMask; /**<Bitset of azimuths sampled in frame, indexed by offset from the field of view's origin */
+        private int[] _cellKeys = new int[64];      /**<Packed laser ID (upper bits) and azimuth (lower 16 bits) per cell */
+        private float[] _cellDistances = new float[64];  /**<Measured distance, in meters, per cell */
+        private float[] _cellDeviations = new float[64]; /**<Distance minus calibration distance per cell. 0 if cell went back to ground */
+        private int _numberOfCells = 0;             /**<Number of cells in use */
+        private int[] _lookupTable = new int[128];  /**<Open addressing table mapping packed keys to cell index + 1 (0 means empty) */
+        private double _tolerance;                  /**<Deviation needed to keep a return */
+        /**
+         * Constructor for sparse frame.
+         * 
+         * @param tolerance Deviation from calibration distance, in meters, needed to keep a return
+         */
+        public HDLSparseFrame(double tolerance){
+            this(tolerance, 0, 36000, 0xFFFF);
+        }
+        /**
+         * Constructor for sparse frame restricted to a field of view.
+         * 
+         * @param tolerance Deviation from calibration distance, in meters, needed to keep a return
+         * @param azimuthOrigin First azimuth angle inside the field of view
+         * @param azimuthSpan Number of azimuth angles inside the field of view (36000 for full view)
+         * @param laserMask Bit N set if laser N is inside the field of view
+         */
+        public HDLSparseFrame(double tolerance, int azimuthOrigin, int azimuthSpan, int laserMask){
+            super(Double.NaN, 0.0, azimuthOrigin, azimuthSpan, laserMask);
+            _tolerance = tolerance;
+            _azimuthMask = new long[(azimuthSpan + 63) / 64];
+        }
+        /**
+         * Add a single return to the frame. The return is only stored if it deviates from the calibration distance
+         * by more than the frame's tolerance. A cell that goes back to ground is kept with a deviation of 0.
+         * 
+         * @param laserID Laser from which the return was measured
+         * @param azimuth Azimuth angle, as integer, of the return
+         * @param distance Distance in meters
+         * @param deviation Distance minus calibration distance, in meters
+         */
+        public void addReturn(int laserID, int azimuth, double distance, double deviation){
+            if(laserID >= Constants.HDL_LASER_PER_FIRING / 2 || azimuth >= Constants.HDL_NUM_ROT_ANGLES){
+                return;
+            }
+            //Keep track of sampled azimuths
+            int offset = (azimuth - getAzimuthOrigin() + 36000) % 36000;
+            if(offset >= getAzimuthSpan()){
+                return;
+            }
+            long bit = 1L << offset;
+            if((_azimuthMask[offset >>> 6] & bit) == 0){
+                _azimuthMask[offset >>> 6] |= bit;
+                number_of_azimuths++;
+            }
+            boolean anomalous = java.lang.Math.abs(deviation) > _tolerance;
+            int key = (laserID << 16) | azimuth;
+            int index = findCell(laserID, azimuth);
+            if(index >= 0){
+                _cellDistances[index] = (float) distance;
+                _cellDeviations[index] = anomalous? (float) deviation : 0.0f;
+            }else if(anomalous){
+                if(_numberOfCells == _cellKeys.length){
+                    _cellKeys = Arrays.copyOf(_cellKeys, _numberOfCells * 2);
+                    _cellDistances = Arrays.copyOf(_cellDistances, _numberOfCells * 2);
+                    _cellDeviations = Arrays.copyOf(_cellDeviations, _numberOfCells * 2);
+                }
+                _cellKeys[_numberOfCells] = key;
+                _cellDistances[_numberOfCells] = (float) distance;
+                _cellDeviations[_numberOfCells] = (float) deviation;
+                _numberOfCells++;
+                if(_numberOfCells * 2 > _lookupTable.length){
+                    _rehash(_lookupTable.length * 2);
+                }else{
+                    _insert(_lookupTable, key, _numberOfCells);
+                }
+            }
+        }
+        /**
+         * Look up the cell index for a laser ID and azimuth angle.
+         * 
+         * @param laserID Laser ID of the cell
+         * @param azimuth Azimuth angle of the cell
+         * @return Index of cell, -1 if the return at that position was not anomalous
+         */
+        public int findCell(int laserID, int azimuth){
+            int key = (laserID << 16) | azimuth;
+            int mask = _lookupTable.length - 1;
+            for(int slot = _hash(key) & mask; _lookupTable[slot] != 0; slot = (slot + 1) & mask){
+                int index = _lookupTable[slot] - 1;
+                if(_cellKeys[index] == key){
+                    return index;
+                }
+            }
+            return -1;
+        }
+        /**
+         * Get the number of cells in frame. Cells whose deviation is 0 went back to ground and should be skipped.
+         * 
+         * @return Number of cells
+         */
+        public int getNumberOfCells(){
+            return _numberOfCells;
+        }
+        /**
+         * Get laser ID of a cell.
+         * 
+         * @param index Cell index
+         * @return Laser ID
+         */
+        public int getCellLaserID(int index){
+            return _cellKeys[index] >>> 16;
+        }
+        /**
+         * Get azimuth angle of a cell.
+         * 
+         * @param index Cell index
+         * @return Azimuth angle as integer
+         */
+        public int getCellAzimuth(int index){
+            return _cellKeys[index] & 0xFFFF;
+        }
+        /**
+         * Get measured distance of a cell.
+         * 
+         * @param index Cell index
+         * @return Distance in meters
+         */
+        public double getCellDistance(int index){
+            return _cellDistances[index];
+        }
+        /**
+         * Get deviation from calibration distance of a cell.
+         * 
+         * @param index Cell index
+         * @return Deviation in meters, 0 if cell went back to ground
+         */
+        public double getCellDeviation(int index){
+            return _cellDeviations[index];
+        }
+        /**
+         * Count cells that are still anomalous.
+         */
+        @Override
+        public int getNumberOfAnomalies(){
+            int count = 0;
+            for(int i = 0; i < _numberOfCells; i++){
+                if(_cellDeviations[i] != 0.0f){
+                    count++;
+                }
+            }
+            return count;
+        }
+        /**
+         * Get the tolerance used to discard returns.
+         * 
+         * @return Tolerance in meters
+         */
+        public double getTolerance(){
+            return _tolerance;
+        }
+        /**
+         * Get all sampled azimuths sorted in the same order used by getDistanceRowForLaserID().
+         * 
+         * @return Array of azimuth angles
+         */
+        public int[] getSortedAzimuths(){
+            int[] azimuths = new int[number_of_azimuths];
+            int index = 0;
+            for(int word = 0; word < _azimuthMask.length; word++){
+                long bits = _azimuthMask[word];
+                while(bits != 0){
+                    int azimuth = (getAzimuthOrigin() + (word << 6) + Long.numberOfTrailingZeros(bits)) % 36000;
+                    bits &= bits - 1;
+                    //Azimuths past the lidar's rotation angle are treated as negative angles
+                    azimuths[index++] = _geometry.unwrapAzimuth(azimuth);
+                }
+            }
+            Arrays.sort(azimuths);
+            for(int i = 0; i < azimuths.length; i++){
+                azimuths[i] = (azimuths[i] < 0)? azimuths[i] + 36000 : azimuths[i];
+            }
+            return azimuths;
+        }
+        /**
+         * Only the anomalous cells are visited since every other return was discarded.
+         */
+        @Override
+        public void forEachReturn(ReturnVisitor visitor){
+            for(int i = 0; i < _numberOfCells; i++){
+                if(_cellDeviations[i] != 0.0f){
+                    visitor.visit(getCellLaserID(i), getCellAzimuth(i), _cellDistances[i]);
+                }
+            }
+        }
+        /**
+         * Distance for a discarded cell is the calibration distance, since the return matched it.
+         */
+        @Override
+        public double getDistance(int laserID, int azimuth){
+            int index = findCell(laserID, azimuth);
+            if(index >= 0){
+                return _cellDistances[index];
+            }
+            return _calibrationDistance(laserID, azimuth);
+        }
+        /**
+         * Rebuild a dense row so sparse frames can still be used by code expecting HDLFrame. Deviations for
+         * discarded cells are 0.
+         */
+        @Override
+        public void getDistanceRowForLaserID(int laserID, double[][] return_data, int data_length){
+            if(data_length != number_of_azimuths){
+                return;
+            }
+            int[] azimuths = getSortedAzimuths();
+            for(int i = 0; i < azimuths.length; i++){
+                int index = findCell(laserID, azimuths[i]);
+                return_data[i][0] = azimuths[i];
+                return_data[i][1] = (index >= 0)? _cellDeviations[index] : 0.0;
+                return_data[i][2] = (index >= 0)? _cellDistances[index] : _calibrationDistance(laserID, azimuths[i]);
+            }
+        }
+        /**
+         * Sparse frames do not keep point cloud data.
+         */
+        @Override
+        public void addPoint(double[] point, int laserID, int azimuth){
+
+        }
+        /**
+         * Sparse frames only keep distances through addReturn().
+         */
+        @Override
+        public void addDistance(double dist, int laserID, int azimuth){
+
+        }
+        /**
+         * Grow lookup table and re-insert all cells.
+         */
+        private void _rehash(int size){
+            _lookupTable = new int[size];
+            for(int i = 0; i < _numberOfCells; i++){
+                _insert(_lookupTable, _cellKeys[i], i + 1);
+            }
+        }
+
+        private void _insert(int[] table, int key, int value){
+            int mask = table.length - 1;
+            int slot = _hash(key) & mask;
+            while(table[slot] != 0){
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = value;
+        }
+
+        private int _hash(int key){
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
 
     //private String _correction_file;
     private int _last_azimuth; /**<Last azimuth that was pushed to a frame */
     private int _max_num_of_frames; /**<Maximum number of frames to be stores in decoder at once */
     private HDLFrame _frame; /**<Current fram to which data is being added to */
     private HDLFrame _calibrationFrame; /**<Frame used to what a flat surface should look like to the lidar */
+    private volatile double[][] _calibrationDistances; /**<Distance of _calibrationFrame per laser and azimuth, interpolated where not sampled. NULL until needed */
+    private LidarGeometry _geometry; /**<How the lidar is mounted. Used for all point cloud and azimuth calculations */
+    private double _anomalyTolerance = Double.NaN; /**<Deviation from ground needed to flag a return as anomalous. NaN disables flagging */
+    private double _groundRef = 0.0; /**<Ground reference used to flag anomalous point cloud entries */
+    private boolean _sparseMode = false; /**<Indicates if frames should only keep anomalous returns (polar mode only) */
+    private volatile PointListener[] _pointListeners = new PointListener[0]; /**<Fed with every decoded point in point cloud mode. Replaced (copy on write) when listeners change */
+    private int _fovOrigin = 0;      /**<First azimuth inside the field of view */
+    private int _fovSpan = 36000;    /**<Number of azimuths inside the field of view */
+    private int _fovLaserMask = 0xFFFF; /**<Bit N is set if laser N is inside the field of view */
+    private final PacketContinuity _continuity = new PacketContinuity(); /**<Tracks lost packets, azimuth gaps and rotation rate */
     private Deque<HDLFrame> _frames = new LinkedList<HDLFrame>(); /**<Deque to store all frames created. Can Fit up to _max_num_of_frames */
     /**
      * Constructor to PacketDecoder class. Input is used to indicate if the algorithm should take the 
@@ -538,7 +1144,17 @@ public class PacketDecoder {
      * @param generatePointCloud Flag to allow point cloud calculations.
      */
     public PacketDecoder(boolean generatePointCloud){
+        this(generatePointCloud, LidarGeometry.DEFAULT);
+    }
+    /**
+     * Constructor to PacketDecoder class for a lidar with its own mount. See PacketDecoder(generatePointCloud).
+     * 
+     * @param generatePointCloud Flag to allow point cloud calculations.
+     * @param geometry How the lidar is mounted (rotation, tilt and height)
+     */
+    public PacketDecoder(boolean generatePointCloud, LidarGeometry geometry){
         this._generatePointCloud = generatePointCloud;
+        this._geometry = geometry;
         this._max_num_of_frames = 3;
         UnloadData();
         InitTables();
@@ -565,6 +1181,115 @@ public class PacketDecoder {
             _frames.removeFirst();
         }
     }
+    /**
+     * Get the tracker checking continuity between packets (lost packets, azimuth gaps, RPM and packet rate).
+     * 
+     * @return PacketContinuity for this decoder
+     */
+    public PacketContinuity GetContinuity(){
+        return _continuity;
+    }
+    /**
+     * Get the geometry used by the decoder.
+     * 
+     * @return LidarGeometry for this decoder
+     */
+    public LidarGeometry GetGeometry(){
+        return _geometry;
+    }
+    /**
+     * Set the threshold used to flag, at decode time, returns that deviate from the ground. Frames created after
+     * this call carry an anomaly bitset (see HDLFrame.getAnomalyMask()) which lets the ObstacleFinder skip cells
+     * that match the ground. In polar mode the deviation is taken against the calibration frame, so only frames
+     * started once the decoder is calibrated carry a mask.
+     * 
+     * @param tolerance Deviation, in meters, needed to flag a return. NaN disables flagging.
+     * @param groundRef Ground reference, in meters, used in point cloud mode
+     */
+    public void SetAnomalyThreshold(double tolerance, double groundRef){
+        _anomalyTolerance = tolerance;
+        _groundRef = groundRef;
+        //Current frame can be replaced right away if nothing has been added to it yet
+        if(_frame.number_of_azimuths == 0){
+            _frame = newFrame();
+        }
+    }
+    /**
+     * Enable or disable sparse frames. Once the decoder is calibrated and an anomaly threshold has been set
+     * (see SetAnomalyThreshold()), new frames will be HDLSparseFrames which discard every return matching the
+     * calibration frame. Only supported in polar mode; ignored when generating point clouds.
+     * 
+     * @param sparse True to create sparse frames
+     */
+    public void SetSparseMode(boolean sparse){
+        _sparseMode = sparse;
+        if(_frame.number_of_azimuths == 0){
+            _frame = newFrame();
+        }
+    }
+    /**
+     * Add a listener fed with every point decoded, in the robot's frame. Points are only produced in point cloud
+     * mode, and calibration data is never fed to listeners.
+     * 
+     * @param listener PointListener to feed
+     */
+    public synchronized void AddPointListener(PointListener listener){
+        PointListener[] listeners = Arrays.copyOf(_pointListeners, _pointListeners.length + 1);
+        listeners[_pointListeners.length] = listener;
+        _pointListeners = listeners;
+    }
+    /**
+     * Stop feeding points to a listener.
+     * 
+     * @param listener PointListener added through AddPointListener()
+     */
+    public synchronized void RemovePointListener(PointListener listener){
+        PointListener[] listeners = new PointListener[_pointListeners.length];
+        int count = 0;
+        for(PointListener l : _pointListeners){
+            if(l != listener){
+                listeners[count++] = l;
+            }
+        }
+        _pointListeners = Arrays.copyOf(listeners, count);
+    }
+    /**
+     * Restrict decoding to a field of view. Blocks whose azimuths fall outside of it are rejected from their header,
+     * before any laser return is read, and frames created after this call only allocate storage for the field of view.
+     * Azimuths are the same ones stored in frames (i.e. after applying the lidar's rotation angle). The range wraps
+     * arround if startAzimuth is greater than endAzimuth. Use SetFieldOfView(0, 36000) for a full view.
+     * 
+     * @param startAzimuth First azimuth angle (degrees * 100) inside the field of view
+     * @param endAzimuth Azimuth angle (degrees * 100) at which the field of view ends (exclusive)
+     */
+    public void SetFieldOfView(int startAzimuth, int endAzimuth){
+        SetFieldOfView(startAzimuth, endAzimuth, null);
+    }
+    /**
+     * Restrict decoding to a field of view and a subset of lasers. See SetFieldOfView(startAzimuth, endAzimuth).
+     * 
+     * @param startAzimuth First azimuth angle (degrees * 100) inside the field of view
+     * @param endAzimuth Azimuth angle (degrees * 100) at which the field of view ends (exclusive)
+     * @param laserIDs Lasers to decode. NULL to decode all of them.
+     */
+    public void SetFieldOfView(int startAzimuth, int endAzimuth, int[] laserIDs){
+        //Equal start and end (mod 36000) means a full view
+        int span = (((endAzimuth - startAzimuth) % 36000) + 36000) % 36000;
+        _fovOrigin = ((startAzimuth % 36000) + 36000) % 36000;
+        _fovSpan = (span == 0)? 36000 : span;
+        _fovLaserMask = 0xFFFF;
+        if(laserIDs != null){
+            _fovLaserMask = 0;
+            for(int laserID : laserIDs){
+                if(laserID >= 0 && laserID < Constants.HDL_LASER_PER_FIRING / 2){
+                    _fovLaserMask |= (1 << laserID);
+                }
+            }
+        }
+        if(_frame.number_of_azimuths == 0){
+            _frame = newFrame();
+        }
+    }
     /**
      * Decode a single packet and add to current frame.
      * 
@@ -572,13 +1297,41 @@ public class PacketDecoder {
      * @param data_length number of bytes within array
      */
     public void DecodePacket(byte[] data, int[] data_length){
+        DecodePacket(data, data_length, System.nanoTime());
+    }
+    /**
+     * Decode a single packet and add to current frame, stamping the frame with the time the packet arrived.
+     * 
+     * @param data raw byte array containing a packet coming straight from lidar
+     * @param data_length number of bytes within array
+     * @param arrivalNanos System.nanoTime() at which the packet was received
+     */
+    public void DecodePacket(byte[] data, int[] data_length, long arrivalNanos){
         //Make sure array is of the expected size
         if(data_length[0] != 1206){
             System.out.println("PacketDecoder: warning! data packet has abnormal size");
             return;
         }
+        LidarEvents.PacketDecoded event = new LidarEvents.PacketDecoded();
+        event.begin();
         //Create packet and add to frame
+        HDLFrame frame = _frame;
+        int blocksReceived = frame._blocksReceived;
+        int blocksMissing = frame._blocksMissing;
         ProcessesHDLPacket(data, data_length[0]);
+        if(frame._packetsDecoded++ == 0){
+            frame._firstPacketNanos = arrivalNanos;
+            frame._firstTimestamp = _continuity.getTimestamp();
+        }
+        frame._lastPacketNanos = arrivalNanos;
+        frame._lastTimestamp = _continuity.getTimestamp();
+        event.end();
+        if(event.shouldCommit()){
+            event.blocksInView = frame._blocksReceived - blocksReceived;
+            event.blocksMissing = frame._blocksMissing - blocksMissing;
+            event.sensorTimestamp = frame._lastTimestamp;
+            event.commit();
+        }
     }
     /**
      * Protected function to decode a single packet and add to current frame. Function can only be called once
@@ -588,12 +1341,33 @@ public class PacketDecoder {
      * @param data_length   Number of bytes within array
      */
     protected void ProcessesHDLPacket(byte[] data, int data_length){
-        //Create new HDLDataPacket with the raw data provided
-        HDLDataPacket dataPacket = new HDLDataPacket(data, data_length);
-        //Processes all blocks within HDLDataPacket
+        //Check packet follows the previous one and account for whatever got lost in between
+        int missingBlocks = _continuity.update(data);
+        _frame._packetsMissing += _continuity.getLastPacketsMissing();
+        if(missingBlocks > 0){
+            double step = _continuity.getAzimuthStep();
+            for(int block = 1; block <= missingBlocks; block++){
+                int rawAzimuth = (int) java.lang.Math.round(_continuity.getGapStart() + block * step) % 36000;
+                if(_inFieldOfView(_geometry.toFrameAzimuth(rawAzimuth))){
+                    _frame._blocksMissing++;
+                }
+            }
+        }
+        //Processes all blocks within packet
         for(int BlockID = 0; BlockID < Constants.HDL_FIRING_PER_PKT; ++BlockID){
-            
-            HDLFiringData firingData = dataPacket.getFiringData(BlockID);
+            int offset = BlockID * Constants.HDL_NUM_BYTES_PER_BLOCK;
+            //Read azimuth straight from block header (LSB first) so blocks outside the field of view are rejected before any other work
+            int blockAzimuth = ((data[offset + 3] & 0xFF) << 8) | (data[offset + 2] & 0xFF);
+            //Add slight azimuth drift for second firing sequence (all lasers fired twice for a single azimuth angle)
+            int firstAzimuth = _geometry.toFrameAzimuth(blockAzimuth);
+            int secondAzimuth = _geometry.toFrameAzimuth((blockAzimuth + 10) % 36000);
+            boolean firstInView = _inFieldOfView(firstAzimuth);
+            boolean secondInView = _inFieldOfView(secondAzimuth);
+            if(!firstInView && !secondInView){
+                continue;
+            }
+            _frame._blocksReceived++;
+            HDLFiringData firingData = new HDLFiringData(Arrays.copyOfRange(data, offset, offset + Constants.HDL_NUM_BYTES_PER_BLOCK), Constants.HDL_NUM_BYTES_PER_BLOCK);
             /**
              * Uncomment this code out if you wish to split frames once the lidar loops back arround
              *  if(firingData.getAzimuthAngle() < _last_azimuth){
@@ -604,15 +1378,40 @@ public class PacketDecoder {
              */
             //Processes all laser returns within each block
             for(int laserID = 0; laserID < Constants.HDL_LASER_PER_FIRING; laserID++){
-                //Add slight azimuth drift if return comes from second firing sequence (all lasers fired twice for a single azimuth angle)
-                int az = (laserID >= 16)? (firingData.getAzimuthAngle() + 10) % 36000 : firingData.getAzimuthAngle();
-                //Perform signed modulus 36000 based on lidar's physical rotation angle
-                int temp = Constants.LIDAR_ROTATION_ANGLE - az;
-                int azimuth = (temp < 0) ? (36000 - (java.lang.Math.abs(temp) % 36000) ) % 36000: (temp % 36000);
-                PushFringData(laserID % 16, azimuth, firingData.getLaserReturn(laserID), false);
+                boolean secondFiring = (laserID >= 16);
+                if(!(secondFiring? secondInView : firstInView) || (_fovLaserMask & (1 << (laserID % 16))) == 0){
+                    continue;
+                }
+                PushFringData(laserID % 16, secondFiring? secondAzimuth : firstAzimuth, firingData.getLaserReturn(laserID), false);
             }
         }
     }
+    /**
+     * Get the calibration distance for a laser and azimuth. Firing azimuths drift from one rotation to the next, so most
+     * returns miss the calibration frame's samples; the dense table built from it (once per calibration) answers those
+     * without interpolating on every return.
+     * 
+     * @param laserID Laser of the return
+     * @param azimuth Azimuth angle of the return
+     * @return Distance, in meters, a flat surface is at
+     */
+    private double _calibrationDistance(int laserID, int azimuth){
+        double[][] table = _calibrationDistances;
+        if(table == null){
+            table = _calibrationFrame._denseDistances();
+            _calibrationDistances = table;
+        }
+        return table[laserID][azimuth];
+    }
+    /**
+     * Check if an azimuth is inside the decoder's field of view.
+     * 
+     * @param azimuth Azimuth angle used by frames
+     * @return True if azimuth should be decoded
+     */
+    private boolean _inFieldOfView(int azimuth){
+        return ((azimuth - _fovOrigin + 36000) % 36000) < _fovSpan;
+    }
     /**
      * Push firing data to current frame or calibration frame. Generates point clod data if decoder configured to do so.
      * 
@@ -625,10 +1424,16 @@ public class PacketDecoder {
         //Get all cosines and sines needed to perform point cloud calculations
         double cosAzimuth = Az_cos_lookup_table[azimuth];
         double sinAzimuth = Az_sin_lookup_table[azimuth];
-        double cosElevation = El_cos_lookup_table[laserID][0];
-        double sinElevation = El_sin_lookup_table[laserID][0];
+        double cosElevation = _geometry.getElevationCos(laserID);
+        double sinElevation = _geometry.getElevationSin(laserID);
         //Get distance in meters based on lidar's resolution
         double distance_meters = laserReturn.getDistance() * Constants.LIDAR_RESOLUTION_M;
+        //Sparse frames only need the deviation from the calibration frame
+        if(!isCalibrationData && _frame instanceof HDLSparseFrame){
+            double deviation = distance_meters - _calibrationDistance(laserID, azimuth);
+            ((HDLSparseFrame) _frame).addReturn(laserID, azimuth, distance_meters, deviation);
+            return;
+        }
         double X = 0.0, Y = 0.0, Z = 0.0, xy_plane_projection = 0.0;
         //Perform point cloud calculations if decoder configured to do so
         if(_generatePointCloud){
@@ -643,7 +1448,7 @@ public class PacketDecoder {
             if(_calibrationFrame.getPoint(laserID, azimuth) != null){
                 Z += -(_calibrationFrame.getPoint(laserID, azimuth)[2]);
             }else{//If not avalible, use lidar height to estimate lidar's height at the current azimuth.
-                Z += Lidar_height_map[azimuth];
+                Z += _geometry.getHeightAt(azimuth);
             }
         }
 
@@ -655,6 +1460,21 @@ public class PacketDecoder {
         }else{//Add to regular frame if not
             _frame.addPoint(point, laserID, azimuth);
             _frame.addDistance(distance_meters, laserID, azimuth);
+            //Returns with no echo (distance 0) are not points, they would all land on the sensor itself
+            if(_generatePointCloud && distance_meters > 0){
+                for(PointListener listener : _pointListeners){
+                    listener.point(laserID, azimuth, X + _geometry.getOffsetX(), Y + _geometry.getOffsetY(), Z);
+                }
+            }
+            //Flag return while it is at hand so analysis does not have to scan the whole frame
+            if(_frame._anomalyMask != null){
+                if(_generatePointCloud){
+                    _frame.setAnomaly(laserID, azimuth, java.lang.Math.abs(Z - _groundRef) > _anomalyTolerance);
+                }else if(_calibrationFrame.number_of_azimuths != 0){
+                    double deviation = distance_meters - _calibrationDistance(laserID, azimuth);
+                    _frame.setAnomaly(laserID, azimuth, java.lang.Math.abs(deviation) > _anomalyTolerance);
+                }
+            }
         }
     }
     /**
@@ -674,12 +1494,21 @@ public class PacketDecoder {
             //Processes all laser returns within block
             for(int laserID = 0; laserID < Constants.HDL_LASER_PER_FIRING; laserID++){
                 int az = (laserID >= 16)? (firingData.getAzimuthAngle() + 10) % 36000 : firingData.getAzimuthAngle();
-                int temp = 9000 - az;
-                int azimuth = (temp < 0) ? (36000 - (java.lang.Math.abs(temp) % 36000) ) % 36000: (temp % 36000);
+                int azimuth = _geometry.toFrameAzimuth(az);
                 //Push calibration data to calibration frame
                 PushFringData(laserID % 16, azimuth, firingData.getLaserReturn(laserID), true);
             }
         }
+        _calibrationDistances = null;
+        //Returns already in the current frame were flagged against another calibration (or none), so its mask no longer holds
+        if(!_generatePointCloud && !(_frame instanceof HDLSparseFrame)){
+            if(_frame.number_of_azimuths == 0){
+                _frame = newFrame();
+            }else{
+                _frame._anomalyMask = null;
+                _frame._anomalyTolerance = Double.NaN;
+            }
+        }
     }
     /**
      * Function used to load factory specified corrections.
@@ -712,7 +1541,19 @@ public class PacketDecoder {
     public HDLFrame GetLatestFrame(int numberOfAzimuthsInFrame){
         if(_frame.number_of_azimuths > numberOfAzimuthsInFrame){
             HDLFrame temp = _frame;
-            _frame = new HDLFrame();
+            _frame = newFrame();
+            for(PointListener listener : _pointListeners){
+                listener.frameCompleted();
+            }
+            LidarEvents.FrameCompleted event = new LidarEvents.FrameCompleted();
+            if(event.shouldCommit()){
+                event.azimuths = temp.number_of_azimuths;
+                event.packets = temp._packetsDecoded;
+                event.packetsMissing = temp._packetsMissing;
+                event.completeness = temp.getCompleteness();
+                event.assemblyTime = temp._lastPacketNanos - temp._firstPacketNanos;
+                event.commit();
+            }
             return temp;
         }else{
             return null;
@@ -734,37 +1575,37 @@ public class PacketDecoder {
      */
     protected void UnloadData(){
         this._last_azimuth = 0;
-        this._frame = new HDLFrame();
-        this._frames.clear();
         this._calibrationFrame = new HDLFrame();
+        this._calibrationDistances = null;
+        this._frame = newFrame();
+        this._frames.clear();
     }
     /**
-     * Initialize all tables used in point cloud calculations. Lidar height is estimated by
-     * taking the point cloud Z values for the two outer most azimuth angles, and linearly 
-     * interpolate each one with the center-most azimuth.
+     * Initialize the static tables kept for code written against the default geometry (Lidar_height_map and the
+     * elevation tables). Lidar height is estimated by taking the point cloud Z values for the two outer most
+     * azimuth angles, and linearly interpolate each one with the center-most azimuth. Decoders use their own
+     * LidarGeometry for calculations.
      */
     protected void InitTables(){
-        //Create azimuth cosine and sin lookup tables.
+        synchronized(PacketDecoder.class){
+            if(_tablesInitialized){
+                return;
+            }
+            _tablesInitialized = true;
+        }
         //Create lidar_height map estimation.
         for(int i = 0; i < Constants.HDL_NUM_ROT_ANGLES; i++){
-            double rad = this.HDL_Grabber_toRadians(i / 100.0);
-            Az_cos_lookup_table[i] = java.lang.Math.cos(rad);
-            Az_sin_lookup_table[i] = java.lang.Math.sin(rad);
-            if(i < 9000){
-                Lidar_height_map[i] = (0.00002285714285714286*i + 0.383);
-            }else{
-               Lidar_height_map[i] = -0.000037142857142857143*(i - 36000) + 0.383;
-            }
+            Lidar_height_map[i] = LidarGeometry.DEFAULT.getHeightAt(i);
         }
         //Create elevation lookup tables
         for(int i = 0; i < Constants.HDL_LASER_PER_FIRING / 2; i++){
             for(int az = 0; az < Constants.HDL_NUM_ROT_ANGLES; az++){
                int elAngle = elAngle_lookup_table[i];
                int angleDrift;
-               if(az < 9000){
-                  angleDrift = (int) (-0.16*az + 3760);
+               if(az < Constants.LIDAR_ROTATION_ANGLE){
+                  angleDrift = (int) (-0.16*az + Constants.LIDAR_TILT_ANGLE);
                }else{
-                  angleDrift = (int) (0.16*(az - 36000) + 3760);
+                  angleDrift = (int) (0.16*(az - 36000) + Constants.LIDAR_TILT_ANGLE);
                }
                elAngle -= angleDrift;
                double rad = this.HDL_Grabber_toRadians(elAngle / 100.0);
@@ -789,7 +1630,22 @@ public class PacketDecoder {
             _frames.removeFirst();
         }
         _frames.addLast(_frame);
-        _frame = new HDLFrame();
+        _frame = newFrame();
+    }
+    /**
+     * Create an empty frame configured with the decoder's current anomaly threshold and field of view.
+     * 
+     * @return New HDLFrame
+     */
+    protected HDLFrame newFrame(){
+        boolean calibrated = _calibrationFrame.number_of_azimuths != 0;
+        //Sparse frames need the calibration frame to decide what to discard
+        if(_sparseMode && !_generatePointCloud && !Double.isNaN(_anomalyTolerance) && calibrated){
+            return new HDLSparseFrame(_anomalyTolerance, _fovOrigin, _fovSpan, _fovLaserMask);
+        }
+        //Polar returns can only be flagged against a calibration, so frames started without one carry no mask
+        double tolerance = (_generatePointCloud || calibrated)? _anomalyTolerance : Double.NaN;
+        return new HDLFrame(tolerance, _groundRef, _fovOrigin, _fovSpan, _fovLaserMask);
     }
     /**
      * Convert angle in degrees to radians
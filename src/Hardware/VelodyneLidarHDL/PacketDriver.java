@@ -2,23 +2,28 @@
 // Open Source Software; you can modify and/or share it
 package Hardware.VelodyneLidarHDL;
 
+import Diagnostics.LidarEvents;
+
 import java.net.DatagramSocket;
 import java.io.IOException;
 import java.net.DatagramPacket;
+import java.net.SocketTimeoutException;
 
 /**
- * PacketDriver implements the dataGather interface for retriving packets from an RS32 connection
+ * PacketDriver implements the PacketSource interface for retriving packets from an RS32 connection
  *
  * <p>The PacketDriver is intended to be a subclass for a user implementing the VelodyneLidar Class
  *
  * <p>getPacket() function gets called by VelodyneLidar class to retreive the latest data packet sent by lidar.
  */
-public class PacketDriver{
+public class PacketDriver implements PacketSource{
 
     private int _port;
     private byte[] _rx_buffer = new byte[1206];
     private DatagramSocket _socket;
     private DatagramPacket _packet;
+    public static final int EVENT_BATCH_SIZE = 75;    /**<Packets per PacketBatchReceived event (~0.1 s of packets) */
+    private LidarEvents.PacketBatchReceived _batch;  /**<Event for the batch being received, NULL between batches */
 
     public PacketDriver(){
 
@@ -29,6 +34,7 @@ public class PacketDriver{
      * @param[in] port The port number to connect to.
      */
     public PacketDriver(int port){
+        this._port = port;
         //Attempt to bind to provided socket port number
         try{
             this._socket = new DatagramSocket(port);
@@ -52,8 +58,34 @@ public class PacketDriver{
      */
     @Override
     public void finalize(){
-        _socket.close();
-        System.out.println("Closed Velodyne Socket!");
+        close();
+    }
+    /**
+     * Close the binded socket.
+     */
+    @Override
+    public void close(){
+        if(_socket != null && !_socket.isClosed()){
+            _socket.close();
+            System.out.println("Closed Velodyne Socket!");
+        }
+    }
+    /**
+     * Set the longest GetPacket() blocks waiting for a packet. Without it, GetPacket() blocks forever if the lidar stops
+     * sending.
+     *
+     * @param millis Timeout in milliseconds, 0 to block for as long as it takes
+     */
+    @Override
+    public void setReceiveTimeout(int millis){
+        if(_socket == null){
+            return;
+        }
+        try{
+            _socket.setSoTimeout(millis);
+        }catch(IOException e){
+            System.out.println("PacketDriver: Error setting timeout - " + e.getMessage() + ".");
+        }
     }
     /**
      * Initialize PacketDriver if class constructed using default constructor
@@ -85,18 +117,49 @@ public class PacketDriver{
      *
      * @param[out] data Byte buffer to receive packet in
      * @param[in] data_length size for provided data buffer
+     * @return True if a packet was received, false on error, timeout or once the socket is closed
      */
+    @Override
     public boolean GetPacket(byte[] data, int[] data_length){
+        if(_socket == null || _socket.isClosed()){
+            return (false); //Never binded to socket or already closed
+        }
+        if(_batch == null){
+            _batch = new LidarEvents.PacketBatchReceived();
+            _batch.begin();
+        }
         try{ //Attempt to receive packet from socket connection
             _socket.receive(_packet);
             _rx_buffer = _packet.getData();
             System.arraycopy(_rx_buffer, 0, data, 0, data_length[0]);
+            _batch.packets++;
+            _batch.bytes += _packet.getLength();
             return (true); //Successfully retreived data packet
+        }catch(SocketTimeoutException e){
+            //Nothing arrived in time, caller decides whether to keep waiting
+            return (false);
         }catch(IOException e){
             //Failed to receive packet
             System.out.println("PacketDriver: Error receiving packet - " + e.getMessage() + ".");
+            _batch.errors++;
             return (false);
+        }finally{
+            _commitBatch();
+        }
+    }
+    /**
+     * Emit the PacketBatchReceived event once enough packets (or errors) have been seen.
+     */
+    private void _commitBatch(){
+        if(_batch.packets + _batch.errors < EVENT_BATCH_SIZE){
+            return;
+        }
+        _batch.end();
+        if(_batch.shouldCommit()){
+            _batch.port = _port;
+            _batch.commit();
         }
+        _batch = null;
     }
 
 }
\ No newline at end of file
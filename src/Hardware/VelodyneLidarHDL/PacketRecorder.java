@@ -0,0 +1,234 @@
+// Author: Ivan Ramos, <ivan-1081@hotmail.es>
+// Open Source Software; you can modify and/or share it
+package Hardware.VelodyneLidarHDL;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+/**
+ * PacketRecorder wraps another PacketSource and tees every packet it hands out into a log on disk, so data captured on
+ * the field can later be replayed with FileReplayPacketSource. Each record holds the packet's arrival System.nanoTime()
+ * followed by the raw packet.
+ *
+ * <p>The receive thread only copies the packet into a preallocated ring buffer; a separate writer thread drains the ring
+ * into a preallocated, memory-mapped log file. Nothing is allocated and nothing blocks on the receive thread. If the
+ * writer falls behind (slow disk) and the ring fills up, packets are dropped from the log and counted instead.
+ * <p>Logs rotate once they reach their maximum size: prefix-0000.vlprec, prefix-0001.vlprec, ...
+ * <p>Log layout: MAGIC (8 bytes), record size (4 bytes), packet size (4 bytes), then one record after the other.
+ */
+public class PacketRecorder implements PacketSource {
+
+    public static final long MAGIC = 0x564C50313652454CL;  /**<"VLP16REL" at the start of every log */
+    public static final int HEADER_SIZE = 16;               /**<Bytes before the first record */
+    public static final int PACKET_SIZE = 1206;             /**<Size of a VLP-16 data packet */
+    public static final int RECORD_SIZE = 8 + PACKET_SIZE;  /**<Arrival nanoTime followed by the packet */
+    private static final long WRITER_IDLE_NANOS = 100000;   /**<Time the writer sleeps when the ring is empty */
+
+    private final PacketSource _source;         /**<Source packets are read from */
+    private final String _filePrefix;
+    private final long _maxFileSize;            /**<Size logs are preallocated to before rotating */
+    private final byte[] _ring;                 /**<Packets waiting to be written, one PACKET_SIZE slot each */
+    private final long[] _ringNanos;            /**<Arrival time of each slot */
+    private final int _ringMask;
+    private final AtomicLong _head = new AtomicLong(0);    /**<Next slot to be written to disk (writer thread only) */
+    private final AtomicLong _tail = new AtomicLong(0);    /**<Next slot to be filled (receive thread only) */
+    private volatile long _packetsDropped = 0;  /**<Only updated by the receive thread */
+    private volatile long _packetsRecorded = 0; /**<Only updated by the writer thread */
+    private volatile long _packetsLost = 0;     /**<Packets the writer could not write to disk. Only updated by the writer thread */
+    private boolean _diskFailed = false;        /**<Set once a log could not be created. Writer stops trying */
+    private volatile boolean _running = true;
+    private final Thread _writer;
+    private RandomAccessFile _file;             /**<Log currently being written */
+    private MappedByteBuffer _log;
+    private int _fileIndex = 0;
+    /**
+     * PacketRecorder constructor. Starts the writer thread right away.
+     *
+     * @param source Source packets are read from
+     * @param filePrefix Path and prefix of the logs
+     * @param maxFileSize Size, in bytes, of each log before rotating
+     * @param ringCapacity Number of packets the ring can hold (rounded up to a power of two). 4096 is ~5 s of packets
+     */
+    public PacketRecorder(PacketSource source, String filePrefix, long maxFileSize, int ringCapacity){
+        _source = source;
+        _filePrefix = filePrefix;
+        _maxFileSize = java.lang.Math.max(maxFileSize, HEADER_SIZE + RECORD_SIZE);
+        int capacity = Integer.highestOneBit(java.lang.Math.max(2, ringCapacity) - 1) << 1;
+        _ring = new byte[capacity * PACKET_SIZE];
+        _ringNanos = new long[capacity];
+        _ringMask = capacity - 1;
+        _writer = new Thread(new Runnable(){
+            public void run(){
+                _drain();
+            }
+        }, "PacketRecorder");
+        _writer.setDaemon(true);
+        _writer.start();
+    }
+    /**
+     * Get a packet from the wrapped source and record it.
+     *
+     * @param data Byte buffer to receive packet in
+     * @param data_length Size for provided data buffer
+     * @return Same as the wrapped source
+     */
+    @Override
+    public boolean GetPacket(byte[] data, int[] data_length){
+        if(!_source.GetPacket(data, data_length)){
+            return false;
+        }
+        record(data, System.nanoTime());
+        return true;
+    }
+
+    @Override
+    public void setReceiveTimeout(int millis){
+        _source.setReceiveTimeout(millis);
+    }
+    /**
+     * Queue a packet to be written to the log. Must always be called from the same thread. Never blocks.
+     *
+     * @param data Raw packet
+     * @param arrivalNanos System.nanoTime() at which the packet arrived
+     * @return False if the ring was full and the packet got dropped
+     */
+    public boolean record(byte[] data, long arrivalNanos){
+        long tail = _tail.get();
+        if(!_running || tail - _head.get() > _ringMask){
+            _packetsDropped++;
+            return false;
+        }
+        int slot = (int) (tail & _ringMask);
+        System.arraycopy(data, 0, _ring, slot * PACKET_SIZE, PACKET_SIZE);
+        _ringNanos[slot] = arrivalNanos;
+        _tail.lazySet(tail + 1);
+        return true;
+    }
+    /**
+     * Write out every queued packet, stop the writer and trim the last log. Wrapped source is left open. Call once
+     * packets are no longer being read through this recorder.
+     */
+    public void stop(){
+        _running = false;
+        try{
+            _writer.join();
+        }catch(InterruptedException ie){
+            Thread.currentThread().interrupt();
+        }
+    }
+    /**
+     * Stop recording and close the wrapped source.
+     */
+    @Override
+    public void close(){
+        stop();
+        _source.close();
+    }
+
+    public PacketSource getSource(){
+        return _source;
+    }
+
+    public long getPacketsRecorded(){
+        return _packetsRecorded;
+    }
+    /**
+     * Get the number of packets that did not make it to the log, either because the ring was full or because the log
+     * could not be written.
+     *
+     * @return Number of packets missing from the log
+     */
+    public long getPacketsDropped(){
+        return _packetsDropped + _packetsLost;
+    }
+
+    public int getNumberOfFiles(){
+        return _fileIndex;
+    }
+    /**
+     * Writer loop. Moves packets from the ring to the log until stopped and the ring is empty.
+     */
+    private void _drain(){
+        long head = _head.get();
+        while(true){
+            long tail = _tail.get();
+            if(head == tail){
+                if(!_running){
+                    break;
+                }
+                LockSupport.parkNanos(WRITER_IDLE_NANOS);
+                continue;
+            }
+            for(; head < tail; head++){
+                int slot = (int) (head & _ringMask);
+                if(_isWritable()){
+                    _log.putLong(_ringNanos[slot]);
+                    _log.put(_ring, slot * PACKET_SIZE, PACKET_SIZE);
+                    _packetsRecorded++;
+                }else{
+                    _packetsLost++;
+                }
+                //Hand slot back to the receive thread
+                _head.lazySet(head + 1);
+            }
+        }
+        _closeLog();
+    }
+    /**
+     * Make sure there is room for one more record, rotating logs if needed.
+     *
+     * @return False if no log can be written to
+     */
+    private boolean _isWritable(){
+        if(_diskFailed){
+            return false;
+        }
+        if(_log == null || _log.remaining() < RECORD_SIZE){
+            _diskFailed = !_rotate();
+        }
+        return !_diskFailed;
+    }
+    /**
+     * Close the current log and open the next one.
+     *
+     * @return False if the new log could not be created
+     */
+    private boolean _rotate(){
+        _closeLog();
+        String name = String.format("%s-%04d.vlprec", _filePrefix, _fileIndex);
+        try{
+            _file = new RandomAccessFile(name, "rw");
+            _file.setLength(_maxFileSize);
+            _log = _file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, _maxFileSize);
+            _log.putLong(MAGIC);
+            _log.putInt(RECORD_SIZE);
+            _log.putInt(PACKET_SIZE);
+            _fileIndex++;
+            return true;
+        }catch(IOException e){
+            System.out.println("PacketRecorder: Error creating log - " + e.getMessage() + ".");
+            _closeLog();
+            return false;
+        }
+    }
+    /**
+     * Trim the current log to the records written and close it.
+     */
+    private void _closeLog(){
+        if(_file == null){
+            return;
+        }
+        try{
+            long written = (_log != null)? _log.position() : 0;
+            _log = null;
+            _file.setLength(written);
+            _file.close();
+        }catch(IOException e){
+            System.out.println("PacketRecorder: Error closing log - " + e.getMessage() + ".");
+        }
+        _file = null;
+    }
+}
@@ -0,0 +1,34 @@
+// Author: Ivan Ramos, <ivan-1081@hotmail.es>
+// Open Source Software; you can modify and/or share it
+package Hardware.VelodyneLidarHDL;
+
+/**
+ * PacketSource interface implemented by anything able to hand raw 1206-byte VLP-16 packets to a VelodyneLidar.
+ *
+ * <p>PacketDriver reads packets from the lidar's socket.
+ * <p>FileReplayPacketSource replays a capture file at the recorded pace or as fast as possible.
+ * <p>LoopbackPacketSource streams a capture through a local UDP socket, so the whole socket path gets exercised.
+ */
+public interface PacketSource {
+    /**
+     * Get a single packet.
+     *
+     * @param data Byte buffer to receive packet in
+     * @param data_length Size for provided data buffer
+     * @return True if a packet was placed in data, false if none could be retrieved
+     */
+    public boolean GetPacket(byte[] data, int[] data_length);
+    /**
+     * Set the longest GetPacket() may block waiting for a packet before returning false. Sources that never block
+     * for long (files, generators) ignore it.
+     *
+     * @param millis Timeout in milliseconds, 0 to block for as long as it takes
+     */
+    public default void setReceiveTimeout(int millis){
+
+    }
+    /**
+     * Release any resource (socket, file, thread) held by the source.
+     */
+    public void close();
+}
@@ -2,33 +2,73 @@
 // Open Source Software; you can modify and/or share it
 package Hardware.VelodyneLidarHDL;
 
+import Diagnostics.LidarEvents;
+import Diagnostics.PipelineMetrics;
+import TerrainAnalysis.AnomalyPersistenceFilter;
+import TerrainAnalysis.ElevationGrid;
+import TerrainAnalysis.FreeSpaceHistogram;
 import TerrainAnalysis.Obstacle;
 import TerrainAnalysis.ObstacleFinder;
+import TerrainAnalysis.OccupancyGrid;
+import TerrainAnalysis.SceneCache;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
 /**
- * VelodyneLidar class used to wrap PacketDriver, PacketDecoder, and ObstacleFinder classes. This class serves 
+ * VelodyneLidar class used to wrap a PacketSource (usually a PacketDriver), PacketDecoder, and ObstacleFinder classes. This class serves 
  * as the top-most abstraction layer for using the Velodyne VLP-16 for simple obtacle detection and avoidance.
  * 
  * <p>calibrateLidar() function gets called if there is a file containing the raw packet data of a flat surface.
- * <p>scanFullFieldOfView() function gets called to perform a full FOV scan and produce a single HDLFrame.
+ * <p>scanFullFieldOfView() function gets called to perform a full FOV scan and produce a single HDLFrame. Scans never
+ * take longer than their time budget (see setScanBudget()); if the lidar stops sending, the scan returns a partial
+ * frame or times out instead of hanging.
  * <p>getClosetObstacle() fucntion is used to used the latest scan, look in it for possible obstacles, and return closest.
  * <p>clearAllDataBuffers() function is used to reset lidar (calibration frame is kept).
  */
 public class VelodyneLidar {
+    /**
+     * Outcome of a scan.
+     */
+    public static enum ScanStatus{
+        COMPLETE,    /**<Frame holds the number of azimuths required */
+        PARTIAL,     /**<Budget ran out. Frame holds whatever was decoded until then */
+        TIMEOUT,     /**<Budget ran out before anything was decoded. Latest frame is NULL */
+        INTERRUPTED, /**<Thread got interrupted. Latest frame is NULL and the interrupt flag is left set */
+        FAILED;      /**<Scan threw an exception. Only reported by managers, for lidars left out of a reply */
+    }
 
-    private static PacketDecoder.HDLFrame _latestFrame; /**<Last HDLFrame created from a full FOV scan */
-    private static PacketDriver _driver;                /**<PacketDriver used to extract packets from lidar socket */
-    private static PacketDecoder _decoder;              /**<PacketDecoder used to produce HDLFrames from packets provided by _driver */
-    private static ObstacleFinder _obstacleFinder;      /**<ObstacleFinder used to extract any posible obstacles within _latesFrame */
-    private static boolean _isCalibrated = false;       /**<Flag to indicate if a clalibration frame has been fed to _decoder */
-    private static boolean _generatePointCloud;         /**<Flag to indicate if _decoder is performing point-cloud calculations */
-    private static int _number_azimuths_in_frame;       /**<Number of azimuths required to be sampled before creating and anlysig a HDLFrame */
+    public static final long DEFAULT_SCAN_BUDGET_MILLIS = 2000;   /**<Default time budget of a scan */
+    private static final int MAX_RECEIVE_TIMEOUT_MILLIS = 50;     /**<Longest a single receive may block, so interrupts are noticed */
+    private static final long IDLE_NANOS = 1000000;               /**<Time to back off when the source has nothing to give */
+
+    private PacketDecoder.HDLFrame _latestFrame; /**<Last HDLFrame created from a full FOV scan */
+    private PacketSource _source;                /**<PacketSource used to extract packets (lidar socket, capture file, ...) */
+    private PacketDecoder _decoder;              /**<PacketDecoder used to produce HDLFrames from packets provided by _source */
+    private ObstacleFinder _obstacleFinder;      /**<ObstacleFinder used to extract any posible obstacles within _latesFrame */
+    private ElevationGrid _elevationGrid;        /**<ElevationGrid fed by _decoder, NULL if none */
+    private OccupancyGrid _occupancyGrid;        /**<OccupancyGrid fed by _decoder, NULL if none */
+    private FreeSpaceHistogram _freeSpace;       /**<FreeSpaceHistogram fed with every frame, NULL if none */
+    private SceneCache _sceneCache;              /**<SceneCache checked before searching a frame, NULL if none */
+    private long _lastAnalysisAgeNanos = 0;      /**<Age of the cached result handed out by the last analysis, 0 if searched */
+    private boolean _isCalibrated = false;       /**<Flag to indicate if a clalibration frame has been fed to _decoder */
+    private boolean _generatePointCloud;         /**<Flag to indicate if _decoder is performing point-cloud calculations */
+    private int _number_azimuths_in_frame;       /**<Number of azimuths required to be sampled before creating and anlysig a HDLFrame */
+    private int _port = -1;                      /**<Port the lidar's packets are received on, -1 if not read from a socket */
+    private String _calibrationFile;             /**<File containing the raw packets of a flat surface */
+    private final PipelineMetrics _metrics = new PipelineMetrics(); /**<Latency and throughput of every stage */
+    private double _minimumCompleteness = 0.0;   /**<Frames with a smaller fraction of their blocks are not analyzed */
+    private static final int MAX_HOLED_FRAMES_SKIPPED = 2; /**<Holed frames skipped in a row before analyzing one anyway */
+    private long _scanBudgetMillis = DEFAULT_SCAN_BUDGET_MILLIS; /**<Time budget of scans that are not given one */
+    private int _receiveTimeoutMillis = -1;      /**<Receive timeout currently set on _source, -1 if never set */
+    private volatile ScanStatus _lastScanStatus = ScanStatus.TIMEOUT; /**<Outcome of the last scan */
+    private long _analysisBudgetNanos = 0;       /**<Time budget of the obstacle search, 0 to search whole frames */
     /**
      * Main VelodyneLidar class intended to be used intandum with all the other classes in the package. It is the top-most
      * abstraction layer and as such careful consideration must be taken when providing the initializion parameters.
+     * Uses the default port, calibration file and geometry.
      * 
      * @param heightTolarence   Double to indicate at what height (in meters) to start checking for possible obstacles.
      * @param groundRef Double to idicate (in meters) what the lidar should consider to be ground (i.e. if 0.01 or 0.00 should be ground)
@@ -37,10 +77,51 @@ public class VelodyneLidar {
      * @param generatePointCloud    Flag to idicate if point cloud calculations should be performed. If not, then lidar uses polar cordinates to look for obstacles
      */
     public VelodyneLidar(double heightTolarence, double groundRef, int positiveHitsThreshold, int numberOfAzimuthsInFrame, boolean generatePointCloud){
-        _driver = new PacketDriver(Constants.PORT_NUMBER);
-        _decoder = new PacketDecoder(generatePointCloud);
+        // IMPORTANT: MAKE SURE TO REPLACE DIRECTORY WITH THE ONE FOR YOUR OWN SETUP
+        this(Constants.PORT_NUMBER, "/home/lvuser/CalibrationData/cal4.txt", LidarGeometry.DEFAULT,
+            heightTolarence, groundRef, positiveHitsThreshold, numberOfAzimuthsInFrame, generatePointCloud);
+    }
+    /**
+     * VelodyneLidar constructor for rigs with more than one lidar. Every instance keeps its own socket, calibration,
+     * geometry and ObstacleFinder, so each lidar must be configured to send its packets to a different port.
+     * 
+     * @param port Port the lidar sends its packets to
+     * @param calibrationFile File containing the raw packets of a flat surface (see calibrateLidar())
+     * @param geometry How the lidar is mounted (rotation, tilt and height)
+     * @param heightTolarence   Double to indicate at what height (in meters) to start checking for possible obstacles.
+     * @param groundRef Double to idicate (in meters) what the lidar should consider to be ground (i.e. if 0.01 or 0.00 should be ground)
+     * @param positiveHitsThreshold Number of laser returns indicating a possible obstacle needed to count as a Obstacle
+     * @param numberOfAzimuthsInFrame   Number of azimuths required to be sampled befre creating a HDLFrame
+     * @param generatePointCloud    Flag to idicate if point cloud calculations should be performed. If not, then lidar uses polar cordinates to look for obstacles
+     */
+    public VelodyneLidar(int port, String calibrationFile, LidarGeometry geometry, double heightTolarence, double groundRef,
+        int positiveHitsThreshold, int numberOfAzimuthsInFrame, boolean generatePointCloud){
+        this(new PacketDriver(port), calibrationFile, geometry, heightTolarence, groundRef, positiveHitsThreshold,
+            numberOfAzimuthsInFrame, generatePointCloud);
+        _port = port;
+    }
+    /**
+     * VelodyneLidar constructor for any PacketSource. Used to run without a lidar attached, e.g. replaying a capture
+     * with FileReplayPacketSource or streaming one through LoopbackPacketSource.
+     * 
+     * @param source Source of the raw packets
+     * @param calibrationFile File containing the raw packets of a flat surface (see calibrateLidar())
+     * @param geometry How the lidar is mounted (rotation, tilt and height)
+     * @param heightTolarence   Double to indicate at what height (in meters) to start checking for possible obstacles.
+     * @param groundRef Double to idicate (in meters) what the lidar should consider to be ground (i.e. if 0.01 or 0.00 should be ground)
+     * @param positiveHitsThreshold Number of laser returns indicating a possible obstacle needed to count as a Obstacle
+     * @param numberOfAzimuthsInFrame   Number of azimuths required to be sampled befre creating a HDLFrame
+     * @param generatePointCloud    Flag to idicate if point cloud calculations should be performed. If not, then lidar uses polar cordinates to look for obstacles
+     */
+    public VelodyneLidar(PacketSource source, String calibrationFile, LidarGeometry geometry, double heightTolarence, double groundRef,
+        int positiveHitsThreshold, int numberOfAzimuthsInFrame, boolean generatePointCloud){
+        _calibrationFile = calibrationFile;
+        _source = source;
+        _decoder = new PacketDecoder(generatePointCloud, geometry);
+        _decoder.SetAnomalyThreshold(heightTolarence, groundRef);
         _generatePointCloud = generatePointCloud;
         _obstacleFinder = new ObstacleFinder(heightTolarence, groundRef, positiveHitsThreshold);
+        _obstacleFinder.setMetrics(_metrics);
         _number_azimuths_in_frame = (numberOfAzimuthsInFrame > 350)? numberOfAzimuthsInFrame : 350; 
         scanFullFieldOfView();
     }
@@ -52,28 +133,122 @@ public class VelodyneLidar {
      * @return Flag indicating if Lidar was successfully calibrated or not.
      */
     public boolean calibrateLidar(){
-        // IMPORTANT: MAKE SURE TO REPLACE DIRECTORY WITH THE ONE FOR YOUR OWN SETUP
-        File file = new File("/home/lvuser/CalibrationData/cal4.txt");
+        LidarEvents.CalibrationLoaded event = new LidarEvents.CalibrationLoaded();
+        event.begin();
+        event.file = _calibrationFile;
+        File file = new File(_calibrationFile);
        
         byte[] bytes = readContentIntoByteArray(file);
         //If file not found, then return False
         if(bytes == null){
+            event.commit();
             return (_isCalibrated = false);
         }
         _isCalibrated = true;
 
         int[] length = {1206};
         //Push entire calibration file into calibration file
-        int num_packets_in_file = 5000;
         // IMPORTANT: MAKE SURE TO SPECIFY HOW MANY PACKETS WERE USED TO CREATE CALIBRATION FILE
+        int num_packets_in_file = java.lang.Math.min(5000, bytes.length / 1206);
         for(int i = 0; i < num_packets_in_file; i++){
             int offset = i * 1206;
             byte[] data = Arrays.copyOfRange(bytes, offset, offset + 1206);
             _decoder.addToCalibrationFrame(data, length);
         }
         bytes = null;
+        //Obstacles found against the old calibration no longer hold
+        if(_sceneCache != null){
+            _sceneCache.invalidate();
+        }
+        event.packets = num_packets_in_file;
+        event.success = true;
+        event.commit();
         return _isCalibrated;
     }
+    /**
+     * Get the port this lidar receives packets on.
+     * 
+     * @return Port number, -1 if packets do not come from a socket
+     */
+    public int getPort(){
+        return _port;
+    }
+    /**
+     * Get the last frame scanned by this lidar.
+     * 
+     * @return Latest HDLFrame, NULL if none has been scanned since the last clearAllDataBuffers()
+     */
+    public PacketDecoder.HDLFrame getLatestFrame(){
+        return _latestFrame;
+    }
+    /**
+     * Get the geometry used by this lidar.
+     * 
+     * @return LidarGeometry given at construction
+     */
+    public LidarGeometry getGeometry(){
+        return _decoder.GetGeometry();
+    }
+    /**
+     * Get the source packets are read from.
+     * 
+     * @return PacketSource given at construction
+     */
+    public PacketSource getPacketSource(){
+        return _source;
+    }
+    /**
+     * Start teeing every packet received into rotating logs on disk (see PacketRecorder). Recording never blocks
+     * scanning; packets are dropped from the log if the disk can not keep up.
+     * 
+     * @param filePrefix Path and prefix of the logs
+     * @param maxFileSize Size, in bytes, of each log before rotating
+     */
+    public void startRecording(String filePrefix, long maxFileSize){
+        if(!(_source instanceof PacketRecorder)){
+            _source = new PacketRecorder(_source, filePrefix, maxFileSize, 4096);
+        }
+    }
+    /**
+     * Stop recording and flush the last log.
+     * 
+     * @return PacketRecorder used (to read its counters), NULL if lidar was not recording
+     */
+    public PacketRecorder stopRecording(){
+        if(!(_source instanceof PacketRecorder)){
+            return null;
+        }
+        PacketRecorder recorder = (PacketRecorder) _source;
+        _source = recorder.getSource();
+        recorder.stop();
+        return recorder;
+    }
+    /**
+     * Get the latency histograms and counters of this lidar's pipeline.
+     * 
+     * @return PipelineMetrics updated by every scan and analysis
+     */
+    public PipelineMetrics getMetrics(){
+        return _metrics;
+    }
+    /**
+     * Print a compact line with this lidar's metrics every period.
+     * 
+     * @param periodMillis Time between lines in milliseconds, 0 or less to stop printing
+     */
+    public void logMetrics(long periodMillis){
+        if(periodMillis > 0){
+            _metrics.startPeriodicLog((_port >= 0)? "VelodyneLidar-" + _port : "VelodyneLidar", periodMillis);
+        }else{
+            _metrics.stopPeriodicLog();
+        }
+    }
+    /**
+     * Close the packet source (socket, capture file, ...). Lidar can not scan afterwards.
+     */
+    public void close(){
+        _source.close();
+    }
     /**
      * Change the number of azimuths required to create a frame. Number needs to be greater than 350.
      * @param num New number of azimuths required. Minimum number is 350.
@@ -84,45 +259,350 @@ public class VelodyneLidar {
         }
     }
     /**
-     * Scan a full FOV by sampling at least _number_azimuths_in_frame number of times.
+     * Restrict the lidar to a field of view. Firing blocks outside of it are dropped before being decoded, so decode
+     * work and frame memory scale with the size of the field of view. Azimuths are given in the lidar's frame
+     * (after applying its rotation angle) in degrees * 100 and wrap arround if startAzimuth is greater than endAzimuth.
+     * 
+     * @param startAzimuth First azimuth inside the field of view
+     * @param endAzimuth Azimuth at which the field of view ends (exclusive). Equal to startAzimuth for a full view
+     * @param laserIDs Lasers to keep, NULL to keep all of them
+     */
+    public void setFieldOfView(int startAzimuth, int endAzimuth, int[] laserIDs){
+        _decoder.SetFieldOfView(startAzimuth, endAzimuth, laserIDs);
+        _latestFrame = null;
+    }
+    /**
+     * Restrict the lidar to an azimuth range. See setFieldOfView(startAzimuth, endAzimuth, laserIDs).
+     * 
+     * @param startAzimuth First azimuth inside the field of view
+     * @param endAzimuth Azimuth at which the field of view ends (exclusive)
      */
-    public void scanFullFieldOfView(){
+    public void setFieldOfView(int startAzimuth, int endAzimuth){
+        setFieldOfView(startAzimuth, endAzimuth, null);
+    }
+    /**
+     * Set how complete a frame has to be to be analyzed. Frames that lost too many packets on their way in are thrown
+     * away and a new one is scanned in their place (at most MAX_HOLED_FRAMES_SKIPPED in a row, so a lossy link still
+     * gets analyzed). Every rescan gets its own scan budget.
+     * 
+     * @param completeness Fraction (0 - 1) of the blocks inside the field of view that must make it. 0 analyzes every frame
+     */
+    public void setMinimumCompleteness(double completeness){
+        _minimumCompleteness = completeness;
+    }
+    /**
+     * Get the continuity tracker of the decoder (lost packets, azimuth gaps, RPM and packet rate).
+     * 
+     * @return PacketContinuity of this lidar
+     */
+    public PacketContinuity getContinuity(){
+        return _decoder.GetContinuity();
+    }
+    /**
+     * Set the time budget of scans that are not given one (including the scans made by updateLatestFrame(),
+     * analyzeLatestFrame() and the constructor).
+     * 
+     * @param millis Longest a scan may take, in milliseconds. 0 or less waits for as long as it takes
+     */
+    public void setScanBudget(long millis){
+        _scanBudgetMillis = millis;
+    }
+    /**
+     * Get the time budget of scans that are not given one.
+     * 
+     * @return Longest a scan may take, in milliseconds. 0 or less means scans wait for as long as it takes
+     */
+    public long getScanBudget(){
+        return _scanBudgetMillis;
+    }
+    /**
+     * Set the time budget of the obstacle search. With a budget, frames are searched nearest first and the search stops
+     * once the budget runs out, keeping the obstacles found until then (see isLastAnalysisComplete()).
+     * 
+     * @param nanos Time budget in nanoseconds, 0 to always search the whole frame
+     */
+    public void setAnalysisBudget(long nanos){
+        _analysisBudgetNanos = nanos;
+    }
+    /**
+     * Check if the last analysis searched the whole frame.
+     * 
+     * @return False if the analysis budget ran out and obstacles further away may have been missed
+     */
+    public boolean isLastAnalysisComplete(){
+        return _obstacleFinder.isLastSearchComplete();
+    }
+    /**
+     * Get the outcome of the last scan.
+     * 
+     * @return ScanStatus of the last scan
+     */
+    public ScanStatus getLastScanStatus(){
+        return _lastScanStatus;
+    }
+    /**
+     * Enable or disable sparse frames. Sparse frames only keep returns that differ from the calibration frame,
+     * which brings a frame over mostly flat terrain down from megabytes to kilobytes. Only used in polar mode
+     * and once the lidar has been calibrated.
+     * 
+     * @param sparse True to only keep anomalous returns in each frame
+     */
+    public void useSparseFrames(boolean sparse){
+        _decoder.SetSparseMode(sparse);
+    }
+    /**
+     * Enable or disable the multi-resolution search. Frames are then walked coarse to fine and only checked at full
+     * resolution where they deviate from the ground. Obstacles found are the same, but seeding skips most of the frame
+     * over mostly flat terrain (see TerrainAnalysis.DeviationPyramid).
+     * 
+     * @param multiResolution True to search frames coarse to fine
+     */
+    public void useMultiResolutionSearch(boolean multiResolution){
+        _obstacleFinder.setMultiResolution(multiResolution);
+    }
+    /**
+     * Only let returns that stay anomalous across frames seed the obstacle search, so single-frame speckle (dust,
+     * grazing returns off carpet or grass) no longer triggers a BFS. Frames answered by the SceneCache are not searched,
+     * so they do not count towards the filter's history.
+     * 
+     * @param filter AnomalyPersistenceFilter to use, NULL to seed from every anomalous return
+     */
+    public void setPersistenceFilter(AnomalyPersistenceFilter filter){
+        _obstacleFinder.setPersistenceFilter(filter);
+    }
+    /**
+     * Feed every point decoded to an ElevationGrid, as soon as it is decoded. Only used in cartician mode, since
+     * polar mode does not generate points.
+     * 
+     * @param grid ElevationGrid to fill, NULL to stop filling it
+     */
+    public void setElevationGrid(ElevationGrid grid){
+        if(_elevationGrid != null){
+            _decoder.RemovePointListener(_elevationGrid);
+        }
+        _elevationGrid = grid;
+        if(grid != null){
+            _decoder.AddPointListener(grid);
+        }
+    }
+    /**
+     * Feed every point decoded to an OccupancyGrid, as soon as it is decoded. Only used in cartician mode, since
+     * polar mode does not generate points. Rays are cleared from the lidar's mounting position.
+     * 
+     * @param grid OccupancyGrid to fill, NULL to stop filling it
+     */
+    public void setOccupancyGrid(OccupancyGrid grid){
+        if(_occupancyGrid != null){
+            _decoder.RemovePointListener(_occupancyGrid);
+        }
+        _occupancyGrid = grid;
+        if(grid != null){
+            grid.setSensorOrigin(_decoder.GetGeometry().getOffsetX(), _decoder.GetGeometry().getOffsetY());
+            _decoder.AddPointListener(grid);
+        }
+    }
+    /**
+     * Feed every frame to a FreeSpaceHistogram. In cartician mode it is fed straight from the decoder; in polar mode
+     * it is fed the decoder's anomalous returns of each frame as soon as the frame is complete, before any analysis.
+     * 
+     * @param histogram FreeSpaceHistogram to fill, NULL to stop filling it
+     */
+    public void setFreeSpaceHistogram(FreeSpaceHistogram histogram){
+        if(_freeSpace != null){
+            _decoder.RemovePointListener(_freeSpace);
+        }
+        _freeSpace = histogram;
+        if(histogram != null && _generatePointCloud){
+            _decoder.AddPointListener(histogram);
+        }
+    }
+    /**
+     * Check every frame against a SceneCache before searching it. While the scene does not change, the obstacles of the
+     * last frame searched are handed out again instead (see getLastAnalysisAge()). Hits and misses are counted in the
+     * metrics.
+     * 
+     * @param cache SceneCache to use, NULL to search every frame
+     */
+    public void setSceneCache(SceneCache cache){
+        _sceneCache = cache;
+    }
+    /**
+     * Get how old the obstacles handed out by the last analysis are.
+     * 
+     * @return Nanoseconds since the frame they were found in was searched, 0 if the latest frame was searched
+     */
+    public long getLastAnalysisAge(){
+        return _lastAnalysisAgeNanos;
+    }
+    /**
+     * Scan a full FOV by sampling at least _number_azimuths_in_frame number of times, within the scan budget.
+     * 
+     * @return ScanStatus of the scan
+     */
+    public ScanStatus scanFullFieldOfView(){
+        return scanFullFieldOfView(_scanBudgetMillis);
+    }
+    /**
+     * Scan a full FOV by sampling at least _number_azimuths_in_frame number of times. The scan gives up once the
+     * budget runs out, keeping whatever was decoded as a partial frame, or as soon as the thread gets interrupted.
+     * 
+     * @param budgetMillis Longest the scan may take, in milliseconds. 0 or less waits for as long as it takes
+     * @return ScanStatus of the scan
+     */
+    public ScanStatus scanFullFieldOfView(long budgetMillis){
+        return _scan(_number_azimuths_in_frame, budgetMillis);
+    }
+    /**
+     * See scanFullFieldOfView(budgetMillis).
+     * 
+     * @param numberOfAzimuthsInFrame Number of azimuths required to complete the frame
+     * @param budgetMillis Longest the scan may take, in milliseconds. 0 or less waits for as long as it takes
+     * @return ScanStatus of the scan
+     */
+    private ScanStatus _scan(int numberOfAzimuthsInFrame, long budgetMillis){
         byte[] data = new byte[1206];
         int[] data_size = {1206};
         System.out.println("VelodyneLidar: Scanning Frame");
         _decoder.ClearFrames();
-        _driver.GetPacket(data, data_size);
-        _decoder.DecodePacket(data, data_size);
-        while((_latestFrame = _decoder.GetLatestFrame(_number_azimuths_in_frame)) == null){
-            _driver.GetPacket(data, data_size);
-            _decoder.DecodePacket(data, data_size);
+        long frameStart = System.nanoTime();
+        long deadline = frameStart + budgetMillis * 1000000L;
+        ScanStatus status = ScanStatus.COMPLETE;
+        _latestFrame = null;
+        do{
+            if(Thread.currentThread().isInterrupted()){
+                status = ScanStatus.INTERRUPTED;
+                break;
+            }
+            long remaining = deadline - System.nanoTime();
+            if(budgetMillis > 0 && remaining <= 0){
+                //Keep whatever made it in so far
+                _latestFrame = _decoder.GetLatestFrame(0);
+                status = (_latestFrame == null)? ScanStatus.TIMEOUT : ScanStatus.PARTIAL;
+                break;
+            }
+            if(!_receiveAndDecode(data, data_size, (budgetMillis > 0)? remaining : 0)){
+                //Source has nothing right now (e.g. end of a capture), do not spin
+                LockSupport.parkNanos((budgetMillis > 0)? java.lang.Math.min(IDLE_NANOS, remaining) : IDLE_NANOS);
+            }
+        }while((_latestFrame = _decoder.GetLatestFrame(numberOfAzimuthsInFrame)) == null);
+        _metrics.record(PipelineMetrics.Stage.FRAME_ASSEMBLY, System.nanoTime() - frameStart);
+        _lastScanStatus = status;
+        if(_latestFrame != null){
+            _frameCompleted();
+            System.out.println("VelodyneLidar: Frame scanned (" + status + "). Number of Azimuths: " + _latestFrame.getNumberOfAzimuthsInFrame());
+        }else{
+            System.out.println("VelodyneLidar: No frame scanned (" + status + ").");
         }
-        System.out.println("VelodyneLidar: Frame scanned. Number of Azimuths: " + _latestFrame.getNumberOfAzimuthsInFrame());
+        return status;
     }
     /**
-     * Scan a full FOV with the specified number of azimuths in it.
+     * Read a single packet from _source and decode it, recording how long each step took.
+     * 
+     * @param data Buffer for the packet
+     * @param data_size Size of data
+     * @param timeoutNanos Longest to wait for the packet, 0 to use the longest receive timeout
+     * @return True if a packet was received
+     */
+    private boolean _receiveAndDecode(byte[] data, int[] data_size, long timeoutNanos){
+        //Never block for longer than the time left, nor so long that interrupts go unnoticed
+        int timeoutMillis = MAX_RECEIVE_TIMEOUT_MILLIS;
+        if(timeoutNanos > 0){
+            timeoutMillis = (int) java.lang.Math.max(1, java.lang.Math.min(MAX_RECEIVE_TIMEOUT_MILLIS, timeoutNanos / 1000000));
+        }
+        if(timeoutMillis != _receiveTimeoutMillis){
+            _source.setReceiveTimeout(timeoutMillis);
+            _receiveTimeoutMillis = timeoutMillis;
+        }
+        long receiveStart = System.nanoTime();
+        boolean received = _source.GetPacket(data, data_size);
+        long decodeStart = System.nanoTime();
+        //Only decode packets that were actually received. Time spent waiting on a timeout is not receive latency
+        if(received){
+            _metrics.record(PipelineMetrics.Stage.RECEIVE, decodeStart - receiveStart);
+            _metrics.countPacket();
+            _decoder.DecodePacket(data, data_size, decodeStart);
+            _metrics.record(PipelineMetrics.Stage.DECODE, System.nanoTime() - decodeStart);
+        }else{
+            _metrics.countReceiveTimeout();
+        }
+        return received;
+    }
+    /**
+     * Add _latestFrame to the metrics and feed it to the outputs filled once per frame in polar mode.
+     */
+    private void _frameCompleted(){
+        _metrics.countFrame(_latestFrame.getNumberOfAzimuthsInFrame(), _latestFrame.getNumberOfAnomalies());
+        _metrics.countMissingPackets(_latestFrame.getPacketsMissing());
+        if(_freeSpace != null && !_generatePointCloud){
+            _freeSpace.addFrame(_latestFrame);
+        }
+    }
+    /**
+     * Scan a full FOV with the specified number of azimuths in it, within the scan budget.
      * 
      * @param numberOfAzimuthsInFrame Number of azimuths required to create a full Frame.
+     * @return ScanStatus of the scan
      */
-    public void updateLatestFrame(int numberOfAzimuthsInFrame){
+    public ScanStatus updateLatestFrame(int numberOfAzimuthsInFrame){
         numberOfAzimuthsInFrame = (numberOfAzimuthsInFrame < 350)? 350 : numberOfAzimuthsInFrame;
         if((_latestFrame = _decoder.GetLatestFrame(numberOfAzimuthsInFrame)) == null){
-            scanFullFieldOfView();
+            return _scan(numberOfAzimuthsInFrame, _scanBudgetMillis);
         }
+        _frameCompleted();
+        return (_lastScanStatus = ScanStatus.COMPLETE);
     }
     /**
-     * Analyze the most up-to-date frame and look for any obstacles inside of it.
+     * Analyze the most up-to-date frame and look for any obstacles inside of it. Nothing is analyzed if no frame
+     * could be scanned within the scan budget (see getLastScanStatus()). With a SceneCache set, frames that look the
+     * same as the last one searched get its obstacles instead.
      */
     public void analyzeLatestFrame(){
         
         if(_latestFrame == null){
             scanFullFieldOfView();
         }
-        if(_generatePointCloud){
+        //Do not waste time on frames that lost too many packets, scan a new one instead
+        for(int skipped = 0; skipped < MAX_HOLED_FRAMES_SKIPPED && _latestFrame != null && _latestFrame.getCompleteness() < _minimumCompleteness; skipped++){
+            System.out.println("VelodyneLidar: Skipping frame. Completeness: " + _latestFrame.getCompleteness());
+            _metrics.countSkippedFrame();
+            scanFullFieldOfView();
+        }
+        if(_latestFrame == null){
+            return;
+        }
+        if(_sceneCache != null){
+            List<Obstacle> cached = _sceneCache.lookup(_latestFrame);
+            _metrics.countSceneCache(cached != null);
+            if(cached != null){
+                for(Obstacle o : cached){
+                    _obstacleFinder.addObstacle(o);
+                }
+                _lastAnalysisAgeNanos = java.lang.Math.max(1, _sceneCache.getAge());
+                return;
+            }
+        }
+        _lastAnalysisAgeNanos = 0;
+        long analysisStart = System.nanoTime();
+        int obstaclesBefore = _obstacleFinder.getNumberOfObticles();
+        if(_analysisBudgetNanos > 0){
+            if(_generatePointCloud){
+                _obstacleFinder.findObstaclesCartician(_latestFrame, _analysisBudgetNanos);
+            }else{
+                _obstacleFinder.findObstaclesPolar(_latestFrame, _analysisBudgetNanos);
+            }
+        }else if(_generatePointCloud){
             _obstacleFinder.findObstaclesCartician(_latestFrame);
         }else{
             _obstacleFinder.findObstaclesPolar(_latestFrame);
         }
+        _metrics.record(PipelineMetrics.Stage.ANALYSIS, System.nanoTime() - analysisStart);
+        _metrics.countObstacles(_obstacleFinder.getNumberOfObticles() - obstaclesBefore);
+        //Results of a search that ran out of budget are not worth repeating
+        if(_sceneCache != null && _obstacleFinder.isLastSearchComplete()){
+            _sceneCache.store(_obstacleFinder.getObstaclesFound(obstaclesBefore));
+        }else if(_sceneCache != null){
+            _sceneCache.invalidate();
+        }
     }
     /**
      * Clear all buffers within all objects used by lidar.
@@ -132,6 +612,9 @@ public class VelodyneLidar {
         _decoder.UnloadData();
         _latestFrame = null;
         _obstacleFinder.clearObsticlesSeen();
+        if(_sceneCache != null){
+            _sceneCache.invalidate();
+        }
     }
     /**
      * If frame has already been analyzed, then remove and return the closest obsticle to lidar.
@@ -0,0 +1,248 @@
+// Author: Ivan Ramos, <ivan-1081@hotmail.es>
+// Open Source Software; you can modify and/or share it
+package Simulation;
+
+import Hardware.VelodyneLidarHDL.LidarGeometry;
+import Hardware.VelodyneLidarHDL.PacketDecoder;
+import Hardware.VelodyneLidarHDL.PacketSource;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+/**
+ * PacketGenerator class used to produce VLP-16 data packets from a Scene without a lidar attached. Packets follow the
+ * layout from Velodyne's manual (12 blocks flagged 0xFFEE, azimuth, 32 returns, timestamp and factory bytes) and returns
+ * are ray casted with the same LidarGeometry the PacketDecoder uses, so decoded frames land exactly on the scene.
+ *
+ * <p>GetPacket() function implements PacketSource, so a VelodyneLidar can be built on top of a generator.
+ * <p>setRealTime() function paces packets as the real sensor would (one packet every 1.327 ms at any RPM). Otherwise
+ * packets are produced as fast as possible.
+ * <p>setPacketLoss() function drops a random fraction of packets. Dropped packets still take their share of time and
+ * azimuth, as it happens when packets are lost on the network.
+ * <p>calibrate() and framePackets() functions prepare a decoder and a frame's worth of packets up front, for benchmarks
+ * and checks that decode the same packets many times.
+ */
+public class PacketGenerator implements PacketSource {
+
+    public static final int PACKET_SIZE = 1206;                 /**<Size of a VLP-16 data packet */
+    private static final int BLOCKS_PER_PACKET = 12;            /**<Firing blocks per packet */
+    private static final int BYTES_PER_BLOCK = 100;             /**<Bytes per firing block */
+    private static final int TIMESTAMP_OFFSET = 1200;           /**<Offset of the timestamp (microseconds past the hour, LSB first) */
+    private static final double FIRING_CYCLE_US = 55.296;       /**<Time taken by a single firing sequence (two per block) */
+    private static final double RESOLUTION_M = 0.002;           /**<Lidar's resolution in meters */
+    private static final long MICROSECONDS_PER_HOUR = 3600000000L;
+    private static final byte RETURN_MODE_STRONGEST = 0x37;
+    private static final byte PRODUCT_ID_VLP16 = 0x22;
+
+    private final Scene _scene;
+    private final LidarGeometry _geometry;
+    private final double[] _cosElevation = new double[16];  /**<Cosine of each laser's elevation */
+    private final double[] _sinElevation = new double[16];  /**<Sine of each laser's elevation */
+    private double _rpm;                /**<Rotation speed, 300 - 1200 RPM */
+    private double _packetLoss = 0.0;   /**<Fraction of packets dropped */
+    private boolean _realTime = false;  /**<Pace packets as the real sensor would */
+    private Random _random = new Random(0);
+    private double _azimuth = 0.0;      /**<Raw azimuth of the next block */
+    private double _timeUs = 0.0;       /**<Time of the next packet since the generator started */
+    private long _startNanos = -1;      /**<System.nanoTime() at the first real time packet */
+    private long _packetsGenerated = 0;
+    private long _packetsDropped = 0;
+    /**
+     * PacketGenerator constructor.
+     *
+     * @param scene Scene the simulated lidar is looking at
+     * @param geometry Geometry of the simulated lidar. Use the same one given to the PacketDecoder
+     * @param rpm Rotation speed (300 - 1200 RPM)
+     */
+    public PacketGenerator(Scene scene, LidarGeometry geometry, double rpm){
+        _scene = scene;
+        _geometry = geometry;
+        setRPM(rpm);
+        for(int laserID = 0; laserID < 16; laserID++){
+            _cosElevation[laserID] = geometry.getElevationCos(laserID);
+            _sinElevation[laserID] = geometry.getElevationSin(laserID);
+        }
+    }
+
+    public void setRPM(double rpm){
+        _rpm = java.lang.Math.max(300.0, java.lang.Math.min(1200.0, rpm));
+    }
+
+    public void setPacketLoss(double packetLoss){
+        _packetLoss = java.lang.Math.max(0.0, java.lang.Math.min(1.0, packetLoss));
+    }
+
+    public void setRealTime(boolean realTime){
+        _realTime = realTime;
+        _startNanos = -1;
+    }
+
+    public void setSeed(long seed){
+        _random = new Random(seed);
+    }
+    /**
+     * Set the raw azimuth of the next block.
+     *
+     * @param azimuth Raw azimuth (degrees * 100)
+     */
+    public void setAzimuth(int azimuth){
+        _azimuth = ((azimuth % 36000) + 36000) % 36000;
+    }
+
+    public long getPacketsGenerated(){
+        return _packetsGenerated;
+    }
+
+    public long getPacketsDropped(){
+        return _packetsDropped;
+    }
+
+    public LidarGeometry getGeometry(){
+        return _geometry;
+    }
+
+    public Scene getScene(){
+        return _scene;
+    }
+    /**
+     * Get the next packet that makes it through. Same use as PacketDriver.GetPacket().
+     *
+     * @param data Byte buffer to receive packet in
+     * @param data_length Size for provided data buffer. Set to 1206 on return
+     * @return True once a packet was generated
+     */
+    @Override
+    public boolean GetPacket(byte[] data, int[] data_length){
+        if(data.length < PACKET_SIZE){
+            System.out.println("PacketGenerator: Error - buffer can not fit a packet.");
+            return false;
+        }
+        while(_packetLoss > 0 && _random.nextDouble() < _packetLoss){
+            _packetsDropped++;
+            _advance();
+        }
+        _pace();
+        fillPacket(data);
+        data_length[0] = PACKET_SIZE;
+        return true;
+    }
+    /**
+     * Nothing to release.
+     */
+    @Override
+    public void close(){
+
+    }
+    /**
+     * Write the next packet into a buffer, ignoring packet loss and pacing.
+     *
+     * @param data Byte buffer of at least 1206 bytes
+     */
+    public void fillPacket(byte[] data){
+        double step = _azimuthStep();
+        for(int block = 0; block < BLOCKS_PER_PACKET; block++){
+            int offset = block * BYTES_PER_BLOCK;
+            int rawAzimuth = ((int) java.lang.Math.round(_azimuth + block * step)) % 36000;
+            data[offset] = (byte) 0xFF;
+            data[offset + 1] = (byte) 0xEE;
+            data[offset + 2] = (byte) (rawAzimuth & 0xFF);
+            data[offset + 3] = (byte) ((rawAzimuth >> 8) & 0xFF);
+            //Decoder places the second firing sequence 0.1 degrees after the block's azimuth
+            for(int firing = 0; firing < 2; firing++){
+                int azimuth = _geometry.toFrameAzimuth((rawAzimuth + firing * 10) % 36000);
+                double height = _geometry.getHeightAt(azimuth);
+                for(int laserID = 0; laserID < 16; laserID++){
+                    double distance = _scene.castRay(azimuth, _cosElevation[laserID], _sinElevation[laserID], height);
+                    int units = (int) java.lang.Math.min(65535, java.lang.Math.round(distance / RESOLUTION_M));
+                    int returnOffset = offset + 4 + (firing * 16 + laserID) * 3;
+                    data[returnOffset] = (byte) (units & 0xFF);
+                    data[returnOffset + 1] = (byte) ((units >> 8) & 0xFF);
+                    data[returnOffset + 2] = (byte) ((units == 0)? 0 : 100);
+                }
+            }
+        }
+        long timestamp = ((long) _timeUs) % MICROSECONDS_PER_HOUR;
+        for(int i = 0; i < 4; i++){
+            data[TIMESTAMP_OFFSET + i] = (byte) ((timestamp >> (8 * i)) & 0xFF);
+        }
+        data[TIMESTAMP_OFFSET + 4] = RETURN_MODE_STRONGEST;
+        data[TIMESTAMP_OFFSET + 5] = PRODUCT_ID_VLP16;
+        _packetsGenerated++;
+        _advance();
+    }
+    /**
+     * Feed one full rotation of packets to a decoder's calibration frame. The decoder expects a flat plane, so use a
+     * generator built over a Scene with nothing on it.
+     *
+     * @param decoder Decoder to be calibrated. Should use the same LidarGeometry as this generator
+     */
+    public void calibrate(PacketDecoder decoder){
+        byte[] data = new byte[PACKET_SIZE];
+        int[] length = {PACKET_SIZE};
+        double covered = 0.0;
+        while(covered < 36000.0){
+            covered += BLOCKS_PER_PACKET * _azimuthStep();
+            fillPacket(data);
+            decoder.addToCalibrationFrame(data, length);
+        }
+    }
+    /**
+     * Build enough packets for a frame with more than numberOfAzimuths azimuths in it, ignoring packet loss and pacing.
+     * The sensor does not come back to the same azimuths every rotation, so frames larger than a single rotation can
+     * still be filled.
+     *
+     * @param numberOfAzimuths Number of azimuths the frame must exceed (same meaning as PacketDecoder.GetLatestFrame())
+     * @return Packets in the order they would come from the lidar
+     */
+    public ArrayList<byte[]> framePackets(int numberOfAzimuths){
+        ArrayList<byte[]> packets = new ArrayList<byte[]>();
+        boolean[] seen = new boolean[36000];
+        int distinct = 0;
+        while(distinct <= numberOfAzimuths){
+            byte[] data = new byte[PACKET_SIZE];
+            fillPacket(data);
+            packets.add(data);
+            for(int block = 0; block < BLOCKS_PER_PACKET; block++){
+                int offset = block * BYTES_PER_BLOCK;
+                int rawAzimuth = (data[offset + 2] & 0xFF) | ((data[offset + 3] & 0xFF) << 8);
+                for(int firing = 0; firing < 2; firing++){
+                    int azimuth = (rawAzimuth + firing * 10) % 36000;
+                    if(!seen[azimuth]){
+                        seen[azimuth] = true;
+                        distinct++;
+                    }
+                }
+            }
+        }
+        return packets;
+    }
+    /**
+     * Azimuth covered by a single block at the current RPM (degrees * 100).
+     */
+    private double _azimuthStep(){
+        return _rpm / 60.0 * 36000.0 * 2 * FIRING_CYCLE_US / 1e6;
+    }
+    /**
+     * Move time and azimuth to the next packet.
+     */
+    private void _advance(){
+        _azimuth = (_azimuth + BLOCKS_PER_PACKET * _azimuthStep()) % 36000;
+        _timeUs += BLOCKS_PER_PACKET * 2 * FIRING_CYCLE_US;
+    }
+    /**
+     * Block until the next packet is due when running in real time.
+     */
+    private void _pace(){
+        if(!_realTime){
+            return;
+        }
+        if(_startNanos < 0){
+            _startNanos = System.nanoTime() - (long) (_timeUs * 1000);
+        }
+        long due = _startNanos + (long) (_timeUs * 1000);
+        long wait;
+        while((wait = due - System.nanoTime()) > 0){
+            LockSupport.parkNanos(wait);
+        }
+    }
+}
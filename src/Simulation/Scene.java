@@ -0,0 +1,201 @@
+// Author: Ivan Ramos, <ivan-1081@hotmail.es>
+// Open Source Software; you can modify and/or share it
+package Simulation;
+
+import Hardware.VelodyneLidarHDL.PacketDecoder;
+
+import java.util.ArrayList;
+/**
+ * Scene class used to describe the terrain seen by a simulated lidar. The scene is a flat ground (Z = 0) with
+ * boulders (vertical cylinders) and craters (cylindrical holes) placed on it. Regions of azimuths can be marked as
+ * returning nothing (e.g. glass, sky or a blocked sensor).
+ *
+ * <p>Coordinates follow the same convention used by Obstacles: X to the right, Y forward and Z up from the ground,
+ * all in meters and centered under the lidar. Ground-truth positions of every obstacle are available through the getters
+ * so they can be compared against what ObstacleFinder reports.
+ * <p>castRay() function is called by the PacketGenerator for every simulated laser return.
+ */
+public class Scene {
+    /**
+     * Boulder placed on the ground. Modeled as a vertical cylinder.
+     */
+    public static class Boulder{
+        public final double x;      /**<Center X coordinate in meters */
+        public final double y;      /**<Center Y coordinate in meters */
+        public final double radius; /**<Radius in meters */
+        public final double height; /**<Height above ground in meters */
+
+        public Boulder(double x, double y, double radius, double height){
+            this.x = x;
+            this.y = y;
+            this.radius = radius;
+            this.height = height;
+        }
+    }
+    /**
+     * Crater dug into the ground. Modeled as a cylindrical hole with a flat floor.
+     */
+    public static class Crater{
+        public final double x;      /**<Center X coordinate in meters */
+        public final double y;      /**<Center Y coordinate in meters */
+        public final double radius; /**<Radius in meters */
+        public final double depth;  /**<Depth below ground in meters */
+
+        public Crater(double x, double y, double radius, double depth){
+            this.x = x;
+            this.y = y;
+            this.radius = radius;
+            this.depth = depth;
+        }
+    }
+
+    private final ArrayList<Boulder> _boulders = new ArrayList<Boulder>();
+    private final ArrayList<Crater> _craters = new ArrayList<Crater>();
+    private final ArrayList<int[]> _noReturnRegions = new ArrayList<int[]>(); /**<{start, end} azimuths returning nothing */
+    private double _maxRange = 100.0;   /**<Maximum range in meters. Farther surfaces return nothing */
+    private boolean _hasGround = true;  /**<False to remove the ground (only obstacles return) */
+    /**
+     * Scene constructor. Creates a flat ground with nothing on it.
+     */
+    public Scene(){
+
+    }
+
+    public Scene addBoulder(double x, double y, double radius, double height){
+        _boulders.add(new Boulder(x, y, radius, height));
+        return this;
+    }
+
+    public Scene addCrater(double x, double y, double radius, double depth){
+        _craters.add(new Crater(x, y, radius, depth));
+        return this;
+    }
+    /**
+     * Mark an azimuth range as returning nothing. Azimuths are the ones used by frames (degrees * 100) and wrap arround
+     * if startAzimuth is greater than endAzimuth.
+     *
+     * @param startAzimuth First azimuth with no returns
+     * @param endAzimuth Azimuth at which the region ends (exclusive)
+     * @return This scene
+     */
+    public Scene addNoReturnRegion(int startAzimuth, int endAzimuth){
+        _noReturnRegions.add(new int[] {startAzimuth, endAzimuth});
+        return this;
+    }
+
+    public Scene setMaxRange(double maxRange){
+        _maxRange = maxRange;
+        return this;
+    }
+
+    public Scene setGround(boolean hasGround){
+        _hasGround = hasGround;
+        return this;
+    }
+
+    public ArrayList<Boulder> getBoulders(){
+        return _boulders;
+    }
+
+    public ArrayList<Crater> getCraters(){
+        return _craters;
+    }
+    /**
+     * Cast a single laser ray into the scene.
+     *
+     * @param azimuth Azimuth angle used by frames
+     * @param cosElevation Cosine of the laser's elevation (tilt applied)
+     * @param sinElevation Sine of the laser's elevation (tilt applied)
+     * @param height Height of the lidar above ground at this azimuth, in meters
+     * @return Distance to the first surface hit in meters, 0 if nothing was hit
+     */
+    public double castRay(int azimuth, double cosElevation, double sinElevation, double height){
+        for(int[] region : _noReturnRegions){
+            int span = (region[1] - region[0] + 36000) % 36000;
+            if(((azimuth - region[0] + 36000) % 36000) < span){
+                return 0.0;
+            }
+        }
+        double dx = cosElevation * PacketDecoder.Az_sin_lookup_table[azimuth];
+        double dy = cosElevation * PacketDecoder.Az_cos_lookup_table[azimuth];
+        double dz = sinElevation;
+        double closest = Double.POSITIVE_INFINITY;
+        //Ground and craters can only be hit by rays pointing down
+        if(_hasGround && dz < 0){
+            closest = _castGround(dx, dy, dz, height);
+        }
+        for(Boulder boulder : _boulders){
+            closest = java.lang.Math.min(closest, _castBoulder(boulder, dx, dy, dz, height));
+        }
+        return (closest <= _maxRange)? closest : 0.0;
+    }
+    /**
+     * Distance to the ground, going into a crater if the ray lands inside of one.
+     */
+    private double _castGround(double dx, double dy, double dz, double height){
+        double t = -height / dz;
+        double x = dx * t;
+        double y = dy * t;
+        for(Crater crater : _craters){
+            if(_squared(x - crater.x) + _squared(y - crater.y) >= _squared(crater.radius)){
+                continue;
+            }
+            //Ray entered the crater. It either lands on the floor or on the far wall
+            double floor = (-crater.depth - height) / dz;
+            if(_squared(dx * floor - crater.x) + _squared(dy * floor - crater.y) < _squared(crater.radius)){
+                return floor;
+            }
+            double[] roots = _circleIntersections(crater.x, crater.y, crater.radius, dx, dy);
+            return (roots != null)? java.lang.Math.min(roots[1], floor) : t;
+        }
+        return t;
+    }
+    /**
+     * Distance to a boulder's side or top, infinity if missed.
+     */
+    private double _castBoulder(Boulder boulder, double dx, double dy, double dz, double height){
+        double closest = Double.POSITIVE_INFINITY;
+        double[] roots = _circleIntersections(boulder.x, boulder.y, boulder.radius, dx, dy);
+        if(roots == null){
+            return closest;
+        }
+        //Side of the cylinder
+        if(roots[0] > 0){
+            double z = height + dz * roots[0];
+            if(z >= 0 && z <= boulder.height){
+                closest = roots[0];
+            }
+        }
+        //Top of the cylinder
+        if(dz < 0 && height > boulder.height){
+            double top = (boulder.height - height) / dz;
+            if(_squared(dx * top - boulder.x) + _squared(dy * top - boulder.y) <= _squared(boulder.radius)){
+                closest = java.lang.Math.min(closest, top);
+            }
+        }
+        return closest;
+    }
+    /**
+     * Distances at which a ray leaving (0,0) crosses a vertical circle, projected on the XY plane.
+     *
+     * @return {near, far} distances, NULL if the ray misses the circle
+     */
+    private static double[] _circleIntersections(double cx, double cy, double radius, double dx, double dy){
+        double a = dx * dx + dy * dy;
+        if(a == 0){
+            return null;
+        }
+        double b = -2 * (dx * cx + dy * cy);
+        double c = cx * cx + cy * cy - radius * radius;
+        double discriminant = b * b - 4 * a * c;
+        if(discriminant < 0){
+            return null;
+        }
+        double root = java.lang.Math.sqrt(discriminant);
+        return new double[] {(-b - root) / (2 * a), (-b + root) / (2 * a)};
+    }
+
+    private static double _squared(double value){
+        return value * value;
+    }
+}
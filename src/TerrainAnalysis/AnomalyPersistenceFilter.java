@@ -0,0 +1,181 @@
+// Author: Ivan Ramos, <ivan-1081@hotmail.es>
+// Open Source Software; you can modify and/or share it
+package TerrainAnalysis;
+
+import Hardware.VelodyneLidarHDL.PacketDecoder;
+import Hardware.VelodyneLidarHDL.PacketDecoder.HDLFrame;
+import Hardware.VelodyneLidarHDL.PacketDecoder.HDLSparseFrame;
+
+import java.util.Arrays;
+/**
+ * AnomalyPersistenceFilter class used by the ObstacleFinder to ignore anomalies that only show up for a single frame
+ * (dust, grazing returns off carpet or grass). Returns only seed a search if their cell was anomalous in at least K of
+ * the last M frames; the BFS itself still grows over every anomalous return, so obstacles keep their full size.
+ *
+ * <p>Cells are a laser and a bin of BIN_WIDTH consecutive azimuths, counted from the frame's azimuth origin, so a bin
+ * is exactly one word of the decoder's anomaly mask and is flagged with a single word test. Azimuths are not sampled at
+ * the same angles from one rotation to the next, which is why cells can not be single azimuths.
+ * <p>The history is kept as M bit planes (one bit per cell per frame). Every frame overwrites the oldest plane and the
+ * K of M count is done 64 cells at a time with bit-sliced adders, so updating costs a few hundred word operations.
+ * <p>Frames have to carry an anomaly mask (decoder with an anomaly threshold set) or be sparse frames. Frames with
+ * neither let every return seed a search. Until M frames have been seen, cells need min(K, frames seen) hits, so the
+ * first frame is never filtered.
+ * <p>Changing the field of view clears the history.
+ */
+public class AnomalyPersistenceFilter {
+
+    public static final int BIN_WIDTH = 64;   /**<Azimuths per cell, one word of the anomaly mask */
+    public static final int MAX_WINDOW = 15;  /**<Most frames the history can cover */
+
+    private final int _required;              /**<Frames a cell has to be anomalous in (K) */
+    private final int _window;                /**<Frames kept in the history (M) */
+    private long[][][] _history;              /**<Bit plane per frame, per laser, one bit per bin */
+    private long[][] _persistent;             /**<Bins anomalous in at least K of the last M frames, per laser */
+    private int _next = 0;                    /**<Plane overwritten by the next frame */
+    private int _framesSeen = 0;              /**<Frames in the history, up to _window */
+    private int _azimuthOrigin = -1;          /**<Azimuth origin of the frames in the history */
+    private int _azimuthSpan = -1;            /**<Azimuth span of the frames in the history */
+    private boolean _passThrough = true;      /**<True if the latest frame could not be filtered */
+    /**
+     * AnomalyPersistenceFilter constructor.
+     *
+     * @param required Frames a cell has to be anomalous in (K), at least 1
+     * @param window Frames kept in the history (M), from required to MAX_WINDOW
+     */
+    public AnomalyPersistenceFilter(int required, int window){
+        if(required < 1 || window < required || window > MAX_WINDOW){
+            throw new IllegalArgumentException("AnomalyPersistenceFilter: Need 1 <= required <= window <= " + MAX_WINDOW);
+        }
+        _required = required;
+        _window = window;
+    }
+    /**
+     * Add the anomalies of a new frame to the history and work out which cells persisted.
+     *
+     * @param frame HDLFrame about to be searched
+     */
+    public void update(HDLFrame frame){
+        boolean sparse = frame instanceof HDLSparseFrame;
+        if(!sparse && !frame.hasAnomalyMask()){
+            _passThrough = true;
+            return;
+        }
+        _passThrough = false;
+        if(frame.getAzimuthOrigin() != _azimuthOrigin || frame.getAzimuthSpan() != _azimuthSpan){
+            _allocate(frame.getAzimuthOrigin(), frame.getAzimuthSpan());
+        }
+        long[][] plane = _history[_next];
+        for(long[] laser : plane){
+            Arrays.fill(laser, 0L);
+        }
+        if(sparse){
+            HDLSparseFrame sparseFrame = (HDLSparseFrame) frame;
+            for(int cell = 0; cell < sparseFrame.getNumberOfCells(); cell++){
+                if(sparseFrame.getCellDeviation(cell) != 0.0){
+                    int bin = _binOf(sparseFrame.getCellAzimuth(cell));
+                    if(bin >= 0){
+                        plane[sparseFrame.getCellLaserID(cell)][bin >>> 6] |= 1L << bin;
+                    }
+                }
+            }
+        }else{
+            //A bin is anomalous if its word of the anomaly mask has any bit set
+            for(int laserID = 0; laserID < plane.length; laserID++){
+                long[] mask = frame.getAnomalyMask(laserID);
+                for(int word = 0; word < mask.length; word++){
+                    plane[laserID][word >>> 6] |= ((mask[word] | -mask[word]) >>> 63) << word;
+                }
+            }
+        }
+        _next = (_next + 1) % _window;
+        _framesSeen = java.lang.Math.min(_framesSeen + 1, _window);
+        _count(java.lang.Math.min(_required, _framesSeen));
+    }
+    /**
+     * Check if the cell of a return was anomalous in enough of the latest frames.
+     *
+     * @param laserID Laser of the return
+     * @param azimuth Azimuth angle of the return
+     * @return True if the return may seed a search
+     */
+    public boolean isPersistent(int laserID, int azimuth){
+        if(_passThrough){
+            return true;
+        }
+        int bin = _binOf(azimuth);
+        return bin >= 0 && ((_persistent[laserID][bin >>> 6] >>> bin) & 1L) != 0;
+    }
+    /**
+     * Forget every frame seen so far.
+     */
+    public void reset(){
+        _azimuthOrigin = -1;
+        _azimuthSpan = -1;
+        _passThrough = true;
+    }
+
+    public int getRequired(){
+        return _required;
+    }
+
+    public int getWindow(){
+        return _window;
+    }
+    /**
+     * Get the bin of an azimuth within the field of view.
+     *
+     * @return Bin index, -1 if outside of the field of view
+     */
+    private int _binOf(int azimuth){
+        int offset = (azimuth - _azimuthOrigin + 36000) % 36000;
+        return (offset < _azimuthSpan)? offset / BIN_WIDTH : -1;
+    }
+    /**
+     * Start an empty history for a field of view.
+     */
+    private void _allocate(int azimuthOrigin, int azimuthSpan){
+        int bins = (azimuthSpan + BIN_WIDTH - 1) / BIN_WIDTH;
+        int lasers = PacketDecoder.laserIdMap.length;
+        _history = new long[_window][lasers][(bins + 63) / 64];
+        _persistent = new long[lasers][(bins + 63) / 64];
+        _azimuthOrigin = azimuthOrigin;
+        _azimuthSpan = azimuthSpan;
+        _next = 0;
+        _framesSeen = 0;
+    }
+    /**
+     * Set the bits of _persistent whose cell is set in at least required planes. Planes are summed into a 4-bit counter
+     * per cell (one word per counter bit) and the counter is compared with required, most significant bit first.
+     */
+    private void _count(int required){
+        for(int laserID = 0; laserID < _persistent.length; laserID++){
+            for(int word = 0; word < _persistent[laserID].length; word++){
+                long bit0 = 0, bit1 = 0, bit2 = 0, bit3 = 0;
+                for(int frame = 0; frame < _window; frame++){
+                    long carry = _history[frame][laserID][word];
+                    long next = bit0 & carry;
+                    bit0 ^= carry;
+                    carry = next;
+                    next = bit1 & carry;
+                    bit1 ^= carry;
+                    carry = next;
+                    next = bit2 & carry;
+                    bit2 ^= carry;
+                    bit3 |= next;
+                }
+                //Counter >= required: greater at the first differing bit, or equal all the way down
+                long greater = 0, equal = -1L;
+                long[] counter = {bit0, bit1, bit2, bit3};
+                for(int bit = 3; bit >= 0; bit--){
+                    if(((required >>> bit) & 1) != 0){
+                        equal &= counter[bit];
+                    }else{
+                        greater |= equal & counter[bit];
+                        equal &= ~counter[bit];
+                    }
+                }
+                _persistent[laserID][word] = greater | equal;
+            }
+        }
+    }
+}
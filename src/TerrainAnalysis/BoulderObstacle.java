@@ -2,6 +2,8 @@
 // Open Source Software; you can modify and/or share it
 package TerrainAnalysis;
 
+import Hardware.VelodyneLidarHDL.LidarGeometry;
+
 import java.lang.String;
 import java.text.DecimalFormat;
 
@@ -32,6 +34,11 @@ public class BoulderObstacle extends Obstacle{
     }
 
     public BoulderObstacle(int azimuth, int elevation, double distance, double groundRefIn){
+        this(azimuth, elevation, distance, groundRefIn, LidarGeometry.DEFAULT);
+    }
+
+    public BoulderObstacle(int azimuth, int elevation, double distance, double groundRefIn, LidarGeometry geometry){
+        setGeometry(geometry);
         double[] coords = toCartesian(azimuth, elevation, distance);
         leftMostPoint = coords.clone();
         rightMostPoint = coords.clone();
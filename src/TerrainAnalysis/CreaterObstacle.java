@@ -2,6 +2,8 @@
 // Open Source Software; you can modify and/or share it
 package TerrainAnalysis;
 
+import Hardware.VelodyneLidarHDL.LidarGeometry;
+
 import java.lang.String;
 import java.text.DecimalFormat;
 /**
@@ -55,6 +57,19 @@ public class CreaterObstacle extends Obstacle{
      * @param groundRefIn Point to be used as the reference for ground.
      */
     public CreaterObstacle(int azimuth, int elevation, double distance, double groundRefIn){
+        this(azimuth, elevation, distance, groundRefIn, LidarGeometry.DEFAULT);
+    }
+    /**
+     * CreaterObstacle constructor for polar cordinates coming from a lidar with its own geometry.
+     * 
+     * @param azimuth Azimuth angle, in degrees, at which the obstacle is first found.
+     * @param elevation Laser ID at which the obstacle is first found.
+     * @param distance Distance, in meters, at which the obstacle is first found.
+     * @param groundRefIn Point to be used as the reference for ground.
+     * @param geometry Geometry of the lidar used to convert polar coordinates to cartician.
+     */
+    public CreaterObstacle(int azimuth, int elevation, double distance, double groundRefIn, LidarGeometry geometry){
+        setGeometry(geometry);
         double[] coords = toCartesian(azimuth, elevation, distance);
         leftMostPoint = coords.clone();
         rightMostPoint = coords.clone();
@@ -0,0 +1,77 @@
+// Author: Ivan Ramos, <ivan-1081@hotmail.es>
+// Open Source Software; you can modify and/or share it
+package TerrainAnalysis;
+
+/**
+ * DeviationPyramid class used by the ObstacleFinder to skip ground while looking for seeds. Each laser row of a sorted
+ * frame is downsampled twice with max pooling: every tile keeps the largest deviation of POOL consecutive cells, and
+ * every block keeps the largest deviation of POOL consecutive tiles. Rows are then walked coarse to fine, only going
+ * down to full resolution inside tiles whose deviation exceeds the search tolerance.
+ *
+ * <p>Max pooling never hides a cell: a cell over the tolerance always lies in a tile and block over the tolerance, so
+ * seeds are visited in the same order as a full-resolution scan and searches give the same obstacles (tolerance of 0).
+ * Cells consumed by a BFS after the pyramid was built are still walked, and simply fail the seed check.
+ * <p>nextCandidate() function returns the next cell worth checking along a row.
+ */
+public class DeviationPyramid {
+
+    public static final int POOL = 16;     /**<Cells per tile and tiles per block */
+
+    private final double[][] _tiles;       /**<Largest deviation of every POOL cells, per row */
+    private final double[][] _blocks;      /**<Largest deviation of every POOL tiles, per row */
+    private final int _numberOfCells;      /**<Cells per row */
+    /**
+     * DeviationPyramid constructor. Cells holding NaN (lasers outside the field of view) never make a tile a candidate.
+     *
+     * @param grid Sorted frame, as filled by getSortedDistances() or getSortedPointCloud()
+     * @param column Column of each cell holding the value to pool (1 for distance deviation, 2 for height)
+     * @param reference Value subtracted before pooling (0 for distance deviation, ground reference for height)
+     * @param number_of_azimuths Cells per row
+     */
+    public DeviationPyramid(double[][][] grid, int column, double reference, int number_of_azimuths){
+        int numberOfTiles = (number_of_azimuths + POOL - 1) / POOL;
+        int numberOfBlocks = (numberOfTiles + POOL - 1) / POOL;
+        _numberOfCells = number_of_azimuths;
+        _tiles = new double[grid.length][numberOfTiles];
+        _blocks = new double[grid.length][numberOfBlocks];
+        for(int row = 0; row < grid.length; row++){
+            double[][] cells = grid[row];
+            double[] tiles = _tiles[row];
+            for(int cell = 0; cell < number_of_azimuths; cell++){
+                double deviation = java.lang.Math.abs(cells[cell][column] - reference);
+                if(deviation > tiles[cell / POOL]){
+                    tiles[cell / POOL] = deviation;
+                }
+            }
+            double[] blocks = _blocks[row];
+            for(int tile = 0; tile < numberOfTiles; tile++){
+                if(tiles[tile] > blocks[tile / POOL]){
+                    blocks[tile / POOL] = tiles[tile];
+                }
+            }
+        }
+    }
+    /**
+     * Get the next cell along a row that may exceed the tolerance. Blocks and tiles under the tolerance are skipped
+     * whole.
+     *
+     * @param row Laser row of the sorted frame
+     * @param from First cell to consider
+     * @param tolerance Deviation a cell has to exceed to be a seed
+     * @return Cell index, -1 if no cell from there on can exceed the tolerance
+     */
+    public int nextCandidate(int row, int from, double tolerance){
+        int cell = from;
+        while(cell < _numberOfCells){
+            int tile = cell / POOL;
+            if(_blocks[row][tile / POOL] <= tolerance){
+                cell = (tile / POOL + 1) * POOL * POOL;
+            }else if(_tiles[row][tile] <= tolerance){
+                cell = (tile + 1) * POOL;
+            }else{
+                return cell;
+            }
+        }
+        return -1;
+    }
+}
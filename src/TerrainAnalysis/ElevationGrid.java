@@ -0,0 +1,247 @@
+// Author: Ivan Ramos, <ivan-1081@hotmail.es>
+// Open Source Software; you can modify and/or share it
+package TerrainAnalysis;
+
+import Hardware.VelodyneLidarHDL.PacketDecoder;
+/**
+ * ElevationGrid class keeps a 2.5D map of the terrain around the robot: for every cell of a fixed-size grid it keeps
+ * the lowest, highest and mean Z seen along with the number of returns. It is filled straight from the decoder's point
+ * stream in cartician mode (see PacketDecoder.AddPointListener() or VelodyneLidar.setElevationGrid()), so frames never
+ * have to be sorted or stored to build it, and memory only depends on the size of the grid.
+ *
+ * <p>Cells are indexed by their position in the map (odometry) frame, wrapped around the size of the grid, so the grid
+ * is a ring buffer: scrollTo() moves the window with the robot by clearing only the rows and columns that come into
+ * view. setRobotPose() tells the grid where the robot is, so points given in the robot's frame land on the right cell.
+ * <p>By default each cell holds the returns of the latest frame that hit it, so terrain that changes (or was seen
+ * wrong) gets replaced on the next pass. setAccumulate(true) keeps adding returns across frames instead.
+ * <p>getCellIndex() function maps a position to its cell in O(1); getMinZ(), getMaxZ(), getMeanZ() and
+ * getNumberOfHits() functions read the cell back.
+ *
+ * <p>Points, frameCompleted() and clear() must come from a single thread (the lidar's). Pose and scroll requests can
+ * come from any thread: the pose is used from the next point on and the window scrolls at the next frameCompleted().
+ * Queries from other threads never block, but may see a cell halfway through being updated.
+ */
+public class ElevationGrid implements PacketDecoder.PointListener {
+
+    private final double _cellSize;   /**<Length of a cell side, in meters */
+    private final int _columns;       /**<Number of cells along the map's X axis */
+    private final int _rows;          /**<Number of cells along the map's Y axis */
+    private final float[] _minZ;      /**<Lowest Z per cell */
+    private final float[] _maxZ;      /**<Highest Z per cell */
+    private final float[] _sumZ;      /**<Sum of every Z per cell, used for the mean */
+    private final int[] _hits;        /**<Number of returns per cell */
+    private final int[] _frameStamp;  /**<Frame that last updated each cell, 0 if never */
+    private int _frame = 1;           /**<Frame currently being added */
+    private boolean _accumulate = false; /**<True to keep adding returns across frames */
+    private volatile int _originColumn; /**<Map column of the window's first column */
+    private volatile int _originRow;    /**<Map row of the window's first row */
+    private volatile double[] _pose = {0.0, 0.0, 1.0, 0.0}; /**<Robot's X, Y and the cosine and sine of its heading */
+    private volatile double[] _scrollTarget; /**<Center requested through scrollTo(), NULL if none pending */
+    /**
+     * ElevationGrid constructor. The window starts centered on the map's origin.
+     *
+     * @param width Size of the window along the map's X axis, in meters
+     * @param length Size of the window along the map's Y axis, in meters
+     * @param cellSize Length of a cell side, in meters
+     */
+    public ElevationGrid(double width, double length, double cellSize){
+        _cellSize = cellSize;
+        _columns = (int) java.lang.Math.ceil(width / cellSize);
+        _rows = (int) java.lang.Math.ceil(length / cellSize);
+        _minZ = new float[_columns * _rows];
+        _maxZ = new float[_columns * _rows];
+        _sumZ = new float[_columns * _rows];
+        _hits = new int[_columns * _rows];
+        _frameStamp = new int[_columns * _rows];
+        _originColumn = -_columns / 2;
+        _originRow = -_rows / 2;
+    }
+    /**
+     * Add a point decoded by a PacketDecoder. The point is moved from the robot's frame to the map frame with the
+     * latest robot pose.
+     */
+    @Override
+    public void point(int laserID, int azimuth, double x, double y, double z){
+        double[] pose = _pose;
+        addPoint(pose[0] + x * pose[2] - y * pose[3], pose[1] + x * pose[3] + y * pose[2], z);
+    }
+    /**
+     * Start a new frame and scroll the window if it was requested.
+     */
+    @Override
+    public void frameCompleted(){
+        _frame++;
+        double[] target = _scrollTarget;
+        if(target != null){
+            _scrollTarget = null;
+            _scroll(target[0], target[1]);
+        }
+    }
+    /**
+     * Add a single point, in the map frame, to the grid. Points outside of the window are dropped.
+     *
+     * @param x X coordinate in meters
+     * @param y Y coordinate in meters
+     * @param z Z coordinate in meters
+     */
+    public void addPoint(double x, double y, double z){
+        int cell = getCellIndex(x, y);
+        if(cell < 0){
+            return;
+        }
+        //First return of a frame replaces whatever older frames left in the cell
+        if(_hits[cell] == 0 || (_frameStamp[cell] != _frame && !_accumulate)){
+            _minZ[cell] = (float) z;
+            _maxZ[cell] = (float) z;
+            _sumZ[cell] = (float) z;
+            _hits[cell] = 1;
+        }else{
+            if(z < _minZ[cell]){
+                _minZ[cell] = (float) z;
+            }
+            if(z > _maxZ[cell]){
+                _maxZ[cell] = (float) z;
+            }
+            _sumZ[cell] += (float) z;
+            _hits[cell]++;
+        }
+        _frameStamp[cell] = _frame;
+    }
+    /**
+     * Set where the robot is in the map frame. Used to place the points coming from the decoder.
+     *
+     * @param x Robot's X coordinate in meters
+     * @param y Robot's Y coordinate in meters
+     * @param heading Robot's heading in radians, counter-clockwise from the map's axes
+     */
+    public void setRobotPose(double x, double y, double heading){
+        _pose = new double[] {x, y, java.lang.Math.cos(heading), java.lang.Math.sin(heading)};
+    }
+    /**
+     * Center the window on a position of the map frame (usually the robot's). The window moves at the next
+     * frameCompleted(); cells coming into view start empty and cells still in view are kept.
+     *
+     * @param x X coordinate in meters
+     * @param y Y coordinate in meters
+     */
+    public void scrollTo(double x, double y){
+        _scrollTarget = new double[] {x, y};
+    }
+    /**
+     * Keep adding returns to cells across frames instead of keeping only the latest frame that hit them.
+     *
+     * @param accumulate True to accumulate across frames
+     */
+    public void setAccumulate(boolean accumulate){
+        _accumulate = accumulate;
+    }
+    /**
+     * Empty every cell.
+     */
+    public void clear(){
+        for(int cell = 0; cell < _hits.length; cell++){
+            _hits[cell] = 0;
+            _frameStamp[cell] = 0;
+        }
+    }
+    /**
+     * Get the index of the cell a position falls on.
+     *
+     * @param x X coordinate in the map frame, in meters
+     * @param y Y coordinate in the map frame, in meters
+     * @return Cell index, -1 if outside of the window
+     */
+    public int getCellIndex(double x, double y){
+        int column = (int) java.lang.Math.floor(x / _cellSize);
+        int row = (int) java.lang.Math.floor(y / _cellSize);
+        int originColumn = _originColumn;
+        int originRow = _originRow;
+        if(column < originColumn || column >= originColumn + _columns || row < originRow || row >= originRow + _rows){
+            return -1;
+        }
+        return java.lang.Math.floorMod(row, _rows) * _columns + java.lang.Math.floorMod(column, _columns);
+    }
+
+    public int getNumberOfHits(int cell){
+        return _hits[cell];
+    }
+    /**
+     * Get the lowest Z seen in a cell.
+     *
+     * @param cell Cell index (see getCellIndex())
+     * @return Z in meters, NaN if the cell is empty
+     */
+    public double getMinZ(int cell){
+        return (_hits[cell] == 0)? Double.NaN : _minZ[cell];
+    }
+    /**
+     * Get the highest Z seen in a cell.
+     *
+     * @param cell Cell index (see getCellIndex())
+     * @return Z in meters, NaN if the cell is empty
+     */
+    public double getMaxZ(int cell){
+        return (_hits[cell] == 0)? Double.NaN : _maxZ[cell];
+    }
+    /**
+     * Get the mean Z of a cell.
+     *
+     * @param cell Cell index (see getCellIndex())
+     * @return Z in meters, NaN if the cell is empty
+     */
+    public double getMeanZ(int cell){
+        int hits = _hits[cell];
+        return (hits == 0)? Double.NaN : _sumZ[cell] / hits;
+    }
+    /**
+     * Get how many frames ago a cell was last updated.
+     *
+     * @param cell Cell index (see getCellIndex())
+     * @return Number of frames, 0 if updated by the current frame, -1 if the cell is empty
+     */
+    public int getFramesSinceUpdate(int cell){
+        return (_hits[cell] == 0)? -1 : _frame - _frameStamp[cell];
+    }
+
+    public double getCellSize(){
+        return _cellSize;
+    }
+
+    public int getNumberOfColumns(){
+        return _columns;
+    }
+
+    public int getNumberOfRows(){
+        return _rows;
+    }
+    /**
+     * Move the window so its center cell holds a position, emptying the columns and rows that come into view.
+     */
+    private void _scroll(double x, double y){
+        int originColumn = (int) java.lang.Math.floor(x / _cellSize) - _columns / 2;
+        int originRow = (int) java.lang.Math.floor(y / _cellSize) - _rows / 2;
+        int shiftColumns = originColumn - _originColumn;
+        int shiftRows = originRow - _originRow;
+        if(java.lang.Math.abs(shiftColumns) >= _columns || java.lang.Math.abs(shiftRows) >= _rows){
+            clear();
+        }else{
+            //Map columns (rows) that come into view reuse the storage of the ones that leave it
+            int first = (shiftColumns > 0)? _originColumn + _columns : originColumn;
+            for(int column = first; column < first + java.lang.Math.abs(shiftColumns); column++){
+                int storageColumn = java.lang.Math.floorMod(column, _columns);
+                for(int row = 0; row < _rows; row++){
+                    _hits[row * _columns + storageColumn] = 0;
+                }
+            }
+            first = (shiftRows > 0)? _originRow + _rows : originRow;
+            for(int row = first; row < first + java.lang.Math.abs(shiftRows); row++){
+                int storageRow = java.lang.Math.floorMod(row, _rows);
+                for(int column = 0; column < _columns; column++){
+                    _hits[storageRow * _columns + column] = 0;
+                }
+            }
+        }
+        _originColumn = originColumn;
+        _originRow = originRow;
+    }
+}
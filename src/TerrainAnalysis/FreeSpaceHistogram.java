@@ -0,0 +1,175 @@
+// Author: Ivan Ramos, <ivan-1081@hotmail.es>
+// Open Source Software; you can modify and/or share it
+package TerrainAnalysis;
+
+import Hardware.VelodyneLidarHDL.LidarGeometry;
+import Hardware.VelodyneLidarHDL.PacketDecoder;
+import Hardware.VelodyneLidarHDL.PacketDecoder.HDLFrame;
+import Hardware.VelodyneLidarHDL.PacketDecoder.HDLSparseFrame;
+
+import java.util.Arrays;
+/**
+ * FreeSpaceHistogram class keeps, per heading bin, the range to the nearest return that deviates from the ground. It is
+ * all an avoidance controller needs, and it is built in a single pass over the returns without creating Obstacles.
+ * Headings are measured clockwise from the robot's forward (+Y) axis, same as frame azimuths, and bin N covers
+ * [N * 360 / bins, (N + 1) * 360 / bins) degrees. Ranges are horizontal distances from the robot's center, in meters.
+ *
+ * <p>In cartician mode it is fed straight from the decoder's point stream (see VelodyneLidar.setFreeSpaceHistogram()).
+ * <p>In polar mode addFrame() walks the returns the decoder flagged as anomalous (anomaly mask, or the cells of a sparse
+ * frame), so the decoder's anomaly threshold is used instead of the histogram's.
+ * <p>frameCompleted() function publishes the frame as an immutable Snapshot. getSnapshot() is a single volatile read,
+ * so a control loop can poll it as often as it wants without locks.
+ */
+public class FreeSpaceHistogram implements PacketDecoder.PointListener {
+
+    private final int _bins;               /**<Number of heading bins */
+    private final double _binsPerRadian;
+    private final double _heightTolarence; /**<How far from _groundRef a point has to be to count as a hazard */
+    private final double _groundRef;       /**<Ground reference */
+    private final float[] _ranges;         /**<Nearest hazard per bin of the frame being built */
+    private final double[] _point = new double[3];
+    private volatile Snapshot _snapshot;   /**<Last published frame */
+    /**
+     * FreeSpaceHistogram constructor.
+     *
+     * @param bins Number of heading bins covering the full turn
+     * @param heightTolarence How far, in meters, a point has to be from the ground to count as a hazard (cartician mode)
+     * @param groundRef Referance point, in meters, to be used as ground (cartician mode)
+     */
+    public FreeSpaceHistogram(int bins, double heightTolarence, double groundRef){
+        _bins = bins;
+        _binsPerRadian = bins / (2 * java.lang.Math.PI);
+        _heightTolarence = heightTolarence;
+        _groundRef = groundRef;
+        _ranges = new float[bins];
+        Arrays.fill(_ranges, Float.POSITIVE_INFINITY);
+        _snapshot = new Snapshot(_ranges.clone(), System.nanoTime());
+    }
+    /**
+     * Add a point decoded by a PacketDecoder. Only points off the ground are binned. Returns with no echo never reach
+     * listeners, so they are not taken for hazards on the sensor.
+     */
+    @Override
+    public void point(int laserID, int azimuth, double x, double y, double z){
+        if(java.lang.Math.abs(z - _groundRef) > _heightTolarence){
+            _addHazard(x, y);
+        }
+    }
+    /**
+     * Publish the frame built so far and start a new one.
+     */
+    @Override
+    public void frameCompleted(){
+        _snapshot = new Snapshot(_ranges.clone(), System.nanoTime());
+        Arrays.fill(_ranges, Float.POSITIVE_INFINITY);
+    }
+    /**
+     * Bin the anomalous returns of a polar frame and publish it. Frames without an anomaly mask are published empty.
+     *
+     * @param frame HDLFrame produced by a decoder with an anomaly threshold set
+     */
+    public void addFrame(HDLFrame frame){
+        final LidarGeometry geometry = frame.getGeometry();
+        if(frame instanceof HDLSparseFrame){
+            //Sparse frames only keep anomalous returns
+            frame.forEachReturn(new PacketDecoder.ReturnVisitor(){
+                @Override
+                public void visit(int laserID, int azimuth, double distance){
+                    //Returns with no echo deviate from the ground but are not hazards
+                    if(distance > 0){
+                        geometry.toRobotFrame(azimuth, laserID, distance, _point);
+                        _addHazard(_point[0], _point[1]);
+                    }
+                }
+            });
+        }else if(frame.hasAnomalyMask()){
+            for(int laserID = 0; laserID < PacketDecoder.laserIdMap.length; laserID++){
+                long[] mask = frame.getAnomalyMask(laserID);
+                for(int word = 0; word < mask.length; word++){
+                    long bits = mask[word];
+                    while(bits != 0){
+                        int azimuth = (frame.getAzimuthOrigin() + (word << 6) + Long.numberOfTrailingZeros(bits)) % 36000;
+                        bits &= bits - 1;
+                        double distance = frame.getDistance(laserID, azimuth);
+                        if(distance > 0){
+                            geometry.toRobotFrame(azimuth, laserID, distance, _point);
+                            _addHazard(_point[0], _point[1]);
+                        }
+                    }
+                }
+            }
+        }
+        frameCompleted();
+    }
+
+    public Snapshot getSnapshot(){
+        return _snapshot;
+    }
+
+    public int getNumberOfBins(){
+        return _bins;
+    }
+    /**
+     * Keep a hazard if it is the nearest of its bin.
+     */
+    private void _addHazard(double x, double y){
+        double heading = java.lang.Math.atan2(x, y);
+        int bin = (int) ((heading < 0)? (heading + 2 * java.lang.Math.PI) * _binsPerRadian : heading * _binsPerRadian);
+        bin = (bin >= _bins)? _bins - 1 : bin;
+        float range = (float) java.lang.Math.sqrt(x * x + y * y);
+        if(range < _ranges[bin]){
+            _ranges[bin] = range;
+        }
+    }
+    /**
+     * Snapshot class holding the nearest hazard per heading bin of a single frame. Never modified once published.
+     */
+    public static class Snapshot{
+
+        private final float[] _ranges;
+        private final long _publishNanos;
+
+        private Snapshot(float[] ranges, long publishNanos){
+            _ranges = ranges;
+            _publishNanos = publishNanos;
+        }
+        /**
+         * Get the range to the nearest hazard of a bin.
+         *
+         * @param bin Heading bin (0 - bins - 1)
+         * @return Range in meters, Float.POSITIVE_INFINITY if nothing was seen
+         */
+        public float getRange(int bin){
+            return _ranges[bin];
+        }
+        /**
+         * Get the range to the nearest hazard at a heading.
+         *
+         * @param degrees Heading in degrees, clockwise from forward
+         * @return Range in meters, Float.POSITIVE_INFINITY if nothing was seen
+         */
+        public float getRangeAt(double degrees){
+            double turn = degrees / 360.0;
+            turn -= java.lang.Math.floor(turn);
+            return _ranges[java.lang.Math.min(_ranges.length - 1, (int) (turn * _ranges.length))];
+        }
+        /**
+         * Copy every bin into a buffer.
+         *
+         * @param ranges Return buffer, at least getNumberOfBins() long
+         */
+        public void copyTo(float[] ranges){
+            System.arraycopy(_ranges, 0, ranges, 0, _ranges.length);
+        }
+
+        public int getNumberOfBins(){
+            return _ranges.length;
+        }
+        /**
+         * Get the System.nanoTime() at which the snapshot was published.
+         */
+        public long getPublishNanos(){
+            return _publishNanos;
+        }
+    }
+}
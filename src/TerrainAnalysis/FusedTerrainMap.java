@@ -0,0 +1,225 @@
+// Author: Ivan Ramos, <ivan-1081@hotmail.es>
+// Open Source Software; you can modify and/or share it
+package TerrainAnalysis;
+
+import Hardware.VelodyneLidarHDL.LidarGeometry;
+import Hardware.VelodyneLidarHDL.PacketDecoder;
+import Hardware.VelodyneLidarHDL.PacketDecoder.HDLFrame;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+/**
+ * FusedTerrainMap combines the returns of several lidars into a single grid in the robot's frame. Each lidar's frame is
+ * converted with that lidar's LidarGeometry (rotation matrix of its mount plus its position, see toRobotFrame()) and
+ * accumulated into the cells it falls on. Cells keep the lowest and highest Z seen along with the number of returns.
+ *
+ * <p>fuse() function can be called at the same time from every lidar's thread. Cells are updated with atomic
+ * compare-and-set operations so no locks are taken.
+ * <p>findObstacles() function runs an ObstacleFinder-like search once over the fused grid.
+ * <p>clear() function resets the grid. It must not be called while lidars are still fusing.
+ */
+public class FusedTerrainMap {
+
+    private final double _cellSize;   /**<Length of a cell side, in meters */
+    private final int _columns;       /**<Number of cells along the robot's X axis */
+    private final int _rows;          /**<Number of cells along the robot's Y axis */
+    private final double _minX;       /**<X coordinate of the grid's left edge */
+    private final double _minY;       /**<Y coordinate of the grid's back edge */
+    private final AtomicIntegerArray _minZ; /**<Lowest Z per cell, stored as sortable float bits */
+    private final AtomicIntegerArray _maxZ; /**<Highest Z per cell, stored as sortable float bits */
+    private final AtomicIntegerArray _hits; /**<Number of returns per cell */
+    /**
+     * FusedTerrainMap constructor. The grid is centered on the robot.
+     *
+     * @param width Size of the grid along the robot's X axis, in meters
+     * @param length Size of the grid along the robot's Y axis, in meters
+     * @param cellSize Length of a cell side, in meters
+     */
+    public FusedTerrainMap(double width, double length, double cellSize){
+        _cellSize = cellSize;
+        _columns = (int) java.lang.Math.ceil(width / cellSize);
+        _rows = (int) java.lang.Math.ceil(length / cellSize);
+        _minX = -(_columns * cellSize) / 2;
+        _minY = -(_rows * cellSize) / 2;
+        _minZ = new AtomicIntegerArray(_columns * _rows);
+        _maxZ = new AtomicIntegerArray(_columns * _rows);
+        _hits = new AtomicIntegerArray(_columns * _rows);
+        clear();
+    }
+    /**
+     * Add every return of a frame to the grid. Safe to call from several threads at once.
+     *
+     * @param frame HDLFrame coming from any lidar. Its geometry is used for the conversion
+     */
+    public void fuse(HDLFrame frame){
+        final LidarGeometry geometry = frame.getGeometry();
+        final double[] point = new double[3];
+        frame.forEachReturn(new PacketDecoder.ReturnVisitor(){
+            @Override
+            public void visit(int laserID, int azimuth, double distance){
+                geometry.toRobotFrame(azimuth, laserID, distance, point);
+                addPoint(point[0], point[1], point[2]);
+            }
+        });
+    }
+    /**
+     * Add a single point, in the robot's frame, to the grid. Safe to call from several threads at once.
+     *
+     * @param x X coordinate in meters
+     * @param y Y coordinate in meters
+     * @param z Z coordinate in meters
+     */
+    public void addPoint(double x, double y, double z){
+        int cell = getCellIndex(x, y);
+        if(cell < 0){
+            return;
+        }
+        int sortable = _toSortable((float) z);
+        int current;
+        while(sortable < (current = _minZ.get(cell)) && !_minZ.compareAndSet(cell, current, sortable)){
+        }
+        while(sortable > (current = _maxZ.get(cell)) && !_maxZ.compareAndSet(cell, current, sortable)){
+        }
+        _hits.incrementAndGet(cell);
+    }
+    /**
+     * Reset every cell. Must not be called while other threads are fusing.
+     */
+    public void clear(){
+        int empty_min = _toSortable(Float.POSITIVE_INFINITY);
+        int empty_max = _toSortable(Float.NEGATIVE_INFINITY);
+        for(int i = 0; i < _hits.length(); i++){
+            _minZ.set(i, empty_min);
+            _maxZ.set(i, empty_max);
+            _hits.set(i, 0);
+        }
+    }
+    /**
+     * Look for obstacles in the fused grid. A cell is a positive hit if its highest Z is above groundRef + heightTolarence
+     * (boulder) or its lowest Z is below groundRef - heightTolarence (creater). A BFS groups neighbouring positive cells and
+     * the group is kept if it holds more than positiveHitsThreshold returns.
+     *
+     * @param heightTolarence Threshold, in meters, to count a cell as a positive hit
+     * @param groundRef Referance point, in meters, to be used as ground
+     * @param positiveHitsThreshold Number of returns needed to declare an Obstacle found
+     * @return All Obstacles found, in robot coordinates
+     */
+    public ArrayList<Obstacle> findObstacles(double heightTolarence, double groundRef, int positiveHitsThreshold){
+        ArrayList<Obstacle> found = new ArrayList<Obstacle>();
+        boolean[] visited = new boolean[_hits.length()];
+        for(int cell = 0; cell < _hits.length(); cell++){
+            if(visited[cell] || _cellType(cell, heightTolarence, groundRef) == Obstacle.obstacleType.NONE){
+                continue;
+            }
+            Obstacle obstacle;
+            if((obstacle = _investigateArea(cell, visited, heightTolarence, groundRef, positiveHitsThreshold)) != null){
+                found.add(obstacle);
+            }
+        }
+        return found;
+    }
+    /**
+     * Get the index of the cell a point falls on.
+     *
+     * @param x X coordinate in meters
+     * @param y Y coordinate in meters
+     * @return Cell index, -1 if outside of the grid
+     */
+    public int getCellIndex(double x, double y){
+        int column = (int) java.lang.Math.floor((x - _minX) / _cellSize);
+        int row = (int) java.lang.Math.floor((y - _minY) / _cellSize);
+        if(column < 0 || column >= _columns || row < 0 || row >= _rows){
+            return -1;
+        }
+        return row * _columns + column;
+    }
+
+    public int getNumberOfHits(int cell){
+        return _hits.get(cell);
+    }
+
+    public double getMinZ(int cell){
+        return _fromSortable(_minZ.get(cell));
+    }
+
+    public double getMaxZ(int cell){
+        return _fromSortable(_maxZ.get(cell));
+    }
+    /**
+     * BFS over neighbouring cells of the same type starting at a positive hit.
+     */
+    private Obstacle _investigateArea(int cell, boolean[] visited, double heightTolarence, double groundRef, int positiveHitsThreshold){
+        Obstacle.obstacleType type = _cellType(cell, heightTolarence, groundRef);
+        Obstacle candidate;
+        if(type == Obstacle.obstacleType.BOULDER){
+            candidate = new BoulderObstacle(_cellPoint(cell, type), groundRef);
+        }else{
+            candidate = new CreaterObstacle(_cellPoint(cell, type), groundRef);
+        }
+        int foundPoints = 0;
+        Queue<Integer> searchQueue = new LinkedList<>();
+        visited[cell] = true;
+        searchQueue.add(cell);
+        while(!searchQueue.isEmpty()){
+            cell = searchQueue.remove();
+            foundPoints += _hits.get(cell);
+            candidate.updateBounds(_cellPoint(cell, type));
+            int row = cell / _columns;
+            int column = cell % _columns;
+            int[] neighbours = {
+                (row > 0)? cell - _columns : -1,
+                (row < _rows - 1)? cell + _columns : -1,
+                (column > 0)? cell - 1 : -1,
+                (column < _columns - 1)? cell + 1 : -1
+            };
+            for(int neighbour : neighbours){
+                if(neighbour >= 0 && !visited[neighbour] && _cellType(neighbour, heightTolarence, groundRef) == type){
+                    visited[neighbour] = true;
+                    searchQueue.add(neighbour);
+                }
+            }
+        }
+        if(foundPoints > positiveHitsThreshold){
+            return candidate;
+        }else{
+            return null;
+        }
+    }
+    /**
+     * Classify a cell against the ground reference.
+     */
+    private Obstacle.obstacleType _cellType(int cell, double heightTolarence, double groundRef){
+        if(_hits.get(cell) == 0){
+            return Obstacle.obstacleType.NONE;
+        }
+        if(getMaxZ(cell) - groundRef > heightTolarence){
+            return Obstacle.obstacleType.BOULDER;
+        }
+        if(getMinZ(cell) - groundRef < -heightTolarence){
+            return Obstacle.obstacleType.CREATER;
+        }
+        return Obstacle.obstacleType.NONE;
+    }
+    /**
+     * Center of a cell with its highest (boulder) or lowest (creater) Z.
+     */
+    private double[] _cellPoint(int cell, Obstacle.obstacleType type){
+        double x = _minX + (cell % _columns + 0.5) * _cellSize;
+        double y = _minY + (cell / _columns + 0.5) * _cellSize;
+        double z = (type == Obstacle.obstacleType.BOULDER)? getMaxZ(cell) : getMinZ(cell);
+        return new double[] {x, y, z};
+    }
+    /**
+     * Map float bits to an int with the same ordering so they can be compared and swapped atomically.
+     */
+    private static int _toSortable(float value){
+        int bits = Float.floatToIntBits(value);
+        return bits ^ ((bits >> 31) & 0x7FFFFFFF);
+    }
+
+    private static float _fromSortable(int sortable){
+        return Float.intBitsToFloat(sortable ^ ((sortable >> 31) & 0x7FFFFFFF));
+    }
+}
@@ -2,6 +2,7 @@
 // Open Source Software; you can modify and/or share it
 package TerrainAnalysis;
 
+import Hardware.VelodyneLidarHDL.LidarGeometry;
 import Hardware.VelodyneLidarHDL.PacketDecoder;
 import java.lang.String;
 /**
@@ -14,6 +15,15 @@ import java.lang.String;
  */
 public abstract class Obstacle {
 
+    private LidarGeometry _geometry = LidarGeometry.DEFAULT; /**<Geometry of the lidar that found the Obstacle. Used for polar to cartician conversions */
+    private boolean _hasPolarBounds = false; /**<True if polar bounds have been accumulated but not yet resolved */
+    private int _minAzimuth, _maxAzimuth;    /**<Azimuth range (signed, see LIDAR_ROTATION_ANGLE) of accumulated points */
+    private int _lowestLaser, _highestLaser; /**<Lasers with the lowest and highest elevation angle among accumulated points */
+    private double _minDistance, _maxDistance; /**<Distance range of accumulated points */
+    private boolean _hasFrameTiming = false;   /**<True once stamped with the frame it was found in */
+    private long _firstPacketNanos, _lastPacketNanos; /**<Arrival time (System.nanoTime()) of the first and last packet of that frame */
+    private long _sensorTimestamp = -1;       /**<Sensor timestamp (microseconds past the hour) of the last packet of that frame */
+
     /**
      * Enumerator to indicate type of Obstacle object
      */
@@ -104,7 +114,141 @@ public abstract class Obstacle {
      */
     public abstract String toString();
     /**
-     * Turn given polar coordinates into cartician coordinates based on the laser Id, distance and azimuth values
+     * Get the geometry of the lidar used to find the Obstacle.
+     * 
+     * @return LidarGeometry used for polar to cartician conversions
+     */
+    public LidarGeometry getGeometry(){
+        return _geometry;
+    }
+    /**
+     * Set the geometry of the lidar used to find the Obstacle. Must be called before any polar coordinates are fed in.
+     * 
+     * @param geometry LidarGeometry used for polar to cartician conversions
+     */
+    protected void setGeometry(LidarGeometry geometry){
+        _geometry = geometry;
+    }
+    /**
+     * Stamp the Obstacle with the arrival times of the frame it was found in. Only the first stamp is kept.
+     * 
+     * @param frame HDLFrame the Obstacle was found in
+     */
+    public void stampFrame(PacketDecoder.HDLFrame frame){
+        if(_hasFrameTiming || frame.getPacketsDecoded() == 0){
+            return;
+        }
+        _hasFrameTiming = true;
+        _firstPacketNanos = frame.getFirstPacketNanos();
+        _lastPacketNanos = frame.getLastPacketNanos();
+        _sensorTimestamp = frame.getLastSensorTimestamp();
+    }
+    /**
+     * Returns true if the Obstacle knows when the data it was found in arrived.
+     * 
+     * @return True if stamped through stampFrame()
+     */
+    public boolean hasFrameTiming(){
+        return _hasFrameTiming;
+    }
+    /**
+     * Get the time at which the first packet of the frame the Obstacle was found in arrived.
+     * 
+     * @return System.nanoTime() at arrival. Only meaningful if hasFrameTiming()
+     */
+    public long getFirstPacketNanos(){
+        return _firstPacketNanos;
+    }
+    /**
+     * Get the time at which the last packet of the frame the Obstacle was found in arrived.
+     * 
+     * @return System.nanoTime() at arrival. Only meaningful if hasFrameTiming()
+     */
+    public long getLastPacketNanos(){
+        return _lastPacketNanos;
+    }
+    /**
+     * Get the sensor's (GPS) timestamp of the last packet of the frame the Obstacle was found in.
+     * 
+     * @return Microseconds past the hour, -1 if not stamped
+     */
+    public long getSensorTimestamp(){
+        return _sensorTimestamp;
+    }
+    /**
+     * Accumulate a point, in polar coordinates, found to be part of the Obstacle without converting it to cartician.
+     * Only the azimuth, elevation and distance ranges are kept. Call resolvePolarBounds() once the Obstacle is complete
+     * to extend the boundary box to cover them.
+     * 
+     * @param azimuth azimuth angle (degrees) as an integer and multiplied by 100 (ex: 10.20 -> 1020)
+     * @param laserID laser ID of the point
+     * @param distance distance in meters as a double
+     */
+    public void accumulatePolar(int azimuth, int laserID, double distance){
+        int az = _geometry.unwrapAzimuth(azimuth);
+        if(!_hasPolarBounds){
+            _hasPolarBounds = true;
+            _minAzimuth = _maxAzimuth = az;
+            _lowestLaser = _highestLaser = laserID;
+            _minDistance = _maxDistance = distance;
+            return;
+        }
+        if(az < _minAzimuth){
+            _minAzimuth = az;
+        }else if(az > _maxAzimuth){
+            _maxAzimuth = az;
+        }
+        if(PacketDecoder.elAngle_lookup_table[laserID] < PacketDecoder.elAngle_lookup_table[_lowestLaser]){
+            _lowestLaser = laserID;
+        }else if(PacketDecoder.elAngle_lookup_table[laserID] > PacketDecoder.elAngle_lookup_table[_highestLaser]){
+            _highestLaser = laserID;
+        }
+        if(distance < _minDistance){
+            _minDistance = distance;
+        }else if(distance > _maxDistance){
+            _maxDistance = distance;
+        }
+    }
+    /**
+     * Convert the accumulated polar bounds to cartician and extend the boundary box with them, so the box covers every
+     * accumulated point. The corners of the polar box (azimuth x elevation x distance) are not enough on their own:
+     * X = d * cos(el) * sin(az) and Y = d * cos(el) * cos(az) peak at the axes (azimuths multiple of 90 degrees) and at
+     * an elevation of 0, so those are added whenever the azimuth or elevation range contains them.
+     */
+    public void resolvePolarBounds(){
+        if(!_hasPolarBounds){
+            return;
+        }
+        _hasPolarBounds = false;
+        int[] lasers = {_lowestLaser, _highestLaser};
+        double[] distances = {_minDistance, _maxDistance};
+        boolean crossesHorizon = _geometry.getElevationSin(_lowestLaser) < 0 && _geometry.getElevationSin(_highestLaser) > 0;
+        //Both ends of the azimuth range, plus every axis strictly inside of it (at most 4, the range spans one turn)
+        int[] azimuths = new int[6];
+        int count = 0;
+        azimuths[count++] = _minAzimuth;
+        for(int axis = java.lang.Math.floorDiv(_minAzimuth, 9000) * 9000 + 9000; axis < _maxAzimuth; axis += 9000){
+            azimuths[count++] = axis;
+        }
+        if(_maxAzimuth != _minAzimuth){
+            azimuths[count++] = _maxAzimuth;
+        }
+        for(int i = 0; i < count; i++){
+            int azimuth = (azimuths[i] + 36000) % 36000;
+            for(double distance : distances){
+                for(int laserID : lasers){
+                    updateBounds(toCartesian(azimuth, laserID, distance));
+                }
+                if(crossesHorizon){
+                    updateBounds(new double[] {distance * PacketDecoder.Az_sin_lookup_table[azimuth],
+                        distance * PacketDecoder.Az_cos_lookup_table[azimuth], _geometry.getHeightAt(azimuth)});
+                }
+            }
+        }
+    }
+    /**
+     * Turn given polar coordinates into cartician coordinates based on the laser Id, distance and azimuth values, using
+     * the geometry of the lidar that found the Obstacle
      * 
      * @param azimuth
      * @param laserID
@@ -112,17 +256,6 @@ public abstract class Obstacle {
      * @return Double array containing {X,Y,Z}
      */
     protected double[] toCartesian(int azimuth, int laserID, double distance){
-        double cosAz = PacketDecoder.Az_cos_lookup_table[azimuth];
-        double sinAz = PacketDecoder.Az_sin_lookup_table[azimuth];
-        double cosEl = PacketDecoder.El_cos_lookup_table[laserID % 16][0];
-        double sinEl = PacketDecoder.El_sin_lookup_table[laserID % 16][0];
-
-        double xy_plane_projection = distance * cosEl;
-        double X = xy_plane_projection * sinAz;
-        double Y = xy_plane_projection * cosAz;
-        double Z = distance * sinEl + PacketDecoder.Lidar_height_map[azimuth];
-
-        return new double[] {X, Y, Z};
-
+        return _geometry.toCartesian(azimuth, laserID, distance);
     }
 }
@@ -0,0 +1,211 @@
+// Author: Ivan Ramos, <ivan-1081@hotmail.es>
+// Open Source Software; you can modify and/or share it
+package TerrainAnalysis;
+
+import java.util.Collection;
+/**
+ * ObstacleBatch class holds the bounding boxes of a set of Obstacles in primitive arrays (one array per bound), so
+ * collision queries run as tight loops the JIT can unroll and vectorize. The Obstacles themselves are kept so the one
+ * found by a query can be handed back; they are never removed from the batch.
+ *
+ * <p>timeToCollision() functions sweep the robot's footprint along a constant velocity and yaw rate trajectory and return
+ * the soonest bounding box it touches. The footprint (see setFootprint()) is the robot's rectangle, rotated with the
+ * robot and checked against each box with a separating axis test. The trajectory is sampled every STEP_DISTANCE meters
+ * traveled by the footprint's corners.
+ * <p>Coordinates are in the robot's frame: X to the right, Y forward, robot centered at the origin. Positive yaw rates
+ * turn the robot counter-clockwise (to the left).
+ * <p>Queries reuse internal buffers, so a batch must only be queried from one thread at a time.
+ *
+ * <p>Ex:
+ *  ObstacleBatch batch = obstacleList.toBatch();
+ *  batch.setFootprint(0.6, 0.8);
+ *  ObstacleBatch.Collision collision = batch.timeToCollision(0.5, 0.1, 3.0);
+ */
+public class ObstacleBatch {
+
+    public static final double STEP_DISTANCE = 0.05;  /**<Longest distance, in meters, the footprint moves between samples */
+    public static final int MAX_STEPS = 512;          /**<Most samples taken along a single trajectory */
+
+    private final Obstacle[] _obstacles;
+    private final double[] _centerX;   /**<X of the center of every bounding box */
+    private final double[] _centerY;   /**<Y of the center of every bounding box */
+    private final double[] _halfX;     /**<Half the width of every bounding box */
+    private final double[] _halfY;     /**<Half the length of every bounding box */
+    private double _halfWidth = 0.0;   /**<Half the robot's width */
+    private double _halfLength = 0.0;  /**<Half the robot's length */
+    private double[] _sampleX = new double[0];   /**<X of the robot's center at every sample of the trajectory */
+    private double[] _sampleY = new double[0];   /**<Y of the robot's center at every sample of the trajectory */
+    private double[] _sampleCos = new double[0]; /**<Cosine of the robot's heading at every sample */
+    private double[] _sampleSin = new double[0]; /**<Sine of the robot's heading at every sample */
+    /**
+     * ObstacleBatch constructor. Bounding boxes are taken from each Obstacle's left most, right most, closest and
+     * fardest points. NULL entries (e.g. the terminator ending a manager's reply) are skipped.
+     *
+     * @param obstacles Obstacles to check against, in the robot's frame
+     */
+    public ObstacleBatch(Collection<? extends Obstacle> obstacles){
+        int size = 0;
+        for(Obstacle o : obstacles){
+            if(o != null){
+                size++;
+            }
+        }
+        _obstacles = new Obstacle[size];
+        _centerX = new double[size];
+        _centerY = new double[size];
+        _halfX = new double[size];
+        _halfY = new double[size];
+        int i = 0;
+        for(Obstacle o : obstacles){
+            if(o == null){
+                continue;
+            }
+            double minX = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY;
+            double minY = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+            for(double[] point : new double[][] {o.getLeftMostPoint(), o.getRightMostPoint(), o.getClosestPoint(), o.getFardestPoint()}){
+                minX = java.lang.Math.min(minX, point[0]);
+                maxX = java.lang.Math.max(maxX, point[0]);
+                minY = java.lang.Math.min(minY, point[1]);
+                maxY = java.lang.Math.max(maxY, point[1]);
+            }
+            _obstacles[i] = o;
+            _centerX[i] = (minX + maxX) / 2;
+            _centerY[i] = (minY + maxY) / 2;
+            _halfX[i] = (maxX - minX) / 2;
+            _halfY[i] = (maxY - minY) / 2;
+            i++;
+        }
+    }
+    /**
+     * Set the robot's footprint, a rectangle centered on the robot. Until set, the robot is a point.
+     *
+     * @param width Size of the robot along its X axis, in meters
+     * @param length Size of the robot along its Y axis, in meters
+     */
+    public void setFootprint(double width, double length){
+        _halfWidth = width / 2;
+        _halfLength = length / 2;
+    }
+    /**
+     * Find the soonest collision along a constant velocity and yaw rate trajectory.
+     *
+     * @param velocity Forward velocity in meters per second (negative drives backwards)
+     * @param yawRate Yaw rate in radians per second, counter-clockwise
+     * @param horizon Time to look ahead, in seconds
+     * @return Soonest Collision, NULL if the footprint touches nothing within the horizon
+     */
+    public Collision timeToCollision(double velocity, double yawRate, double horizon){
+        double[] time = new double[1];
+        int index = _timeToCollision(velocity, yawRate, horizon, time);
+        return (index < 0)? null : new Collision(time[0], index, _obstacles[index]);
+    }
+    /**
+     * Find the soonest collision of several candidate trajectories at once, without creating any objects.
+     *
+     * @param velocities Forward velocity of every trajectory, in meters per second
+     * @param yawRates Yaw rate of every trajectory, in radians per second, counter-clockwise
+     * @param horizon Time to look ahead, in seconds
+     * @param times Return buffer for the time to collision of every trajectory, Double.POSITIVE_INFINITY if none
+     * @param indices Return buffer for the index (see getObstacle()) of the obstacle hit by every trajectory, -1 if none
+     */
+    public void timeToCollision(double[] velocities, double[] yawRates, double horizon, double[] times, int[] indices){
+        double[] time = new double[1];
+        for(int trajectory = 0; trajectory < velocities.length; trajectory++){
+            indices[trajectory] = _timeToCollision(velocities[trajectory], yawRates[trajectory], horizon, time);
+            times[trajectory] = time[0];
+        }
+    }
+
+    public int getNumberOfObstacles(){
+        return _obstacles.length;
+    }
+
+    public Obstacle getObstacle(int index){
+        return _obstacles[index];
+    }
+    /**
+     * Sample a trajectory and check it against every bounding box.
+     *
+     * @return Index of the obstacle hit first, -1 if none. time[0] holds the time of the hit
+     */
+    private int _timeToCollision(double velocity, double yawRate, double horizon, double[] time){
+        time[0] = Double.POSITIVE_INFINITY;
+        if(_obstacles.length == 0){
+            return -1;
+        }
+        //Fastest a corner moves: translation plus rotation around the center
+        double speed = java.lang.Math.abs(velocity) + java.lang.Math.abs(yawRate) * java.lang.Math.hypot(_halfWidth, _halfLength);
+        int steps = (int) java.lang.Math.min(MAX_STEPS, java.lang.Math.ceil(speed * horizon / STEP_DISTANCE));
+        double dt = (steps == 0)? 0.0 : horizon / steps;
+        if(_sampleX.length < steps + 1){
+            _sampleX = new double[steps + 1];
+            _sampleY = new double[steps + 1];
+            _sampleCos = new double[steps + 1];
+            _sampleSin = new double[steps + 1];
+        }
+        for(int step = 0; step <= steps; step++){
+            double t = step * dt;
+            double sin = java.lang.Math.sin(yawRate * t);
+            double cos = java.lang.Math.cos(yawRate * t);
+            //Center of the robot along the arc (straight line if not turning)
+            if(java.lang.Math.abs(yawRate) < 1e-9){
+                _sampleX[step] = 0.0;
+                _sampleY[step] = velocity * t;
+            }else{
+                _sampleX[step] = (velocity / yawRate) * (cos - 1);
+                _sampleY[step] = (velocity / yawRate) * sin;
+            }
+            _sampleCos[step] = cos;
+            _sampleSin[step] = sin;
+        }
+        double hw = _halfWidth;
+        double hl = _halfLength;
+        int firstStep = steps + 1;
+        int hit = -1;
+        //Boxes further than the footprint can travel are never touched
+        double reach = java.lang.Math.abs(velocity) * horizon + java.lang.Math.hypot(hw, hl);
+        for(int i = 0; i < _obstacles.length; i++){
+            double bx = _centerX[i], by = _centerY[i], ex = _halfX[i], ey = _halfY[i];
+            if(bx * bx + by * by > (reach + ex + ey) * (reach + ex + ey)){
+                continue;
+            }
+            //Only samples before the soonest hit found so far matter
+            for(int step = 0; step < firstStep; step++){
+                //Robot's X axis is (cos, sin) and Y axis is (-sin, cos). Boxes touch unless an axis separates them
+                double cos = _sampleCos[step];
+                double sin = _sampleSin[step];
+                double absCos = java.lang.Math.abs(cos);
+                double absSin = java.lang.Math.abs(sin);
+                double dx = bx - _sampleX[step];
+                double dy = by - _sampleY[step];
+                boolean separated = java.lang.Math.abs(dx) > ex + hw * absCos + hl * absSin
+                    | java.lang.Math.abs(dy) > ey + hw * absSin + hl * absCos
+                    | java.lang.Math.abs(dx * cos + dy * sin) > hw + ex * absCos + ey * absSin
+                    | java.lang.Math.abs(dy * cos - dx * sin) > hl + ex * absSin + ey * absCos;
+                if(!separated){
+                    firstStep = step;
+                    hit = i;
+                    break;
+                }
+            }
+        }
+        if(hit >= 0){
+            time[0] = firstStep * dt;
+        }
+        return hit;
+    }
+    /**
+     * Collision class holding the result of a time to collision query.
+     */
+    public static class Collision{
+        public final double time;       /**<Seconds until the footprint touches the obstacle */
+        public final int index;         /**<Index of the obstacle within the batch */
+        public final Obstacle obstacle; /**<Obstacle hit */
+
+        private Collision(double time, int index, Obstacle obstacle){
+            this.time = time;
+            this.index = index;
+            this.obstacle = obstacle;
+        }
+    }
+}
@@ -2,9 +2,16 @@
 // Open Source Software; you can modify and/or share it
 package TerrainAnalysis;
 
+import Diagnostics.LidarEvents;
+import Diagnostics.PipelineMetrics;
+import Hardware.VelodyneLidarHDL.LidarGeometry;
+import Hardware.VelodyneLidarHDL.PacketDecoder;
 import Hardware.VelodyneLidarHDL.PacketDecoder.HDLFrame;
+import Hardware.VelodyneLidarHDL.PacketDecoder.HDLSparseFrame;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Queue;
 import java.util.LinkedList;
 /**
@@ -15,19 +22,34 @@ import java.util.LinkedList;
  * is compared to that of a flat plane.
  * <p>findObstaclesCartician() takes in an HDLFrame and analyzes it in cartician coordinates where it looks for concistant 
  * changes in height.
+ * <p>findObstaclesPolar()/findObstaclesCartician() with a time budget run an anytime search: seeds are searched nearest
+ * first and the search stops once the budget runs out, keeping whatever was found (see isLastSearchComplete()).
+ * <p>setMultiResolution() makes full searches walk each frame coarse to fine (see DeviationPyramid), only looking at
+ * full resolution where the frame deviates from the ground. Obstacles found are the same as with a full-resolution scan.
  * <p>Obstacle() related functions are then used to get number and retreive obstacles found if any.
  */
 public class ObstacleFinder implements TerrainAnalyzer {
 
-    private static double _heightTolarence; /**<How much does a point's Z-value have differe from _groundRef to trigger a search  */
-    private static double _groundRef;       /**<Ground reference */
-    private static int _positiveHitsThreshold; /**<How many possitive hits are needed to count a search as valid */
+    private double _heightTolarence; /**<How much does a point's Z-value have differe from _groundRef to trigger a search  */
+    private double _groundRef;       /**<Ground reference */
+    private int _positiveHitsThreshold; /**<How many possitive hits are needed to count a search as valid */
     private ArrayList<Obstacle> _foundObstacles = new ArrayList<Obstacle>(); /**<ArrayList to hold all found Obstacles */
 
     private final int HDL_LASER_PER_FIRING = 32;
     private final int z_cord = 2;
     
     private HDLFrame _frame; /**<Frame to be analyzed for Obstacles */
+    private LidarGeometry _geometry = LidarGeometry.DEFAULT; /**<Geometry of the lidar that produced _frame */
+    private PipelineMetrics _metrics; /**<Where sort latency is recorded, NULL to not record it */
+    private int _seeds = 0;           /**<Returns that triggered a BFS during the current search */
+    private int _visitedCells = 0;    /**<Cells taken off the BFS queues during the current search */
+    private int _obstaclesAtStart = 0; /**<Obstacles already in _foundObstacles when the current search started */
+    private boolean _lastSearchComplete = true; /**<False if the last search ran out of budget before visiting every seed */
+    private boolean _multiResolution = false; /**<True to walk frames coarse to fine through a DeviationPyramid */
+    private AnomalyPersistenceFilter _persistence; /**<Filter returns have to pass to seed a BFS, NULL if none */
+    private int _suppressedSeeds = 0; /**<Seeds dropped by _persistence during the current search */
+    private static final int SEED_INDEX_BITS = 20; /**<Low bits of a seed key holding the cell (row << 16 | azimuthID, or sparse cell) */
+    private static final int[] ROWS_NEAREST_FIRST = _rowsNearestFirst(); /**<Rows ordered by how close to the robot their laser hits the ground */
     /**
      * ObstacleFinder constructor.
      * 
@@ -40,6 +62,31 @@ public class ObstacleFinder implements TerrainAnalyzer {
         _groundRef = groundRef;
         _positiveHitsThreshold = positiveHitsThreshold;
     }
+    /**
+     * Record how long sorting frames takes.
+     * 
+     * @param metrics PipelineMetrics to record into, NULL to stop recording
+     */
+    public void setMetrics(PipelineMetrics metrics){
+        _metrics = metrics;
+    }
+    /**
+     * Walk frames coarse to fine when looking for seeds. Frames whose anomaly mask can be used are still seeded from it.
+     * 
+     * @param multiResolution True to skip ground through a DeviationPyramid, false to check every cell
+     */
+    public void setMultiResolution(boolean multiResolution){
+        _multiResolution = multiResolution;
+    }
+    /**
+     * Only seed searches from returns that were anomalous in enough of the latest frames (see AnomalyPersistenceFilter).
+     * Every frame searched is added to the filter's history.
+     * 
+     * @param filter AnomalyPersistenceFilter to use, NULL to seed from every anomalous return
+     */
+    public void setPersistenceFilter(AnomalyPersistenceFilter filter){
+        _persistence = filter;
+    }
     /**
      * Look for obstacles in polar coordinates within the provided frame. Found Obstacles are added to ArrayList and retreived through
      * getters.
@@ -48,17 +95,169 @@ public class ObstacleFinder implements TerrainAnalyzer {
      * Refer to PacketDecoder and VelodyneLidar class for more info with regards to HDLFrame
      */
     public void findObstaclesPolar(HDLFrame frame){
-        _frame = frame;
+        LidarEvents.ObstacleSearch event = _beginSearch();
+        _findObstaclesPolar(frame);
+        _commitSearch(event, (frame instanceof HDLSparseFrame)? "sparse" : ((_multiResolution)? "polar multires" : "polar"));
+    }
+    /**
+     * Look for Obstacles in cartician coordinates within the provided HDLFrame. Frame does not have to come from a 
+     * calibrated decoder/lidar.
+     * 
+     * @param frame HDLFrame used to look for obstacles.
+     * Refer to PacketDecoder and VelodyneLidar class for more info with regards to HDLFrame
+     */
+    public void findObstaclesCartician(HDLFrame frame){
+        LidarEvents.ObstacleSearch event = _beginSearch();
+        _findObstaclesCartician(frame);
+        _commitSearch(event, (_multiResolution)? "cartician multires" : "cartician");
+    }
+    /**
+     * Anytime version of findObstaclesPolar(). Seeds are searched nearest first and the search stops once the budget
+     * runs out, keeping every Obstacle found until then. Close-range obstacles are therefore never starved by far-field
+     * work when the CPU is contended.
+     * 
+     * @param frame HDLFrame used to look for obstacles (see findObstaclesPolar())
+     * @param budgetNanos Time budget in nanoseconds, sorting the frame included. 0 or less searches every seed
+     * @return True if every seed was searched, false if the budget ran out first
+     */
+    public boolean findObstaclesPolar(HDLFrame frame, long budgetNanos){
+        LidarEvents.ObstacleSearch event = _beginSearch();
+        long deadline = System.nanoTime() + budgetNanos;
+        _startFrame(frame);
+        if(frame instanceof HDLSparseFrame){
+            _lastSearchComplete = _findObstaclesSparseNearestFirst((HDLSparseFrame) frame, budgetNanos > 0, deadline);
+            _commitSearch(event, "sparse");
+            return _lastSearchComplete;
+        }
+        int number_of_azimuths = frame.getNumberOfAzimuthsInFrame();
+        double[][][] distances = new double[HDL_LASER_PER_FIRING / 2][number_of_azimuths][3];
+        //Rows left unsorted keep a deviation of 0, so they are never seeded nor crossed by a BFS
+        boolean allRowsSorted = _sortRowsNearestFirst(frame, distances, false, budgetNanos > 0, deadline);
+        //Gather every seed keyed by how close it is to the robot
+        long[] seeds = new long[64];
+        int numberOfSeeds = 0;
+        for(int laserID = 0; laserID < HDL_LASER_PER_FIRING / 2; laserID++){
+            for(int azimuthID = 0; azimuthID < number_of_azimuths; azimuthID++){
+                if(java.lang.Math.abs(distances[laserID][azimuthID][1]) > _heightTolarence
+                        && _isPersistent(PacketDecoder.laserIdMap[laserID], (int) distances[laserID][azimuthID][0])){
+                    if(numberOfSeeds == seeds.length){
+                        seeds = Arrays.copyOf(seeds, seeds.length * 2);
+                    }
+                    seeds[numberOfSeeds++] = _seedKey(distances[laserID][azimuthID][2],
+                        _angleFromForward((int) distances[laserID][azimuthID][0]), (laserID << 16) | azimuthID);
+                }
+            }
+        }
+        Arrays.sort(seeds, 0, numberOfSeeds);
+        _lastSearchComplete = allRowsSorted;
+        for(int i = 0; i < numberOfSeeds; i++){
+            if(budgetNanos > 0 && System.nanoTime() - deadline >= 0){
+                _lastSearchComplete = false;
+                break;
+            }
+            int laserID = (int) (seeds[i] >>> 16) & 0xF;
+            int azimuthID = (int) seeds[i] & 0xFFFF;
+            //Seed may have already been consumed by a previous BFS
+            if(java.lang.Math.abs(distances[laserID][azimuthID][1]) > _heightTolarence){
+                Obstacle obstacle;
+                _seeds++;
+                if((obstacle = this._investigateAreaPolar(distances, laserID, azimuthID, number_of_azimuths)) != null){
+                    addObstacle(obstacle);
+                }
+            }
+        }
+        _commitSearch(event, "polar");
+        return _lastSearchComplete;
+    }
+    /**
+     * Anytime version of findObstaclesCartician(). See findObstaclesPolar(frame, budgetNanos).
+     * 
+     * @param frame HDLFrame used to look for obstacles (see findObstaclesCartician())
+     * @param budgetNanos Time budget in nanoseconds, sorting the frame included. 0 or less searches every seed
+     * @return True if every seed was searched, false if the budget ran out first
+     */
+    public boolean findObstaclesCartician(HDLFrame frame, long budgetNanos){
+        LidarEvents.ObstacleSearch event = _beginSearch();
+        long deadline = System.nanoTime() + budgetNanos;
+        _startFrame(frame);
+        int number_of_azimuths = frame.getNumberOfAzimuthsInFrame();
+        double[][][] pointCloud = new double[HDL_LASER_PER_FIRING / 2][number_of_azimuths][3];
+        //Rows left unsorted are placed on the ground, so they are never seeded nor crossed by a BFS
+        boolean allRowsSorted = _sortRowsNearestFirst(frame, pointCloud, true, budgetNanos > 0, deadline);
+        long[] seeds = new long[64];
+        int numberOfSeeds = 0;
+        for(int laserID = 0; laserID < HDL_LASER_PER_FIRING / 2; laserID++){
+            for(int azimuthID = 0; azimuthID < number_of_azimuths; azimuthID++){
+                double[] point = pointCloud[laserID][azimuthID];
+                if(java.lang.Math.abs(point[z_cord] - _groundRef) > _heightTolarence
+                        && _isPersistent(PacketDecoder.laserIdMap[laserID], _azimuthOf(point))){
+                    if(numberOfSeeds == seeds.length){
+                        seeds = Arrays.copyOf(seeds, seeds.length * 2);
+                    }
+                    int fromForward = (int) java.lang.Math.round(java.lang.Math.toDegrees(java.lang.Math.abs(java.lang.Math.atan2(point[0], point[1]))) * 100);
+                    seeds[numberOfSeeds++] = _seedKey(java.lang.Math.hypot(point[0], point[1]), fromForward, (laserID << 16) | azimuthID);
+                }
+            }
+        }
+        Arrays.sort(seeds, 0, numberOfSeeds);
+        _lastSearchComplete = allRowsSorted;
+        for(int i = 0; i < numberOfSeeds; i++){
+            if(budgetNanos > 0 && System.nanoTime() - deadline >= 0){
+                _lastSearchComplete = false;
+                break;
+            }
+            int laserID = (int) (seeds[i] >>> 16) & 0xF;
+            int azimuthID = (int) seeds[i] & 0xFFFF;
+            if(java.lang.Math.abs(pointCloud[laserID][azimuthID][z_cord] - _groundRef) > _heightTolarence){
+                Obstacle obstacle;
+                _seeds++;
+                if((obstacle = this._investigateAreaCartesian(pointCloud, laserID, azimuthID, number_of_azimuths)) != null){
+                    addObstacle(obstacle);
+                }
+            }
+        }
+        _commitSearch(event, "cartician");
+        return _lastSearchComplete;
+    }
+    /**
+     * Check if the last search visited every seed. Searches without a budget are always complete.
+     * 
+     * @return False if the last search ran out of budget and obstacles further away may have been missed
+     */
+    public boolean isLastSearchComplete(){
+        return _lastSearchComplete;
+    }
+    /**
+     * See findObstaclesPolar().
+     */
+    private void _findObstaclesPolar(HDLFrame frame){
+        _startFrame(frame);
+        //Sparse frames are searched directly over their list of anomalous cells
+        if(frame instanceof HDLSparseFrame){
+            _findObstaclesSparse((HDLSparseFrame) frame);
+            return;
+        }
         int number_of_azimuths = frame.getNumberOfAzimuthsInFrame();
         double[][][] distances = new double[HDL_LASER_PER_FIRING / 2][number_of_azimuths][3];
         //Get all distances in a 2D array for searching
+        long sortStart = System.nanoTime();
         frame.getSortedDistances(distances, number_of_azimuths);
+        _recordSort(sortStart);
+        //If decoder already flagged anomalous returns, only visit those as seeds
+        if(frame.hasAnomalyMask() && frame.getAnomalyTolerance() <= _heightTolarence){
+            _seedFromAnomalyMaskPolar(frame, distances, number_of_azimuths);
+            return;
+        }
+        DeviationPyramid pyramid = (_multiResolution)? new DeviationPyramid(distances, 1, 0.0, number_of_azimuths) : null;
         //Begin search (Azimuth/X-axis fast).
         for(int laserID = 0; laserID < HDL_LASER_PER_FIRING / 2; laserID++){
-            for(int azimuthID = 0; azimuthID < number_of_azimuths; azimuthID++){
+            for(int azimuthID = _nextCell(pyramid, laserID, 0, number_of_azimuths); azimuthID >= 0;
+                    azimuthID = _nextCell(pyramid, laserID, azimuthID + 1, number_of_azimuths)){
                 //If point exceeds threshold, trigger BFS around found point.
-                if((java.lang.Math.abs(distances[laserID][azimuthID][1]) > _heightTolarence)){
+                if((java.lang.Math.abs(distances[laserID][azimuthID][1]) > _heightTolarence)
+                        && _isPersistent(PacketDecoder.laserIdMap[laserID], (int) distances[laserID][azimuthID][0])){
                     Obstacle obstacle;
+                    _seeds++;
                     //If Obstacle found, add to ArrayList
                     if((obstacle = this._investigateAreaPolar(distances, laserID, azimuthID, number_of_azimuths)) != null){
                         addObstacle(obstacle);
@@ -68,24 +267,32 @@ public class ObstacleFinder implements TerrainAnalyzer {
         }
     }
     /**
-     * Look for Obstacles in cartician coordinates within the provided HDLFrame. Frame does not have to come from a 
-     * calibrated decoder/lidar.
-     * 
-     * @param frame HDLFrame used to look for obstacles.
-     * Refer to PacketDecoder and VelodyneLidar class for more info with regards to HDLFrame
+     * See findObstaclesCartician().
      */
-    public void findObstaclesCartician(HDLFrame frame){
+    private void _findObstaclesCartician(HDLFrame frame){
+        _startFrame(frame);
         int number_of_azimuths = frame.getNumberOfAzimuthsInFrame();
         double[][][] pointCloud = new double[HDL_LASER_PER_FIRING / 2][number_of_azimuths][3];
         //Get all point-cloud data as a 3D array
+        long sortStart = System.nanoTime();
         frame.getSortedPointCloud(pointCloud, number_of_azimuths);
+        _recordSort(sortStart);
+        //Rows are sorted by X so the anomaly mask can not be mapped to cells, but rows with no flagged returns can be skipped
+        boolean useMask = frame.hasAnomalyMask() && frame.getAnomalyTolerance() <= _heightTolarence && frame.getAnomalyGroundRef() == _groundRef;
+        DeviationPyramid pyramid = (_multiResolution)? new DeviationPyramid(pointCloud, z_cord, _groundRef, number_of_azimuths) : null;
         //Begin search (Azimuth/X-Axis fast)
         for(int laserID = 0; laserID < HDL_LASER_PER_FIRING / 2; laserID++){
-            for(int azimuthID = 0; azimuthID < number_of_azimuths; azimuthID++){
+            if(useMask && _isEmpty(frame.getAnomalyMask(PacketDecoder.laserIdMap[laserID]))){
+                continue;
+            }
+            for(int azimuthID = _nextCell(pyramid, laserID, 0, number_of_azimuths); azimuthID >= 0;
+                    azimuthID = _nextCell(pyramid, laserID, azimuthID + 1, number_of_azimuths)){
                 double zValue = pointCloud[laserID][azimuthID][z_cord];
                 //If point's Z-value exceeds treshold, trigger a BFS around the found point
-                if((java.lang.Math.abs(zValue - _groundRef) > _heightTolarence)){
+                if((java.lang.Math.abs(zValue - _groundRef) > _heightTolarence)
+                        && _isPersistent(PacketDecoder.laserIdMap[laserID], _azimuthOf(pointCloud[laserID][azimuthID]))){
                     Obstacle obstacle;
+                    _seeds++;
                     //Add Obstacle to ArrayList if found
                     if((obstacle = this._investigateAreaCartesian(pointCloud, laserID, azimuthID, number_of_azimuths)) != null){
                         addObstacle(obstacle);
@@ -95,11 +302,417 @@ public class ObstacleFinder implements TerrainAnalyzer {
         }
     }
     /**
-     * Add a single Obstacle to ArrayList
+     * Look for obstacles in polar coordinates within a sparse frame. Every anomalous cell is used as a seed and the BFS
+     * moves along laser rows and neighbouring sampled azimuths, exactly as it would over the dense grid.
+     * 
+     * @param frame HDLSparseFrame to search
+     */
+    private void _findObstaclesSparse(HDLSparseFrame frame){
+        long sortStart = System.nanoTime();
+        int[] azimuths = frame.getSortedAzimuths();
+        _recordSort(sortStart);
+        int[] laserRow = new int[HDL_LASER_PER_FIRING / 2];
+        for(int row = 0; row < HDL_LASER_PER_FIRING / 2; row++){
+            laserRow[PacketDecoder.laserIdMap[row]] = row;
+        }
+        boolean[] visited = new boolean[frame.getNumberOfCells()];
+        for(int cell = 0; cell < frame.getNumberOfCells(); cell++){
+            if(visited[cell] || java.lang.Math.abs(frame.getCellDeviation(cell)) <= _heightTolarence
+                    || !_isPersistent(frame.getCellLaserID(cell), frame.getCellAzimuth(cell))){
+                continue;
+            }
+            Obstacle obstacle;
+            _seeds++;
+            if((obstacle = this._investigateAreaSparse(frame, azimuths, laserRow, visited, cell)) != null){
+                addObstacle(obstacle);
+            }
+        }
+    }
+    /**
+     * Anytime search over a sparse frame. See findObstaclesPolar(frame, budgetNanos).
+     * 
+     * @param frame HDLSparseFrame to search
+     * @param bounded True if the search has to stop at the deadline
+     * @param deadline System.nanoTime() at which the budget runs out
+     * @return True if every seed was searched
+     */
+    private boolean _findObstaclesSparseNearestFirst(HDLSparseFrame frame, boolean bounded, long deadline){
+        long sortStart = System.nanoTime();
+        int[] azimuths = frame.getSortedAzimuths();
+        _recordSort(sortStart);
+        int[] laserRow = new int[HDL_LASER_PER_FIRING / 2];
+        for(int row = 0; row < HDL_LASER_PER_FIRING / 2; row++){
+            laserRow[PacketDecoder.laserIdMap[row]] = row;
+        }
+        long[] seeds = new long[64];
+        int numberOfSeeds = 0;
+        for(int cell = 0; cell < frame.getNumberOfCells(); cell++){
+            if(java.lang.Math.abs(frame.getCellDeviation(cell)) > _heightTolarence
+                    && _isPersistent(frame.getCellLaserID(cell), frame.getCellAzimuth(cell))){
+                if(numberOfSeeds == seeds.length){
+                    seeds = Arrays.copyOf(seeds, seeds.length * 2);
+                }
+                seeds[numberOfSeeds++] = _seedKey(frame.getCellDistance(cell), _angleFromForward(frame.getCellAzimuth(cell)), cell);
+            }
+        }
+        Arrays.sort(seeds, 0, numberOfSeeds);
+        boolean[] visited = new boolean[frame.getNumberOfCells()];
+        for(int i = 0; i < numberOfSeeds; i++){
+            if(bounded && System.nanoTime() - deadline >= 0){
+                return false;
+            }
+            int cell = (int) (seeds[i] & ((1 << SEED_INDEX_BITS) - 1));
+            if(visited[cell]){
+                continue;
+            }
+            Obstacle obstacle;
+            _seeds++;
+            if((obstacle = this._investigateAreaSparse(frame, azimuths, laserRow, visited, cell)) != null){
+                addObstacle(obstacle);
+            }
+        }
+        return true;
+    }
+    /**
+     * Sort the rows of a frame one laser at a time, starting with the lasers pointing the furthest down (the ones that
+     * hit the ground closest to the robot), until the deadline.
+     * 
+     * @param frame HDLFrame to sort
+     * @param rows Return data, as filled by getSortedDistances() or getSortedPointCloud()
+     * @param pointCloud True to sort point cloud rows, false to sort distance rows
+     * @param bounded True if sorting has to stop at the deadline
+     * @param deadline System.nanoTime() at which the budget runs out
+     * @return True if every row got sorted
+     */
+    private boolean _sortRowsNearestFirst(HDLFrame frame, double[][][] rows, boolean pointCloud, boolean bounded, long deadline){
+        long sortStart = System.nanoTime();
+        int number_of_azimuths = rows[0].length;
+        boolean allRowsSorted = true;
+        for(int row : ROWS_NEAREST_FIRST){
+            if(bounded && System.nanoTime() - deadline >= 0){
+                allRowsSorted = false;
+                if(pointCloud){
+                    for(double[] point : rows[row]){
+                        point[z_cord] = _groundRef;
+                    }
+                }
+                continue;
+            }
+            if(pointCloud){
+                frame.getRowForLaserID(PacketDecoder.laserIdMap[row], rows[row], number_of_azimuths);
+            }else{
+                frame.getDistanceRowForLaserID(PacketDecoder.laserIdMap[row], rows[row], number_of_azimuths);
+            }
+        }
+        _recordSort(sortStart);
+        return allRowsSorted;
+    }
+    /**
+     * Rows of the sorted arrays ordered by their laser's elevation angle, lowest first.
+     */
+    private static int[] _rowsNearestFirst(){
+        Integer[] rows = new Integer[PacketDecoder.laserIdMap.length];
+        for(int row = 0; row < rows.length; row++){
+            rows[row] = row;
+        }
+        Arrays.sort(rows, new java.util.Comparator<Integer>(){
+            public int compare(Integer a, Integer b){
+                return Integer.compare(PacketDecoder.elAngle_lookup_table[PacketDecoder.laserIdMap[a]],
+                    PacketDecoder.elAngle_lookup_table[PacketDecoder.laserIdMap[b]]);
+            }
+        });
+        int[] order = new int[rows.length];
+        for(int row = 0; row < rows.length; row++){
+            order[row] = rows[row];
+        }
+        return order;
+    }
+    /**
+     * Build the key seeds are sorted by. Seeds are ordered by their distance to the robot, with seeds behind it counting
+     * as up to twice as far as seeds straight ahead, so the forward sector is searched first.
+     * 
+     * @param range Distance from the lidar to the seed, in meters
+     * @param fromForward Angle between the seed and the robot's forward (+Y) axis, degrees * 100 (0 - 18000)
+     * @param index Cell of the seed, packed into the low SEED_INDEX_BITS bits
+     * @return Seed key, smallest searched first
+     */
+    private static long _seedKey(double range, int fromForward, int index){
+        long priority = (long) (range * 1000.0 * (1.0 + fromForward / 18000.0));
+        return (priority << SEED_INDEX_BITS) | index;
+    }
+    /**
+     * Angle between a frame azimuth and the robot's forward axis (frame azimuth 0).
+     * 
+     * @param azimuth Azimuth angle used by frames
+     * @return Angle in degrees * 100 (0 - 18000)
+     */
+    private static int _angleFromForward(int azimuth){
+        return (azimuth > 18000)? 36000 - azimuth : azimuth;
+    }
+    /**
+     * Once a positive hit is found in a sparse frame, perform a BFS around it. Neighbours are the same laser at the
+     * previous/next sampled azimuth and the previous/next laser row at the same azimuth.
+     * 
+     * @param frame HDLSparseFrame being searched
+     * @param azimuths Sampled azimuths sorted as returned by getSortedAzimuths()
+     * @param laserRow Map from laser ID to row (inverse of PacketDecoder.laserIdMap)
+     * @param visited Cells already consumed by a search
+     * @param cell Index of the initially found positive hit
+     * @return Obstacle object if any found, NULL if not.
+     */
+    private Obstacle _investigateAreaSparse(HDLSparseFrame frame, int[] azimuths, int[] laserRow, boolean[] visited, int cell){
+        Queue<Integer> searchQueue = new LinkedList<>();
+        int foundPoints = 1;
+        Obstacle candidate;
+        int laserID = frame.getCellLaserID(cell);
+        int azimuth = frame.getCellAzimuth(cell);
+        if(frame.getCellDeviation(cell) < 0){
+            candidate = new BoulderObstacle(azimuth, laserID, frame.getCellDistance(cell), _groundRef, _geometry);
+        }else{
+            candidate = new CreaterObstacle(azimuth, laserID, frame.getCellDistance(cell), _groundRef, _geometry);
+        }
+        candidate.accumulatePolar(azimuth, laserID, frame.getCellDistance(cell));
+        visited[cell] = true;
+        searchQueue.add(cell);
+        int[] neighbourLaser = new int[4];
+        int[] neighbourAzimuth = new int[4];
+        while(!searchQueue.isEmpty()){
+            cell = searchQueue.remove();
+            _visitedCells++;
+            laserID = frame.getCellLaserID(cell);
+            azimuth = frame.getCellAzimuth(cell);
+            int row = laserRow[laserID];
+            int azimuthID = _indexOfAzimuth(azimuths, azimuth);
+            int count = 0;
+            if(row - 1 >= 0){
+                neighbourLaser[count] = PacketDecoder.laserIdMap[row - 1];
+                neighbourAzimuth[count++] = azimuth;
+            }
+            if(row + 1 < HDL_LASER_PER_FIRING / 2){
+                neighbourLaser[count] = PacketDecoder.laserIdMap[row + 1];
+                neighbourAzimuth[count++] = azimuth;
+            }
+            if(azimuthID - 1 >= 0){
+                neighbourLaser[count] = laserID;
+                neighbourAzimuth[count++] = azimuths[azimuthID - 1];
+            }
+            if(azimuthID + 1 < azimuths.length){
+                neighbourLaser[count] = laserID;
+                neighbourAzimuth[count++] = azimuths[azimuthID + 1];
+            }
+            for(int i = 0; i < count; i++){
+                int neighbour = frame.findCell(neighbourLaser[i], neighbourAzimuth[i]);
+                if(neighbour >= 0 && !visited[neighbour] && java.lang.Math.abs(frame.getCellDeviation(neighbour)) > _heightTolarence){
+                    foundPoints++;
+                    visited[neighbour] = true;
+                    candidate.accumulatePolar(neighbourAzimuth[i], neighbourLaser[i], frame.getCellDistance(neighbour));
+                    searchQueue.add(neighbour);
+                }
+            }
+        }
+        //Return candidate Obstacle if enough points were found
+        if(foundPoints > _positiveHitsThreshold){
+            candidate.resolvePolarBounds();
+            return candidate;
+        }else{
+            return null;
+        }
+    }
+    /**
+     * Find the index of an azimuth angle within the sorted azimuths of a sparse frame.
+     * 
+     * @param azimuths Azimuths sorted as returned by HDLSparseFrame.getSortedAzimuths()
+     * @param azimuth Azimuth angle to look for
+     * @return Index of azimuth, -1 if not found
+     */
+    private int _indexOfAzimuth(int[] azimuths, int azimuth){
+        double key = _unwrapAzimuth(azimuth);
+        int low = 0;
+        int high = azimuths.length - 1;
+        while(low <= high){
+            int mid = (low + high) >>> 1;
+            double midKey = _unwrapAzimuth(azimuths[mid]);
+            if(midKey < key){
+                low = mid + 1;
+            }else if(midKey > key){
+                high = mid - 1;
+            }else{
+                return mid;
+            }
+        }
+        return -1;
+    }
+    /**
+     * Seed the polar search only from the returns the decoder flagged as anomalous. Set bits are visited
+     * with Long.numberOfTrailingZeros and mapped to their azimuth index through a binary search.
+     * 
+     * @param frame HDLFrame carrying the anomaly mask
+     * @param distances Sorted distances produced by frame.getSortedDistances()
+     * @param number_of_azimuths Number of azimuths in distances
+     */
+    private void _seedFromAnomalyMaskPolar(HDLFrame frame, double[][][] distances, int number_of_azimuths){
+        for(int laserID = 0; laserID < HDL_LASER_PER_FIRING / 2; laserID++){
+            long[] mask = frame.getAnomalyMask(PacketDecoder.laserIdMap[laserID]);
+            for(int word = 0; word < mask.length; word++){
+                long bits = mask[word];
+                while(bits != 0){
+                    int azimuth = (frame.getAzimuthOrigin() + (word << 6) + Long.numberOfTrailingZeros(bits)) % 36000;
+                    bits &= bits - 1;
+                    int azimuthID = _indexOfAzimuth(distances[laserID], azimuth, number_of_azimuths);
+                    //Cell may have already been consumed by a previous BFS
+                    if(azimuthID >= 0 && java.lang.Math.abs(distances[laserID][azimuthID][1]) > _heightTolarence
+                            && _isPersistent(PacketDecoder.laserIdMap[laserID], azimuth)){
+                        Obstacle obstacle;
+                        _seeds++;
+                        if((obstacle = this._investigateAreaPolar(distances, laserID, azimuthID, number_of_azimuths)) != null){
+                            addObstacle(obstacle);
+                        }
+                    }
+                }
+            }
+        }
+    }
+    /**
+     * Find the index of an azimuth angle within a row sorted by HDLFrame.getDistanceRowForLaserID().
+     * 
+     * @param row Sorted row, column 0 holds the azimuth angle
+     * @param azimuth Azimuth angle to look for
+     * @param number_of_azimuths Number of entries in row
+     * @return Index of azimuth within row, -1 if not found
+     */
+    private int _indexOfAzimuth(double[][] row, int azimuth, int number_of_azimuths){
+        double key = _unwrapAzimuth(azimuth);
+        int low = 0;
+        int high = number_of_azimuths - 1;
+        while(low <= high){
+            int mid = (low + high) >>> 1;
+            double midKey = _unwrapAzimuth(row[mid][0]);
+            if(midKey < key){
+                low = mid + 1;
+            }else if(midKey > key){
+                high = mid - 1;
+            }else{
+                return mid;
+            }
+        }
+        return -1;
+    }
+    /**
+     * Signed azimuth used to sort distance rows (see HDLFrame.getDistanceRowForLaserID()).
+     * 
+     * @param azimuth Azimuth angle
+     * @return Azimuth shifted by -36000 if past the lidar's rotation angle
+     */
+    private double _unwrapAzimuth(double azimuth){
+        return _geometry.unwrapAzimuth((int) azimuth);
+    }
+    /**
+     * Get the next cell of a row to check for a seed.
+     * 
+     * @param pyramid DeviationPyramid of the frame, NULL to check every cell
+     * @param laserID Row of the sorted frame
+     * @param from First cell to consider
+     * @param number_of_azimuths Number of cells per row
+     * @return Cell index, -1 once the row is done
+     */
+    private int _nextCell(DeviationPyramid pyramid, int laserID, int from, int number_of_azimuths){
+        if(pyramid != null){
+            return pyramid.nextCandidate(laserID, from, _heightTolarence);
+        }
+        return (from < number_of_azimuths)? from : -1;
+    }
+    /**
+     * Set the frame being searched and add it to the persistence filter's history.
+     */
+    private void _startFrame(HDLFrame frame){
+        _frame = frame;
+        _geometry = frame.getGeometry();
+        if(_persistence != null){
+            _persistence.update(frame);
+        }
+    }
+    /**
+     * Check if a return may seed a BFS, counting the ones the persistence filter drops.
+     * 
+     * @param laserID Laser of the return (not its row)
+     * @param azimuth Azimuth angle of the return
+     * @return True if no filter is set or the return's cell persisted
+     */
+    private boolean _isPersistent(int laserID, int azimuth){
+        if(_persistence == null || _persistence.isPersistent(laserID, azimuth)){
+            return true;
+        }
+        _suppressedSeeds++;
+        return false;
+    }
+    /**
+     * Get the azimuth angle a point cloud entry was fired at. Points are stored in the lidar's frame, so the angle
+     * comes straight from X and Y.
+     */
+    private static int _azimuthOf(double[] point){
+        int azimuth = (int) java.lang.Math.round(java.lang.Math.toDegrees(java.lang.Math.atan2(point[0], point[1])) * 100);
+        return (azimuth < 0)? azimuth + 36000 : azimuth % 36000;
+    }
+    /**
+     * Check if a packed bitset has no bits set.
+     * 
+     * @param mask Bitset to check
+     * @return True if no bit is set
+     */
+    private boolean _isEmpty(long[] mask){
+        for(long word : mask){
+            if(word != 0){
+                return false;
+            }
+        }
+        return true;
+    }
+    /**
+     * Reset the search counters and start timing a search.
+     */
+    private LidarEvents.ObstacleSearch _beginSearch(){
+        _lastSearchComplete = true;
+        _seeds = 0;
+        _suppressedSeeds = 0;
+        _visitedCells = 0;
+        _obstaclesAtStart = _foundObstacles.size();
+        LidarEvents.ObstacleSearch event = new LidarEvents.ObstacleSearch();
+        event.begin();
+        return event;
+    }
+    /**
+     * Emit the ObstacleSearch event of the search just done.
+     */
+    private void _commitSearch(LidarEvents.ObstacleSearch event, String mode){
+        event.end();
+        if(event.shouldCommit()){
+            event.mode = mode;
+            event.azimuths = _frame.getNumberOfAzimuthsInFrame();
+            event.seeds = _seeds;
+            event.suppressedSeeds = _suppressedSeeds;
+            event.visitedCells = _visitedCells;
+            event.obstacles = _foundObstacles.size() - _obstaclesAtStart;
+            event.complete = _lastSearchComplete;
+            event.commit();
+        }
+    }
+    /**
+     * Record the time taken to sort a frame if metrics were given.
+     */
+    private void _recordSort(long sortStart){
+        if(_metrics != null){
+            _metrics.record(PipelineMetrics.Stage.SORT, System.nanoTime() - sortStart);
+        }
+    }
+    /**
+     * Add a single Obstacle to ArrayList. Obstacle is stamped with the arrival times of the frame being analyzed.
      * 
      * @param o Obstacle to be added to array
      */
     public void addObstacle(Obstacle o){
+        if(_frame != null){
+            o.stampFrame(_frame);
+        }
         _foundObstacles.add(o);
     }
     /**
@@ -131,10 +744,12 @@ public class ObstacleFinder implements TerrainAnalyzer {
             //Search moves along LaserID and AzimuthID axis and updates bound to outside a possitive hit
             //To ensure entire Obstacle is sourrounded by boudary box
             int[] searchCoords = searchQueue.remove();
+            _visitedCells++;
             laserID = searchCoords[0];
             azimuthID = searchCoords[1];
             
-            if(laserID - 1 >= 0){
+            //Lasers outside of the field of view have no height and were never decoded, so they are left out of the bounds
+            if(laserID - 1 >= 0 && !Double.isNaN(pointCloud[laserID - 1][azimuthID][z_cord])){
                 candidate.updateBounds(pointCloud[laserID - 1][azimuthID]);
                 if(java.lang.Math.abs(pointCloud[laserID - 1][azimuthID][z_cord] - _groundRef) > _heightTolarence){
                     foundPoints++;
@@ -142,7 +757,7 @@ public class ObstacleFinder implements TerrainAnalyzer {
                     searchQueue.add(new int[] {laserID - 1, azimuthID});
                 }
             }
-            if(laserID + 1 < HDL_LASER_PER_FIRING / 2){
+            if(laserID + 1 < HDL_LASER_PER_FIRING / 2 && !Double.isNaN(pointCloud[laserID + 1][azimuthID][z_cord])){
                 candidate.updateBounds(pointCloud[laserID + 1][azimuthID]);
                 if(java.lang.Math.abs(pointCloud[laserID + 1][azimuthID][z_cord] - _groundRef) > _heightTolarence){
                     foundPoints++;
@@ -150,7 +765,7 @@ public class ObstacleFinder implements TerrainAnalyzer {
                     searchQueue.add(new int[] {laserID + 1, azimuthID});
                 }
             }
-            if(azimuthID - 1 >= 0){
+            if(azimuthID - 1 >= 0 && !Double.isNaN(pointCloud[laserID][azimuthID - 1][z_cord])){
                 candidate.updateBounds(pointCloud[laserID][azimuthID - 1]);
                 if(java.lang.Math.abs(pointCloud[laserID][azimuthID - 1][z_cord] - _groundRef) > _heightTolarence){
                     foundPoints++;
@@ -158,7 +773,7 @@ public class ObstacleFinder implements TerrainAnalyzer {
                     searchQueue.add(new int[] {laserID, azimuthID - 1});
                 }
             }
-            if(azimuthID + 1 < number_of_azimuths){
+            if(azimuthID + 1 < number_of_azimuths && !Double.isNaN(pointCloud[laserID][azimuthID + 1][z_cord])){
                 candidate.updateBounds(pointCloud[laserID][azimuthID + 1]);
                 if(java.lang.Math.abs(pointCloud[laserID][azimuthID + 1][z_cord] - _groundRef) > _heightTolarence){
                     foundPoints++;
@@ -192,26 +807,29 @@ public class ObstacleFinder implements TerrainAnalyzer {
         //and a flat sourface. If coming from a calibrated frame, the distance = 0 if close to a flat plane
         double height = distances[laserID][azimuthID][1];
         int azimuth = (int) distances[laserID][azimuthID][0];
+        int laser = PacketDecoder.laserIdMap[laserID];
         //If height is < 0, then distance was shorted than a flat sourface inidicating possible Boulder
         if(height < 0){
-            candidate = new BoulderObstacle((int) distances[laserID][azimuthID][0], laserID,(double) _frame.getDistance(laserID, azimuth), _groundRef) ;
+            candidate = new BoulderObstacle(azimuth, laser, distances[laserID][azimuthID][2], _groundRef, _geometry);
         }else{
-            candidate = new CreaterObstacle((int) distances[laserID][azimuthID][0], laserID,(double) _frame.getDistance(laserID, azimuth), _groundRef);
+            candidate = new CreaterObstacle(azimuth, laser, distances[laserID][azimuthID][2], _groundRef, _geometry);
         }
+        candidate.accumulatePolar(azimuth, laser, distances[laserID][azimuthID][2]);
 
         searchQueue.add(new int[] {laserID, azimuthID});
         //Start BFS
         while(!searchQueue.isEmpty()){
 
             int[] searchCoords = searchQueue.remove();
+            _visitedCells++;
             laserID = searchCoords[0];
             azimuthID = searchCoords[1];
-            //Same as fr cartician but now bounds are updated in polar coordinates.
+            //Same as fr cartician but bounds are only accumulated in polar coordinates and converted once the search is done.
+            //Distances come from the sorted array so no frame lookups are needed.
             if(laserID - 1 >= 0){
                 if(java.lang.Math.abs(distances[laserID - 1][azimuthID][1]) > _heightTolarence){
                     foundPoints++;
-                    azimuth = (int) distances[laserID - 1][azimuthID][0];
-                    candidate.updateBounds(azimuth, laserID - 1, _frame.getDistance(laserID - 1, azimuth));
+                    candidate.accumulatePolar((int) distances[laserID - 1][azimuthID][0], PacketDecoder.laserIdMap[laserID - 1], distances[laserID - 1][azimuthID][2]);
                     distances[laserID - 1][azimuthID][1] = 0.0;
                     searchQueue.add(new int[] {laserID - 1, azimuthID});
                 }
@@ -219,8 +837,7 @@ public class ObstacleFinder implements TerrainAnalyzer {
             if(laserID + 1 < HDL_LASER_PER_FIRING / 2){
                 if(java.lang.Math.abs(distances[laserID + 1][azimuthID][1]) > _heightTolarence){
                     foundPoints++;
-                    azimuth = (int) distances[laserID + 1][azimuthID][0];
-                    candidate.updateBounds(azimuth, laserID + 1, _frame.getDistance(laserID + 1, azimuth));
+                    candidate.accumulatePolar((int) distances[laserID + 1][azimuthID][0], PacketDecoder.laserIdMap[laserID + 1], distances[laserID + 1][azimuthID][2]);
                     distances[laserID + 1][azimuthID][1] = 0.0;
                     searchQueue.add(new int[] {laserID + 1, azimuthID});
                 }
@@ -228,8 +845,7 @@ public class ObstacleFinder implements TerrainAnalyzer {
             if(azimuthID - 1 >= 0){
                 if(java.lang.Math.abs(distances[laserID][azimuthID - 1][1]) > _heightTolarence){
                     foundPoints++;
-                    azimuth = (int) distances[laserID][azimuthID - 1][0];
-                    candidate.updateBounds(azimuth, laserID, _frame.getDistance(laserID, azimuth));
+                    candidate.accumulatePolar((int) distances[laserID][azimuthID - 1][0], PacketDecoder.laserIdMap[laserID], distances[laserID][azimuthID - 1][2]);
                     distances[laserID][azimuthID - 1][1] = 0.0;
                     searchQueue.add(new int[] {laserID, azimuthID - 1});
                 }
@@ -237,8 +853,7 @@ public class ObstacleFinder implements TerrainAnalyzer {
             if(azimuthID + 1 < number_of_azimuths){
                 if(java.lang.Math.abs(distances[laserID][azimuthID + 1][1]) > _heightTolarence){
                     foundPoints++;
-                    azimuth = (int) distances[laserID][azimuthID + 1][0];
-                    candidate.updateBounds(azimuth, laserID, _frame.getDistance(laserID, azimuth));
+                    candidate.accumulatePolar((int) distances[laserID][azimuthID + 1][0], PacketDecoder.laserIdMap[laserID], distances[laserID][azimuthID + 1][2]);
                     distances[laserID][azimuthID + 1][1] = 0.0;
                     searchQueue.add(new int[] {laserID, azimuthID + 1});
                 }
@@ -246,6 +861,7 @@ public class ObstacleFinder implements TerrainAnalyzer {
         }
         //Return candidate Obstacle if enough points were found
         if(foundPoints > _positiveHitsThreshold){
+            candidate.resolvePolarBounds();
             return candidate;
         }else{
             return null;
@@ -259,6 +875,15 @@ public class ObstacleFinder implements TerrainAnalyzer {
     public int getNumberOfObticles(){
         return _foundObstacles.size();
     }
+    /**
+     * Get the Obstacles found so far without removing them from the buffer.
+     * 
+     * @param first Index of the first Obstacle to get (e.g. getNumberOfObticles() before a search)
+     * @return Copy of the Obstacles from first on, in the order they were found
+     */
+    public List<Obstacle> getObstaclesFound(int first){
+        return new ArrayList<Obstacle>(_foundObstacles.subList(first, _foundObstacles.size()));
+    }
     /**
      * Clear buffers
      */
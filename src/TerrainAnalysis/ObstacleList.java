@@ -0,0 +1,218 @@
+// Author: Ivan Ramos, <ivan-1081@hotmail.es>
+// Open Source Software; you can modify and/or share it
+package TerrainAnalysis;
+
+import Diagnostics.PipelineMetrics;
+import Hardware.VelodyneLidarHDL.PacketDecoder.HDLFrame;
+import Hardware.VelodyneLidarHDL.VelodyneLidar.ScanStatus;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+/**
+ * ObstacleList class is the ArrayList of Obstacles handed to clients by the managers. On top of the Obstacles it keeps
+ * track of when the data behind them arrived, so the client can tell how stale they are when it gets to use them.
+ * All times are System.nanoTime() values taken on the same machine, so ages hold no matter what the sensor's clock says.
+ *
+ * <p>includeFrame() function is called for every frame analyzed to produce the list.
+ * <p>publish() function is called right before the list is handed over, recording its age at publication.
+ * <p>consume() function is called by the client once it takes the list, recording its sensor-to-consumer age.
+ * <p>Ex:
+ *  ArrayList<Obstacle> obstacles = replies.take();
+ *  long ageNanos = ((ObstacleList) obstacles).consume();
+ */
+public class ObstacleList extends ArrayList<Obstacle> {
+
+    private static final long serialVersionUID = 0;
+    private final PipelineMetrics _metrics; /**<Where ages are recorded, NULL to not record them */
+    private boolean _hasFrameTiming = false;
+    private long _firstPacketNanos;         /**<Arrival of the oldest packet behind the list */
+    private long _lastPacketNanos;          /**<Arrival of the newest packet behind the list */
+    private long _sensorTimestamp = -1;     /**<Sensor timestamp (microseconds past the hour) of the newest packet */
+    private long _publishNanos;             /**<Time the list was published */
+    private final AtomicBoolean _consumed = new AtomicBoolean(false); /**<Set by the first consume(). Shared with copies made by clone() */
+    private ScanStatus _scanStatus = ScanStatus.COMPLETE; /**<Outcome of the scan behind the list */
+    private boolean _searchComplete = true; /**<False if the obstacle search ran out of budget */
+    private long _analysisAge = 0;          /**<Age of the cached search behind the list, 0 if searched for it */
+    /**
+     * ObstacleList constructor.
+     *
+     * @param metrics PipelineMetrics ages are recorded into, NULL to not record them
+     */
+    public ObstacleList(PipelineMetrics metrics){
+        _metrics = metrics;
+    }
+    /**
+     * Widen the arrival times of the list to cover a frame.
+     *
+     * @param frame HDLFrame analyzed to produce (part of) the list
+     */
+    public void includeFrame(HDLFrame frame){
+        if(frame == null || frame.getPacketsDecoded() == 0){
+            return;
+        }
+        _include(frame.getFirstPacketNanos(), frame.getLastPacketNanos(), frame.getLastSensorTimestamp());
+    }
+    /**
+     * Stamp the list as published. Obstacles found in older frames (still waiting in the ObstacleFinder) widen the
+     * arrival times of the list before its age is recorded.
+     */
+    public void publish(){
+        for(Obstacle o : this){
+            if(o != null && o.hasFrameTiming()){
+                _include(o.getFirstPacketNanos(), o.getLastPacketNanos(), o.getSensorTimestamp());
+            }
+        }
+        _publishNanos = System.nanoTime();
+        if(_metrics != null && _hasFrameTiming){
+            _metrics.recordPublishAge(_publishNanos - _firstPacketNanos);
+        }
+    }
+    /**
+     * Stamp the list as consumed by the client. Only the first call is recorded, even when several subscribers (or
+     * the reply queue and a subscriber's copy) consume the same list concurrently.
+     *
+     * @return Sensor-to-consumer age in nanoseconds (see getAge())
+     */
+    public long consume(){
+        long age = getAge();
+        if(_consumed.compareAndSet(false, true) && _metrics != null && _hasFrameTiming){
+            _metrics.recordConsumerAge(age);
+        }
+        return age;
+    }
+    /**
+     * Get how old the oldest data behind the list is right now.
+     *
+     * @return Nanoseconds since the first packet arrived, 0 if unknown
+     */
+    public long getAge(){
+        return (_hasFrameTiming)? System.nanoTime() - _firstPacketNanos : 0;
+    }
+    /**
+     * Get how old the oldest data behind the list was when it got published.
+     *
+     * @return Nanoseconds between the first packet arriving and publish(), 0 if unknown
+     */
+    public long getAgeAtPublish(){
+        return (_hasFrameTiming)? _publishNanos - _firstPacketNanos : 0;
+    }
+    /**
+     * Get how long it took for all the data behind the list to arrive.
+     *
+     * @return Nanoseconds between the first and last packet arriving
+     */
+    public long getDataSpan(){
+        return _lastPacketNanos - _firstPacketNanos;
+    }
+    /**
+     * Set the outcome of the scan behind the list. When several lidars contribute, the worst outcome is kept.
+     *
+     * @param status ScanStatus of a scan behind the list
+     */
+    public void setScanStatus(ScanStatus status){
+        if(status.ordinal() > _scanStatus.ordinal()){
+            _scanStatus = status;
+        }
+    }
+    /**
+     * Get the outcome of the scan behind the list. Anything but COMPLETE means the obstacles come from a partial frame
+     * (PARTIAL) or from no frame at all (TIMEOUT, INTERRUPTED, FAILED).
+     *
+     * @return ScanStatus of the scan behind the list
+     */
+    public ScanStatus getScanStatus(){
+        return _scanStatus;
+    }
+
+    /**
+     * Set whether the obstacle search behind the list covered the whole frame. When several searches contribute, the
+     * list is only complete if all of them were.
+     *
+     * @param complete False if the search ran out of budget
+     */
+    public void setSearchComplete(boolean complete){
+        _searchComplete &= complete;
+    }
+    /**
+     * Check if the obstacle search behind the list covered the whole frame. Incomplete lists hold the obstacles nearest
+     * to the robot; obstacles further away may be missing.
+     *
+     * @return False if the search ran out of budget
+     */
+    public boolean isSearchComplete(){
+        return _searchComplete;
+    }
+    /**
+     * Set how long ago the search behind the list ran, when its obstacles come from a SceneCache. When several
+     * searches contribute, the oldest is kept.
+     *
+     * @param nanos Nanoseconds since the cached search, 0 if the latest frame was searched
+     */
+    public void setAnalysisAge(long nanos){
+        _analysisAge = java.lang.Math.max(_analysisAge, nanos);
+    }
+    /**
+     * Get how old the search behind the list was when the list was filled. Cached obstacles keep the arrival times of the
+     * frame they were found in, so getAge() covers that frame as well.
+     *
+     * @return Nanoseconds since the cached search, 0 if the latest frame was searched
+     */
+    public long getAnalysisAge(){
+        return _analysisAge;
+    }
+
+    public boolean isCached(){
+        return _analysisAge > 0;
+    }
+
+    /**
+     * Copy the bounding boxes of the list into an ObstacleBatch for collision queries. The list is left untouched.
+     *
+     * @return ObstacleBatch holding every Obstacle of the list, the NULL terminator of a reply left out
+     */
+    public ObstacleBatch toBatch(){
+        return new ObstacleBatch(this);
+    }
+
+    public boolean hasFrameTiming(){
+        return _hasFrameTiming;
+    }
+
+    public long getFirstPacketNanos(){
+        return _firstPacketNanos;
+    }
+
+    public long getLastPacketNanos(){
+        return _lastPacketNanos;
+    }
+
+    public long getPublishNanos(){
+        return _publishNanos;
+    }
+    /**
+     * Get the sensor's (GPS) timestamp of the newest packet behind the list.
+     *
+     * @return Microseconds past the hour, -1 if unknown
+     */
+    public long getSensorTimestamp(){
+        return _sensorTimestamp;
+    }
+
+    private void _include(long firstPacketNanos, long lastPacketNanos, long sensorTimestamp){
+        if(!_hasFrameTiming){
+            _hasFrameTiming = true;
+            _firstPacketNanos = firstPacketNanos;
+            _lastPacketNanos = lastPacketNanos;
+            _sensorTimestamp = sensorTimestamp;
+            return;
+        }
+        //nanoTime values are only compared through their difference
+        if(firstPacketNanos - _firstPacketNanos < 0){
+            _firstPacketNanos = firstPacketNanos;
+        }
+        if(lastPacketNanos - _lastPacketNanos > 0){
+            _lastPacketNanos = lastPacketNanos;
+            _sensorTimestamp = sensorTimestamp;
+        }
+    }
+}
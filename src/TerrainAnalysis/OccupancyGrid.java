@@ -0,0 +1,297 @@
+// Author: Ivan Ramos, <ivan-1081@hotmail.es>
+// Open Source Software; you can modify and/or share it
+package TerrainAnalysis;
+
+import Hardware.VelodyneLidarHDL.PacketDecoder;
+
+import java.util.Arrays;
+/**
+ * OccupancyGrid class keeps a compact occupancy map around the robot for path planning. Every cell holds a 4-bit
+ * occupancy level (0 - 15), 16 cells packed per long, so a 200 x 200 grid fits in 20 KB. Levels are a clamped log-odds:
+ * returns off the ground raise a cell by HIT_LEVELS, lasers flying over a cell lower it by MISS_LEVELS, and every frame
+ * every cell decays by one level so obstacles that are no longer seen fade out. Cells at OCCUPIED_LEVEL or above are
+ * occupied; 0 means free or never seen.
+ *
+ * <p>Points come straight from the decoder in cartician mode (see VelodyneLidar.setOccupancyGrid()), in the robot's
+ * frame. The grid is centered on the robot. Returns sharing an azimuth are grouped and a single ray is cleared from the
+ * lidar up to the nearest obstacle (or the furthest ground return) of the azimuth, so lasers flying over an obstacle
+ * never clear it. Rays ending in the same cell as the previous one are not traced again.
+ * <p>markObstacle() function feeds Obstacles found by an ObstacleFinder instead, marking their bounding box.
+ * <p>frameCompleted() function publishes the grid and decays it. isOccupied(), getLevel() and toByteArray() functions
+ * read the last published grid, so they can be called from any thread and always see whole frames. Points and
+ * frameCompleted() must come from a single thread (the lidar's).
+ */
+public class OccupancyGrid implements PacketDecoder.PointListener {
+
+    public static final int HIT_LEVELS = 4;         /**<Levels added per return off the ground */
+    public static final int MISS_LEVELS = 1;        /**<Levels removed per ray flying over a cell */
+    public static final int OCCUPIED_LEVEL = 8;     /**<Lowest level counted as occupied */
+    private static final int MAX_LEVEL = 15;
+    private static final int CELLS_PER_WORD = 16;
+    private static final long LOW_BITS = 0x1111111111111111L;  /**<Lowest bit of every cell in a word */
+
+    private final double _cellSize;    /**<Length of a cell side, in meters */
+    private final int _columns;        /**<Number of cells along the robot's X axis */
+    private final int _rows;           /**<Number of cells along the robot's Y axis */
+    private final double _minX;        /**<X coordinate of the grid's left edge */
+    private final double _minY;        /**<Y coordinate of the grid's back edge */
+    private final double _heightTolarence; /**<How far from _groundRef a return has to be to count as an obstacle */
+    private final double _groundRef;   /**<Ground reference */
+    private final long[] _cells;       /**<Grid being updated, 16 cells per word */
+    private volatile long[] _published; /**<Grid as of the last frameCompleted() */
+    private double _originX = 0.0;     /**<Lidar's X position in the robot's frame */
+    private double _originY = 0.0;     /**<Lidar's Y position in the robot's frame */
+    private int _azimuth = -1;         /**<Azimuth of the returns being grouped, -1 if none */
+    private double _rayX, _rayY;       /**<End of the free ray of the azimuth being grouped */
+    private double _rayRange2;         /**<Squared range of the end of the ray, measured from the lidar */
+    private boolean _rayBlocked;       /**<True if the ray ends on an obstacle */
+    private int _lastRayEnd = -1;      /**<Cell the previous ray ended on */
+    /**
+     * OccupancyGrid constructor. The grid is centered on the robot.
+     *
+     * @param width Size of the grid along the robot's X axis, in meters
+     * @param length Size of the grid along the robot's Y axis, in meters
+     * @param cellSize Length of a cell side, in meters
+     * @param heightTolarence How far, in meters, a return has to be from the ground to count as an obstacle
+     * @param groundRef Referance point, in meters, to be used as ground
+     */
+    public OccupancyGrid(double width, double length, double cellSize, double heightTolarence, double groundRef){
+        _cellSize = cellSize;
+        _columns = (int) java.lang.Math.ceil(width / cellSize);
+        _rows = (int) java.lang.Math.ceil(length / cellSize);
+        _minX = -(_columns * cellSize) / 2;
+        _minY = -(_rows * cellSize) / 2;
+        _heightTolarence = heightTolarence;
+        _groundRef = groundRef;
+        int words = (_columns * _rows + CELLS_PER_WORD - 1) / CELLS_PER_WORD;
+        _cells = new long[words];
+        _published = new long[words];
+    }
+    /**
+     * Set where the lidar is mounted in the robot's frame. Rays are cleared from there.
+     *
+     * @param x Lidar's X position in meters
+     * @param y Lidar's Y position in meters
+     */
+    public void setSensorOrigin(double x, double y){
+        _originX = x;
+        _originY = y;
+    }
+    /**
+     * Add a point decoded by a PacketDecoder. Points are grouped by azimuth until the azimuth changes.
+     */
+    @Override
+    public void point(int laserID, int azimuth, double x, double y, double z){
+        if(azimuth != _azimuth){
+            _flushRay();
+            _azimuth = azimuth;
+        }
+        double dx = x - _originX;
+        double dy = y - _originY;
+        double range2 = dx * dx + dy * dy;
+        //A point on the lidar itself would block the whole ray and mark the lidar's own cell
+        if(range2 == 0){
+            return;
+        }
+        if(java.lang.Math.abs(z - _groundRef) > _heightTolarence){
+            _raise(getCellIndex(x, y), HIT_LEVELS);
+            //Nearest obstacle of the azimuth blocks the ray
+            if(!_rayBlocked || range2 < _rayRange2){
+                _setRay(x, y, range2, true);
+            }
+        }else if(!_rayBlocked && range2 > _rayRange2){
+            _setRay(x, y, range2, false);
+        }
+    }
+    /**
+     * Publish the grid as it stands and decay every cell by one level.
+     */
+    @Override
+    public void frameCompleted(){
+        _flushRay();
+        _azimuth = -1;
+        _lastRayEnd = -1;
+        //Readers may still hold the previous copy, so it is never reused
+        _published = _cells.clone();
+        //Every non-zero cell loses a level. Non-zero cells have at least one bit set, so no borrow crosses cells
+        for(int word = 0; word < _cells.length; word++){
+            long cells = _cells[word];
+            long nonZero = (cells | (cells >>> 1) | (cells >>> 2) | (cells >>> 3)) & LOW_BITS;
+            _cells[word] = cells - nonZero;
+        }
+    }
+    /**
+     * Mark the bounding box of an Obstacle as hit. Used to feed the grid from an ObstacleFinder instead of the point
+     * cloud. Obstacle coordinates have to be in the robot's frame.
+     *
+     * @param o Obstacle found
+     */
+    public void markObstacle(Obstacle o){
+        double[][] points = {o.getLeftMostPoint(), o.getRightMostPoint(), o.getClosestPoint(), o.getFardestPoint()};
+        double minX = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for(double[] point : points){
+            minX = java.lang.Math.min(minX, point[0]);
+            maxX = java.lang.Math.max(maxX, point[0]);
+            minY = java.lang.Math.min(minY, point[1]);
+            maxY = java.lang.Math.max(maxY, point[1]);
+        }
+        int firstColumn = java.lang.Math.max(0, (int) java.lang.Math.floor((minX - _minX) / _cellSize));
+        int lastColumn = java.lang.Math.min(_columns - 1, (int) java.lang.Math.floor((maxX - _minX) / _cellSize));
+        int firstRow = java.lang.Math.max(0, (int) java.lang.Math.floor((minY - _minY) / _cellSize));
+        int lastRow = java.lang.Math.min(_rows - 1, (int) java.lang.Math.floor((maxY - _minY) / _cellSize));
+        for(int row = firstRow; row <= lastRow; row++){
+            for(int column = firstColumn; column <= lastColumn; column++){
+                _raise(row * _columns + column, HIT_LEVELS);
+            }
+        }
+    }
+    /**
+     * Empty every cell, published grid included. Must not be called while points are being added.
+     */
+    public void clear(){
+        Arrays.fill(_cells, 0L);
+        _published = new long[_cells.length];
+        _azimuth = -1;
+        _lastRayEnd = -1;
+    }
+    /**
+     * Get the index of the cell a point falls on.
+     *
+     * @param x X coordinate in the robot's frame, in meters
+     * @param y Y coordinate in the robot's frame, in meters
+     * @return Cell index, -1 if outside of the grid
+     */
+    public int getCellIndex(double x, double y){
+        int column = (int) java.lang.Math.floor((x - _minX) / _cellSize);
+        int row = (int) java.lang.Math.floor((y - _minY) / _cellSize);
+        if(column < 0 || column >= _columns || row < 0 || row >= _rows){
+            return -1;
+        }
+        return row * _columns + column;
+    }
+    /**
+     * Get the occupancy level of a cell in the last published grid.
+     *
+     * @param cell Cell index (see getCellIndex())
+     * @return Level (0 - 15)
+     */
+    public int getLevel(int cell){
+        return (int) (_published[cell >>> 4] >>> ((cell & 15) << 2)) & MAX_LEVEL;
+    }
+
+    public boolean isOccupied(int cell){
+        return getLevel(cell) >= OCCUPIED_LEVEL;
+    }
+    /**
+     * Export the last published grid, two cells per byte. Cell N is in byte N / 2, in the low nibble if N is even and
+     * in the high nibble if odd. Cells go row by row, starting at the back left corner.
+     *
+     * @return Packed grid, (cells + 1) / 2 bytes long
+     */
+    public byte[] toByteArray(){
+        long[] cells = _published;
+        byte[] bytes = new byte[(_columns * _rows + 1) / 2];
+        for(int i = 0; i < bytes.length; i++){
+            bytes[i] = (byte) (cells[i >>> 3] >>> ((i & 7) << 3));
+        }
+        return bytes;
+    }
+
+    public double getCellSize(){
+        return _cellSize;
+    }
+
+    public int getNumberOfColumns(){
+        return _columns;
+    }
+
+    public int getNumberOfRows(){
+        return _rows;
+    }
+    /**
+     * Remember the end of the free ray of the azimuth being grouped.
+     */
+    private void _setRay(double x, double y, double range2, boolean blocked){
+        _rayX = x;
+        _rayY = y;
+        _rayRange2 = range2;
+        _rayBlocked = blocked;
+    }
+    /**
+     * Clear the free ray of the azimuth being grouped, if any.
+     */
+    private void _flushRay(){
+        if(_azimuth >= 0 && _rayRange2 > 0){
+            int end = getCellIndex(_rayX, _rayY);
+            if(end != _lastRayEnd){
+                _clearRay(_rayX, _rayY, _rayBlocked);
+                _lastRayEnd = end;
+            }
+        }
+        _rayRange2 = 0.0;
+        _rayBlocked = false;
+    }
+    /**
+     * Lower every cell between the lidar and a point, walking the grid one cell at a time (Amanatides and Woo). The
+     * cell of the point is only lowered if the ray is not blocked there.
+     */
+    private void _clearRay(double x, double y, boolean blocked){
+        double fromX = (_originX - _minX) / _cellSize;
+        double fromY = (_originY - _minY) / _cellSize;
+        double toX = (x - _minX) / _cellSize;
+        double toY = (y - _minY) / _cellSize;
+        int column = (int) java.lang.Math.floor(fromX);
+        int row = (int) java.lang.Math.floor(fromY);
+        int endColumn = (int) java.lang.Math.floor(toX);
+        int endRow = (int) java.lang.Math.floor(toY);
+        double dx = toX - fromX;
+        double dy = toY - fromY;
+        int stepColumn = (dx > 0)? 1 : -1;
+        int stepRow = (dy > 0)? 1 : -1;
+        double deltaX = (dx == 0)? Double.POSITIVE_INFINITY : java.lang.Math.abs(1.0 / dx);
+        double deltaY = (dy == 0)? Double.POSITIVE_INFINITY : java.lang.Math.abs(1.0 / dy);
+        double nextX = (dx == 0)? Double.POSITIVE_INFINITY : ((dx > 0)? (column + 1 - fromX) : (fromX - column)) * deltaX;
+        double nextY = (dy == 0)? Double.POSITIVE_INFINITY : ((dy > 0)? (row + 1 - fromY) : (fromY - row)) * deltaY;
+        int steps = java.lang.Math.abs(endColumn - column) + java.lang.Math.abs(endRow - row);
+        for(int i = 0; i <= steps; i++){
+            boolean last = (i == steps);
+            if(column < 0 || column >= _columns || row < 0 || row >= _rows){
+                //Ray left the grid, cells further away are outside as well
+                if(i > 0){
+                    return;
+                }
+            }else if(!last || !blocked){
+                _lower(row * _columns + column, MISS_LEVELS);
+            }
+            if(nextX < nextY){
+                nextX += deltaX;
+                column += stepColumn;
+            }else{
+                nextY += deltaY;
+                row += stepRow;
+            }
+        }
+    }
+    /**
+     * Raise a cell, saturating at MAX_LEVEL.
+     */
+    private void _raise(int cell, int levels){
+        if(cell < 0){
+            return;
+        }
+        int shift = (cell & 15) << 2;
+        long word = _cells[cell >>> 4];
+        int level = java.lang.Math.min(MAX_LEVEL, ((int) (word >>> shift) & MAX_LEVEL) + levels);
+        _cells[cell >>> 4] = (word & ~(0xFL << shift)) | ((long) level << shift);
+    }
+    /**
+     * Lower a cell, saturating at 0.
+     */
+    private void _lower(int cell, int levels){
+        int shift = (cell & 15) << 2;
+        long word = _cells[cell >>> 4];
+        int level = java.lang.Math.max(0, ((int) (word >>> shift) & MAX_LEVEL) - levels);
+        _cells[cell >>> 4] = (word & ~(0xFL << shift)) | ((long) level << shift);
+    }
+}
@@ -0,0 +1,180 @@
+// Author: Ivan Ramos, <ivan-1081@hotmail.es>
+// Open Source Software; you can modify and/or share it
+package TerrainAnalysis;
+
+import Hardware.VelodyneLidarHDL.PacketDecoder;
+import Hardware.VelodyneLidarHDL.PacketDecoder.HDLFrame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+/**
+ * SceneCache class used to skip the obstacle search while the robot is not moving. Every frame is boiled down to a
+ * coarse signature, the mean distance of the returns of every laser within each azimuth sector, and compared with the
+ * signature of the last frame that was actually searched. If no sector moved by more than the tolerance, the obstacles
+ * found in that frame still hold and are handed out again instead of searching the new frame.
+ *
+ * <p>Comparing against the last frame searched (rather than the previous frame) keeps slow changes from slipping
+ * through a frame at a time. Cached results also go stale after a while (see setStaleness()), so a change too small
+ * for the signature is never hidden for long.
+ * <p>lookup() function is called with every new frame; store() function is called with the obstacles of every frame
+ * that had to be searched. Both must come from the same thread (the lidar's).
+ * <p>Sparse frames only keep their anomalous returns, so their signature only covers those: the scene is unchanged as
+ * long as the same returns, at about the same distance, deviate from the ground.
+ *
+ * <p>Ex:
+ *  SceneCache cache = new SceneCache(0.05);
+ *  cache.setStaleness(500000000L, 10);
+ *  lidar.setSceneCache(cache);
+ */
+public class SceneCache {
+
+    public static final int DEFAULT_SECTORS = 64;   /**<Azimuth sectors per laser used by the signature */
+    public static final long DEFAULT_MAX_AGE_NANOS = 1000000000L; /**<Default time a cached result is handed out for */
+    public static final int DEFAULT_MAX_HITS = 10;  /**<Default number of frames in a row a cached result is handed out for */
+
+    private final int _sectors;               /**<Azimuth sectors per laser */
+    private final double _tolerance;          /**<Largest change, in meters, of a sector's mean distance to count as unchanged */
+    private int _maxChangedCells = 0;         /**<Sectors allowed to change before the scene counts as changed */
+    private long _maxAgeNanos = DEFAULT_MAX_AGE_NANOS;
+    private int _maxHits = DEFAULT_MAX_HITS;
+    private final double[] _sums;             /**<Sum of the distances per signature cell, scratch */
+    private final int[] _counts;              /**<Number of returns per signature cell, scratch */
+    private float[] _signature;               /**<Signature of the frame the cached obstacles were found in */
+    private float[] _pending;                 /**<Signature of the frame passed to the last lookup() */
+    private ArrayList<Obstacle> _obstacles;   /**<Obstacles found in the cached frame, NULL if nothing cached */
+    private long _storeNanos;                 /**<Time the cached obstacles were stored */
+    private int _hitsInRow = 0;               /**<Times the cached obstacles were handed out since stored */
+    /**
+     * SceneCache constructor using DEFAULT_SECTORS sectors per laser.
+     *
+     * @param tolerance Largest change, in meters, of a sector's mean distance for the scene to count as unchanged
+     */
+    public SceneCache(double tolerance){
+        this(tolerance, DEFAULT_SECTORS);
+    }
+    /**
+     * SceneCache constructor.
+     *
+     * @param tolerance Largest change, in meters, of a sector's mean distance for the scene to count as unchanged
+     * @param sectors Azimuth sectors per laser. More sectors notice smaller objects, but also more noise
+     */
+    public SceneCache(double tolerance, int sectors){
+        _tolerance = tolerance;
+        _sectors = sectors;
+        int cells = PacketDecoder.laserIdMap.length * sectors;
+        _sums = new double[cells];
+        _counts = new int[cells];
+        _signature = new float[cells];
+        _pending = new float[cells];
+    }
+    /**
+     * Set how long a cached result may be handed out before the next frame has to be searched, however still the scene
+     * looks.
+     *
+     * @param maxAgeNanos Longest time since the cached frame was searched, in nanoseconds
+     * @param maxHits Most frames in a row the cached result is handed out for
+     */
+    public void setStaleness(long maxAgeNanos, int maxHits){
+        _maxAgeNanos = maxAgeNanos;
+        _maxHits = maxHits;
+    }
+    /**
+     * Set how many sectors may change (or show up, or go empty) before the scene counts as changed. Useful with sparse
+     * frames, where returns right at the anomaly threshold come and go between frames.
+     *
+     * @param cells Number of sectors, 0 for any change to count
+     */
+    public void setMaxChangedCells(int cells){
+        _maxChangedCells = cells;
+    }
+    /**
+     * Compute the signature of a new frame and look for a cached result that still holds for it. The signature is kept
+     * until the next call, so store() can associate it with the obstacles found if the frame has to be searched.
+     *
+     * @param frame New frame
+     * @return Obstacles found in the cached frame, NULL if the frame has to be searched. The list must not be modified
+     */
+    public List<Obstacle> lookup(HDLFrame frame){
+        _computeSignature(frame);
+        if(_obstacles == null || _hitsInRow >= _maxHits || System.nanoTime() - _storeNanos > _maxAgeNanos){
+            return null;
+        }
+        if(!_matches()){
+            return null;
+        }
+        _hitsInRow++;
+        return _obstacles;
+    }
+    /**
+     * Cache the obstacles found in the frame passed to the last lookup().
+     *
+     * @param obstacles Every Obstacle found in the frame
+     */
+    public void store(Collection<? extends Obstacle> obstacles){
+        float[] signature = _signature;
+        _signature = _pending;
+        _pending = signature;
+        _obstacles = new ArrayList<Obstacle>(obstacles);
+        _storeNanos = System.nanoTime();
+        _hitsInRow = 0;
+    }
+    /**
+     * Drop the cached result, so the next frame gets searched.
+     */
+    public void invalidate(){
+        _obstacles = null;
+        _hitsInRow = 0;
+    }
+    /**
+     * Get how long ago the cached frame was searched.
+     *
+     * @return Nanoseconds since store(), 0 if nothing is cached
+     */
+    public long getAge(){
+        return (_obstacles == null)? 0 : System.nanoTime() - _storeNanos;
+    }
+
+    public int getNumberOfSectors(){
+        return _sectors;
+    }
+
+    public double getTolerance(){
+        return _tolerance;
+    }
+    /**
+     * Fill _pending with the mean distance of every signature cell (laser, sector) of a frame. Empty cells are NaN.
+     */
+    private void _computeSignature(HDLFrame frame){
+        Arrays.fill(_sums, 0.0);
+        Arrays.fill(_counts, 0);
+        frame.forEachReturn(new PacketDecoder.ReturnVisitor(){
+            @Override
+            public void visit(int laserID, int azimuth, double distance){
+                int cell = laserID * _sectors + (int) ((long) azimuth * _sectors / 36000);
+                _sums[cell] += distance;
+                _counts[cell]++;
+            }
+        });
+        for(int cell = 0; cell < _pending.length; cell++){
+            _pending[cell] = (_counts[cell] == 0)? Float.NaN : (float) (_sums[cell] / _counts[cell]);
+        }
+    }
+    /**
+     * Check if _pending is within tolerance of _signature.
+     */
+    private boolean _matches(){
+        int changed = 0;
+        for(int cell = 0; cell < _pending.length; cell++){
+            float now = _pending[cell];
+            float then = _signature[cell];
+            //NaN on either side only matches NaN on the other
+            boolean same = (Float.isNaN(now))? Float.isNaN(then) : java.lang.Math.abs(now - then) <= _tolerance;
+            if(!same && ++changed > _maxChangedCells){
+                return false;
+            }
+        }
+        return true;
+    }
+}
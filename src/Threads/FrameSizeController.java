@@ -0,0 +1,136 @@
+// Author: Ivan Ramos, <ivan-1081@hotmail.es>
+// Open Source Software; you can modify and/or share it
+package Threads;
+
+/**
+ * FrameSizeController class used by VelodyneLidarManager to pick how many azimuths go into each frame when the client
+ * asks for an adaptive frame (request of 0). Bigger frames see more of the terrain but take longer to assemble and to
+ * analyze; the controller keeps a request's latency (request taken to reply published) under a budget while using as
+ * many azimuths as the budget allows.
+ *
+ * <p>Latency is modeled as a cost per azimuth, smoothed over the latest requests. The next frame size is the budget
+ * (minus HEADROOM for jitter) divided by that cost. Frames shrink right away when a request goes over budget, and only
+ * grow by GROWTH_LIMIT per request, so a single fast request can not push the next one over.
+ * <p>setSpeedHint() caps frames by how far the robot moves while one is assembled, since returns at the start and end of
+ * a frame are taken from different places. The azimuth rate is measured from the frames themselves.
+ * <p>record() and nextFrameSize() functions are called from the manager's thread; setSpeedHint() may be called from any
+ * thread.
+ *
+ * <p>Ex:
+ *  FrameSizeController controller = new FrameSizeController(150000000L);
+ *  lidarManager.setFrameSizeController(controller);
+ *  requests.put(0);                // adaptive frame
+ *  controller.setSpeedHint(1.2);   // whenever the drive train knows
+ */
+public class FrameSizeController {
+
+    public static final int MIN_AZIMUTHS = 350;       /**<Smallest frame VelodyneLidar accepts */
+    public static final int MAX_AZIMUTHS = 36000;     /**<Every azimuth angle of a revolution */
+    public static final double HEADROOM = 0.8;        /**<Fraction of the budget aimed for */
+    public static final double GROWTH_LIMIT = 1.25;   /**<Largest growth of the frame size between requests */
+    public static final double SMOOTHING = 0.3;       /**<Weight of the latest request in the cost per azimuth */
+
+    private final long _budgetNanos;                  /**<Latency a request should stay under */
+    private final int _minAzimuths;
+    private final int _maxAzimuths;
+    private double _costPerAzimuth = Double.NaN;      /**<Smoothed nanoseconds of latency per azimuth, NaN until measured */
+    private double _azimuthsPerNano = Double.NaN;     /**<Smoothed rate at which azimuths arrive, NaN until measured */
+    private int _frameSize;                           /**<Frame size last handed out */
+    private volatile double _speed = 0.0;             /**<Robot's speed in meters per second, 0 if unknown */
+    private volatile double _maxTravel = 0.1;         /**<Farthest the robot may move while a frame is assembled */
+    /**
+     * FrameSizeController constructor. Frames range from MIN_AZIMUTHS to MAX_AZIMUTHS.
+     *
+     * @param budgetNanos Latency, in nanoseconds, a request should stay under
+     */
+    public FrameSizeController(long budgetNanos){
+        this(budgetNanos, MIN_AZIMUTHS, MAX_AZIMUTHS);
+    }
+    /**
+     * FrameSizeController constructor. Starts at the smallest frame and grows from there.
+     *
+     * @param budgetNanos Latency, in nanoseconds, a request should stay under
+     * @param minAzimuths Smallest frame to ask for (raised to MIN_AZIMUTHS)
+     * @param maxAzimuths Largest frame to ask for
+     */
+    public FrameSizeController(long budgetNanos, int minAzimuths, int maxAzimuths){
+        _budgetNanos = budgetNanos;
+        _minAzimuths = java.lang.Math.max(MIN_AZIMUTHS, minAzimuths);
+        _maxAzimuths = java.lang.Math.max(_minAzimuths, maxAzimuths);
+        _frameSize = _minAzimuths;
+    }
+    /**
+     * Get the number of azimuths the next frame should hold.
+     *
+     * @return Frame size, from the controller's minimum to maximum
+     */
+    public int nextFrameSize(){
+        if(Double.isNaN(_costPerAzimuth)){
+            return _frameSize;
+        }
+        double size = _budgetNanos * HEADROOM / _costPerAzimuth;
+        size = java.lang.Math.min(size, _frameSize * GROWTH_LIMIT);
+        //Do not smear a frame over more than the allowed travel
+        double speed = _speed;
+        if(speed > 0.0 && !Double.isNaN(_azimuthsPerNano)){
+            size = java.lang.Math.min(size, _azimuthsPerNano * (_maxTravel / speed) * 1e9);
+        }
+        _frameSize = (int) java.lang.Math.max(_minAzimuths, java.lang.Math.min(_maxAzimuths, size));
+        return _frameSize;
+    }
+    /**
+     * Add the outcome of a request to the model.
+     *
+     * @param azimuths Number of azimuths in the frame analyzed
+     * @param latencyNanos Time from the request being taken to the reply being published
+     * @param dataSpanNanos Time between the first and last packet of the frame, 0 if unknown
+     */
+    public void record(int azimuths, long latencyNanos, long dataSpanNanos){
+        if(azimuths <= 0 || latencyNanos <= 0){
+            return;
+        }
+        double cost = (double) latencyNanos / azimuths;
+        //Over budget: trust the latest request alone, so the next frame shrinks right away
+        if(Double.isNaN(_costPerAzimuth) || latencyNanos > _budgetNanos){
+            _costPerAzimuth = cost;
+        }else{
+            _costPerAzimuth += SMOOTHING * (cost - _costPerAzimuth);
+        }
+        if(dataSpanNanos > 0){
+            double rate = (double) azimuths / dataSpanNanos;
+            _azimuthsPerNano = (Double.isNaN(_azimuthsPerNano))? rate : _azimuthsPerNano + SMOOTHING * (rate - _azimuthsPerNano);
+        }
+    }
+    /**
+     * Tell the controller how fast the robot is moving.
+     *
+     * @param metersPerSecond Robot's speed, 0 if stopped or unknown
+     */
+    public void setSpeedHint(double metersPerSecond){
+        _speed = java.lang.Math.abs(metersPerSecond);
+    }
+    /**
+     * Set how far the robot may move while a frame is assembled (see setSpeedHint()). Defaults to 0.1 meters.
+     *
+     * @param meters Farthest travel per frame
+     */
+    public void setMaxTravelPerFrame(double meters){
+        _maxTravel = meters;
+    }
+
+    public long getBudget(){
+        return _budgetNanos;
+    }
+
+    public int getLastFrameSize(){
+        return _frameSize;
+    }
+    /**
+     * Get the smoothed latency cost of a single azimuth.
+     *
+     * @return Nanoseconds per azimuth, NaN until a request was recorded
+     */
+    public double getCostPerAzimuth(){
+        return _costPerAzimuth;
+    }
+}
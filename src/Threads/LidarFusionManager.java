@@ -0,0 +1,177 @@
+// Author: Ivan Ramos, <ivan-1081@hotmail.es>
+// Open Source Software; you can modify and/or share it
+package Threads;
+
+import Diagnostics.LidarEvents;
+import Diagnostics.PipelineMetrics;
+import Hardware.VelodyneLidarHDL.VelodyneLidar;
+import Hardware.VelodyneLidarHDL.VelodyneLidar.ScanStatus;
+import TerrainAnalysis.FusedTerrainMap;
+import TerrainAnalysis.ObstacleList;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+/**
+ * LidarFusionManager class works like VelodyneLidarManager but for several lidars at once. For every request, each
+ * lidar grabs a frame on its own thread and fuses it into a shared FusedTerrainMap. Once every lidar is done, obstacles
+ * are searched for once over the fused map and placed on the output blocking queue (terminated by null). Every reply is
+ * an ObstacleList whose age is that of the oldest frame fused into it, and whose scan status is the worst among the
+ * lidars. Lidars that could not scan a frame within their scan budget, or whose scan threw (reported as FAILED), are
+ * left out of the map, so a reply is published for every request. stop() interrupts the thread and the lidar workers
+ * and waits for them to end.
+ *
+ * <p>Ex:
+ *  VelodyneLidar front = new VelodyneLidar(2368, "cal_front.txt", new LidarGeometry(9000, 0, 3760, 0, 0.0, 0.5, 0.383), ...);
+ *  VelodyneLidar back = new VelodyneLidar(2369, "cal_back.txt", new LidarGeometry(9000, 0, 3760, 18000, 0.0, -0.5, 0.383), ...);
+ *  front.calibrateLidar();
+ *  back.calibrateLidar();
+ *
+ *  LidarFusionManager fusion = new LidarFusionManager(requests, replies, new VelodyneLidar[] {front, back},
+ *      new FusedTerrainMap(10.0, 10.0, 0.1), 0.07, 0.00, 100);
+ *  fusion.start();
+ *  requests.put(5000);
+ *  ArrayList<Obstacle> obstacles = replies.take();
+ */
+public class LidarFusionManager {
+    private final BlockingQueue<Integer> _in;
+    private final BlockingQueue<? super ObstacleList> _out;
+    private final VelodyneLidar[] _lidars;
+    private final FusedTerrainMap _map;
+    private final double _heightTolarence;
+    private final double _groundRef;
+    private final int _positiveHitsThreshold;
+    private final PipelineMetrics _metrics = new PipelineMetrics(); /**<Publish latency and age of the fused replies */
+    private Thread _thread;                 /**<Thread serving requests, NULL if not started */
+    private volatile boolean _running = false;
+    /**
+     * Class constructor. Lidars must already be calibrated.
+     *
+     * @param requests Will contain the number of azimuths the client wants in each scan
+     * @param replies Will contain an array of all th obstacles found inside of the fused map
+     * @param lidars Lidars to be fused, each with its own LidarGeometry
+     * @param map Map all lidars are fused into
+     * @param heightTolarence Threshold, in meters, to count a cell as a positive hit
+     * @param groundRef Referance point, in meters, to be used as ground
+     * @param positiveHitsThreshold Number of returns needed to declare an Obstacle found
+     */
+    public LidarFusionManager(BlockingQueue<Integer> requests, BlockingQueue<? super ObstacleList> replies,
+        VelodyneLidar[] lidars, FusedTerrainMap map, double heightTolarence, double groundRef, int positiveHitsThreshold){
+        this._in = requests;
+        this._out = replies;
+        this._lidars = lidars;
+        this._map = map;
+        this._heightTolarence = heightTolarence;
+        this._groundRef = groundRef;
+        this._positiveHitsThreshold = positiveHitsThreshold;
+    }
+    /**
+     * Get the metrics of the fused replies (publish latency and data age). Each lidar keeps its own for the other stages.
+     * 
+     * @return PipelineMetrics of this manager
+     */
+    public PipelineMetrics getMetrics(){
+        return _metrics;
+    }
+    /**
+     * Start thread and wait for inputs in the _in stream.
+     */
+    public synchronized void start(){
+        _running = true;
+        _thread = new Thread(new Runnable(){
+            public void run(){
+                ExecutorService workers = Executors.newFixedThreadPool(_lidars.length);
+                while (_running){
+                    try{
+                        //Block until a request arrives
+                        final int num_azimuths_Request = _in.take();
+                        if(num_azimuths_Request < 0){break;} //Request to end thread
+
+                        _map.clear();
+                        List<Future<Void>> pending = new ArrayList<Future<Void>>();
+                        for(final VelodyneLidar lidar : _lidars){
+                            pending.add(workers.submit(new Callable<Void>(){
+                                public Void call(){
+                                    lidar.updateLatestFrame(num_azimuths_Request);
+                                    if(lidar.getLatestFrame() != null){
+                                        _map.fuse(lidar.getLatestFrame());
+                                    }
+                                    return null;
+                                }
+                            }));
+                        }
+                        boolean[] failed = new boolean[_lidars.length];
+                        for(int i = 0; i < _lidars.length; i++){
+                            try{
+                                pending.get(i).get();
+                            }catch(ExecutionException ee){
+                                //Still reply with what the other lidars saw, the client is waiting on it
+                                failed[i] = true;
+                                System.out.println("LidarFusionManager: Error scanning lidar " + i + " - " + ee.getCause() + ".");
+                            }
+                        }
+                        long publishStart = System.nanoTime();
+                        LidarEvents.ResultPublished event = new LidarEvents.ResultPublished();
+                        event.begin();
+                        ObstacleList ret = new ObstacleList(_metrics);
+                        for(int i = 0; i < _lidars.length; i++){
+                            if(failed[i]){
+                                ret.setScanStatus(ScanStatus.FAILED);
+                                continue;
+                            }
+                            ret.includeFrame(_lidars[i].getLatestFrame());
+                            ret.setScanStatus(_lidars[i].getLastScanStatus());
+                        }
+                        ret.addAll(_map.findObstacles(_heightTolarence, _groundRef, _positiveHitsThreshold));
+                        ret.add(null);
+                        ret.publish();
+                        _out.put(ret);
+                        _metrics.record(PipelineMetrics.Stage.PUBLISH, System.nanoTime() - publishStart);
+                        event.end();
+                        if(event.shouldCommit()){
+                            event.port = -1;
+                            event.obstacles = ret.size() - 1;
+                            event.age = ret.getAgeAtPublish();
+                            event.commit();
+                        }
+                    }catch(InterruptedException ie){
+                        break; //Stopped while waiting
+                    }
+                }
+                //Interrupt lidars still scanning
+                workers.shutdownNow();
+                _running = false;
+            }
+        }, "LidarFusionManager");
+        _thread.start();
+    }
+    /**
+     * Stop the thread, interrupting whatever it and the lidar workers are doing, and wait for it to end.
+     * 
+     * @param timeoutMillis Longest to wait for the thread to end, in milliseconds
+     * @return True if the thread ended
+     */
+    public synchronized boolean stop(long timeoutMillis){
+        _running = false;
+        if(_thread == null){
+            return true;
+        }
+        _thread.interrupt();
+        try{
+            _thread.join(timeoutMillis);
+        }catch(InterruptedException ie){
+            Thread.currentThread().interrupt();
+        }
+        return !_thread.isAlive();
+    }
+
+    public boolean isRunning(){
+        return _running;
+    }
+
+}
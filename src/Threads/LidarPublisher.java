@@ -0,0 +1,307 @@
+// Author: Ivan Ramos, <ivan-1081@hotmail.es>
+// Open Source Software; you can modify and/or share it
+package Threads;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+/**
+ * LidarPublisher class hands the items of the lidar pipeline (frames, obstacle lists) to any number of
+ * java.util.concurrent.Flow subscribers. Items are produced once and shared by every subscriber, so a logger, a planner
+ * and a dashboard can all follow the same lidar without decoding or analyzing anything twice. Items must not be
+ * modified by subscribers.
+ *
+ * <p>submit() never blocks the lidar's thread. Every subscriber picks how items that arrive faster than it requests
+ * them are handled (see Backpressure) and the Executor its signals are delivered on, so a slow subscriber never holds
+ * back the others. Signals to a single subscriber are never delivered concurrently.
+ * <p>close() completes every subscriber once it has taken the items still pending for it; closeExceptionally()
+ * signals the error right away.
+ *
+ * <p>Ex:
+ *  LidarPublisher<ObstacleList> obstacles = lidarManager.getObstaclePublisher();
+ *  obstacles.subscribe(planner, LidarPublisher.Backpressure.LATEST_ONLY, 1, plannerExecutor);
+ *  obstacles.subscribe(logger, LidarPublisher.Backpressure.BOUNDED_BUFFER, 64, loggerExecutor);
+ */
+public class LidarPublisher<T> implements Flow.Publisher<T> {
+    /**
+     * What to do with items a subscriber has not requested yet.
+     */
+    public static enum Backpressure{
+        LATEST_ONLY,    /**<Keep only the newest pending item, replacing older ones */
+        BOUNDED_BUFFER, /**<Keep up to the buffer size of pending items, dropping the oldest once full */
+        DROP;           /**<Keep nothing: items submitted while the subscriber has no demand left are dropped */
+    }
+
+    private final CopyOnWriteArrayList<LidarSubscription> _subscriptions = new CopyOnWriteArrayList<LidarSubscription>();
+    private volatile boolean _closed = false; /**<True once close() or closeExceptionally() was called */
+    private Throwable _closedWith;            /**<Error passed to closeExceptionally(), NULL if none */
+    private final LongAdder _submitted = new LongAdder();
+    private final LongAdder _dropped = new LongAdder();
+    /**
+     * Subscribe with the default policy: latest item only, delivered on ForkJoinPool.commonPool().
+     */
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber){
+        subscribe(subscriber, Backpressure.LATEST_ONLY, 1, ForkJoinPool.commonPool());
+    }
+    /**
+     * Subscribe with a backpressure policy and an Executor of its own. Subscribing the same subscriber twice signals
+     * it an IllegalStateException.
+     *
+     * @param subscriber Subscriber to add
+     * @param backpressure What to do with items the subscriber has not requested yet
+     * @param bufferSize Most pending items kept with BOUNDED_BUFFER (ignored otherwise)
+     * @param executor Executor every signal to the subscriber is delivered on
+     */
+    public synchronized void subscribe(Flow.Subscriber<? super T> subscriber, Backpressure backpressure, int bufferSize, Executor executor){
+        if(subscriber == null || backpressure == null || executor == null){
+            throw new NullPointerException();
+        }
+        if(backpressure == Backpressure.BOUNDED_BUFFER && bufferSize < 1){
+            throw new IllegalArgumentException("LidarPublisher: Buffer size must be positive");
+        }
+        LidarSubscription subscription = new LidarSubscription(subscriber, backpressure, bufferSize, executor);
+        for(LidarSubscription s : _subscriptions){
+            if(s._subscriber.equals(subscriber)){
+                subscription._terminate(new IllegalStateException("LidarPublisher: Already subscribed"));
+                return;
+            }
+        }
+        if(_closed){
+            subscription._terminate(_closedWith);
+            return;
+        }
+        _subscriptions.add(subscription);
+        subscription._schedule();
+    }
+    /**
+     * Hand an item to every subscriber. Never blocks; subscribers that are behind keep or drop it according to their
+     * policy. Items submitted after close() are ignored.
+     *
+     * @param item Item to publish
+     */
+    public void submit(T item){
+        if(item == null){
+            throw new NullPointerException();
+        }
+        _submitted.increment();
+        for(LidarSubscription subscription : _subscriptions){
+            subscription._offer(item);
+        }
+    }
+    /**
+     * Complete every subscriber once it has taken its pending items. Later subscribers are completed right away.
+     */
+    public synchronized void close(){
+        _close(null);
+    }
+    /**
+     * Signal an error to every subscriber right away, dropping their pending items.
+     *
+     * @param error Error to signal
+     */
+    public synchronized void closeExceptionally(Throwable error){
+        if(error == null){
+            throw new NullPointerException();
+        }
+        _close(error);
+    }
+
+    public boolean isClosed(){
+        return _closed;
+    }
+
+    public boolean hasSubscribers(){
+        return !_subscriptions.isEmpty();
+    }
+
+    public int getNumberOfSubscribers(){
+        return _subscriptions.size();
+    }
+
+    public long getNumberOfSubmitted(){
+        return _submitted.sum();
+    }
+    /**
+     * Get how many items were dropped or replaced before reaching a subscriber, all subscribers added up.
+     *
+     * @return Number of items dropped
+     */
+    public long getNumberOfDropped(){
+        return _dropped.sum();
+    }
+
+    private void _close(Throwable error){
+        if(_closed){
+            return;
+        }
+        _closed = true;
+        _closedWith = error;
+        for(LidarSubscription subscription : _subscriptions){
+            subscription._terminate(error);
+        }
+    }
+
+    /**
+     * LidarSubscription class linking a subscriber to the publisher. Items are queued by the publisher's thread and
+     * delivered by a drain task on the subscriber's Executor; a work-in-progress counter makes sure only one drain task
+     * runs at a time and that no offer is missed.
+     */
+    private final class LidarSubscription implements Flow.Subscription, Runnable{
+
+        private final Flow.Subscriber<? super T> _subscriber;
+        private final Backpressure _backpressure;
+        private final int _capacity;          /**<Most pending items kept */
+        private final Executor _executor;
+        private final ArrayDeque<T> _pending = new ArrayDeque<T>(); /**<Items waiting for demand, guarded by this */
+        private final AtomicLong _demand = new AtomicLong();        /**<Items requested and not delivered yet */
+        private final AtomicInteger _work = new AtomicInteger();    /**<Drain requests not handled yet */
+        private boolean _subscribed = false;  /**<True once onSubscribe() was signalled (drain task only) */
+        private volatile boolean _cancelled = false;
+        private volatile boolean _completing = false; /**<True once the publisher closed */
+        private volatile Throwable _error;    /**<Error to signal, NULL if none */
+
+        private LidarSubscription(Flow.Subscriber<? super T> subscriber, Backpressure backpressure, int bufferSize, Executor executor){
+            _subscriber = subscriber;
+            _backpressure = backpressure;
+            _capacity = (backpressure == Backpressure.BOUNDED_BUFFER)? bufferSize : 1;
+            _executor = executor;
+        }
+        /**
+         * Add more demand. Non-positive requests cancel the subscription with an IllegalArgumentException (rule 3.9).
+         */
+        @Override
+        public void request(long n){
+            if(n <= 0){
+                _error = new IllegalArgumentException("LidarPublisher: Non-positive request " + n);
+                _completing = true;
+                _schedule();
+                return;
+            }
+            long demand;
+            do{
+                demand = _demand.get();
+            }while(demand != Long.MAX_VALUE && !_demand.compareAndSet(demand, (demand + n < 0)? Long.MAX_VALUE : demand + n));
+            _schedule();
+        }
+
+        @Override
+        public void cancel(){
+            _cancelled = true;
+            synchronized(this){
+                _pending.clear();
+            }
+            _subscriptions.remove(this);
+        }
+        /**
+         * Queue an item according to the backpressure policy.
+         */
+        private void _offer(T item){
+            synchronized(this){
+                if(_cancelled || _completing){
+                    return;
+                }
+                if(_backpressure == Backpressure.DROP && _demand.get() <= _pending.size()){
+                    _dropped.increment();
+                    return;
+                }
+                if(_backpressure != Backpressure.DROP && _pending.size() == _capacity){
+                    _pending.poll();
+                    _dropped.increment();
+                }
+                _pending.add(item);
+            }
+            _schedule();
+        }
+        /**
+         * Complete (error NULL) or fail the subscription.
+         */
+        private void _terminate(Throwable error){
+            _error = error;
+            _completing = true;
+            _schedule();
+        }
+
+        private void _schedule(){
+            if(_work.getAndIncrement() == 0){
+                try{
+                    _executor.execute(this);
+                }catch(RejectedExecutionException e){
+                    //Nowhere left to deliver signals
+                    _work.set(0);
+                    cancel();
+                }
+            }
+        }
+        /**
+         * Drain task: deliver onSubscribe(), then as many pending items as requested, then the terminal signal.
+         */
+        @Override
+        public void run(){
+            int work = 1;
+            do{
+                if(!_subscribed){
+                    _subscribed = true;
+                    try{
+                        _subscriber.onSubscribe(this);
+                    }catch(Throwable t){
+                        _fail(t);
+                    }
+                }
+                while(!_cancelled && _error == null && _demand.get() > 0){
+                    T item;
+                    synchronized(this){
+                        item = _pending.poll();
+                    }
+                    if(item == null){
+                        break;
+                    }
+                    if(_demand.get() != Long.MAX_VALUE){
+                        _demand.decrementAndGet();
+                    }
+                    try{
+                        _subscriber.onNext(item);
+                    }catch(Throwable t){
+                        _fail(t);
+                    }
+                }
+                if(!_cancelled && _completing){
+                    boolean drained;
+                    synchronized(this){
+                        drained = _pending.isEmpty();
+                    }
+                    //Errors are signalled right away, completion only once every pending item was taken
+                    if(_error != null || drained){
+                        cancel();
+                        if(_error != null){
+                            _subscriber.onError(_error);
+                        }else{
+                            _subscriber.onComplete();
+                        }
+                    }
+                }
+                work = _work.addAndGet(-work);
+            }while(work != 0);
+        }
+        /**
+         * Cancel after the subscriber threw, and tell it why.
+         */
+        private void _fail(Throwable t){
+            if(_cancelled){
+                return;
+            }
+            cancel();
+            try{
+                _subscriber.onError(t);
+            }catch(Throwable ignored){
+                //Subscriber is already gone
+            }
+        }
+    }
+}
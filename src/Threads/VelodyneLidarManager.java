@@ -2,15 +2,26 @@
 // Open Source Software; you can modify and/or share it
 package Threads;
 
+import Diagnostics.LidarEvents;
+import Diagnostics.PipelineMetrics;
+import Hardware.VelodyneLidarHDL.PacketDecoder;
 import Hardware.VelodyneLidarHDL.VelodyneLidar;
-import TerrainAnalysis.Obstacle;
+import TerrainAnalysis.ObstacleList;
 
 import java.util.concurrent.BlockingQueue;
-import java.util.ArrayList;
 /**
  * VelodyneLidarManger class to be operated in a multi-thread enviroment. Once the thread is started,
  * it waits for a message in the input blocking queue. This message contains the number of azimuths to be 
- * used in analyzing a frame. Once done, it places an ArrayList message on the output blocking queue.
+ * used in analyzing a frame. Once done, it places an ArrayList message on the output blocking queue. Every reply is an
+ * ObstacleList, which tells how old the data behind the obstacles is (see getMetrics() for aggregated percentiles).
+ * Scans are bounded by the lidar's scan budget, so a reply always comes back in time; check its getScanStatus() to
+ * tell whether it came from a complete frame. stop() interrupts the thread and waits for it to end.
+ * <p>A request of 0 asks for an adaptive frame: with a FrameSizeController set (see setFrameSizeController()), the
+ * number of azimuths is picked to keep each request within a latency budget.
+ * <p>Every frame scanned and every ObstacleList produced is also published through getFramePublisher() and
+ * getObstaclePublisher() (java.util.concurrent.Flow), so any number of subscribers can follow the lidar, each with its
+ * own backpressure policy and Executor. startStreaming() runs the lidar back to back without requests, for clients
+ * that only subscribe.
  * 
  * <p>Intantiate class with a BlockingQueue for request and another for responses.
  * <p>Ex:
@@ -26,6 +37,8 @@ import java.util.ArrayList;
  *      // ... maybe do something concurrently ...
  *      // read the reply
  *       ArrayList<Obstacle> obtacles = replies.take();
+ *      //Stamp the reply as consumed to track sensor-to-consumer age
+ *      long ageNanos = ((ObstacleList) obtacles).consume();
  *      //Do something with all obtacles in the array.
  *  } catch (InterruptedException ie) {
  *      ie.printStackTrace();
@@ -33,8 +46,13 @@ import java.util.ArrayList;
  */
 public class VelodyneLidarManager {
     private final BlockingQueue<Integer> _in;
-    private final BlockingQueue<ArrayList<Obstacle>> _out;
+    private final BlockingQueue<? super ObstacleList> _out;
     private final VelodyneLidar _lidar;
+    private Thread _thread;                 /**<Thread serving requests, NULL if never started */
+    private volatile FrameSizeController _frameSize; /**<Picks the size of adaptive frames, NULL if none */
+    private volatile boolean _running = false;
+    private final LidarPublisher<PacketDecoder.HDLFrame> _frames = new LidarPublisher<PacketDecoder.HDLFrame>(); /**<Every frame scanned */
+    private final LidarPublisher<ObstacleList> _obstacles = new LidarPublisher<ObstacleList>(); /**<Every ObstacleList produced */
     /**
      * Class constructor. Initializes lidar to the parameters that better meet our team
      * needs. Change the paramenetrs in the VelodyneLidar constructor.
@@ -43,38 +61,182 @@ public class VelodyneLidarManager {
      * @param replies Will contain an array of all th obstacles found inside of the frame analyzed.
      */
     public VelodyneLidarManager(BlockingQueue<Integer> requests,
-        BlockingQueue<ArrayList<Obstacle>> replies){
+        BlockingQueue<? super ObstacleList> replies){
+        this(requests, replies, new VelodyneLidar(0.07, 0.00, 100, 5000, false));
+        _lidar.calibrateLidar();
+    }
+    /**
+     * Class constructor for an already configured lidar. Use one manager per lidar on multi-lidar rigs; every
+     * manager runs its own thread so lidars are processed in parallel.
+     * 
+     * @param requests Will contain the number of azimuths the client wants in each scan
+     * @param replies Will contain an array of all th obstacles found inside of the frame analyzed.
+     * @param lidar Lidar to be managed (calibration is left to the caller)
+     */
+    public VelodyneLidarManager(BlockingQueue<Integer> requests,
+        BlockingQueue<? super ObstacleList> replies, VelodyneLidar lidar){
         this._in = requests;
         this._out = replies;
-        this._lidar = new VelodyneLidar(0.07, 0.00, 100, 5000, false);
-        _lidar.calibrateLidar();
+        this._lidar = lidar;
     }
     /**
-     * Start thread and wait for inputs in the _in stream.
+     * Class constructor for a lidar that is only followed through the publishers (see startStreaming()).
+     * 
+     * @param lidar Lidar to be managed (calibration is left to the caller)
      */
-    public void start(){
-        new Thread(new Runnable(){
+    public VelodyneLidarManager(VelodyneLidar lidar){
+        this(null, null, lidar);
+    }
+    /**
+     * Start thread and wait for inputs in the _in stream. A manager only runs once (its publishers are completed when
+     * it stops), so build a new one to start over.
+     * 
+     * @throws IllegalStateException If already started, or started and stopped
+     */
+    public synchronized void start(){
+        if(_in == null){
+            throw new IllegalStateException("VelodyneLidarManager: No request queue, use startStreaming()");
+        }
+        _start(-1);
+    }
+    /**
+     * Start the thread without waiting for requests: frames are scanned, analyzed and published back to back through
+     * getFramePublisher() and getObstaclePublisher(). Nothing is placed on the reply queue.
+     * 
+     * @param numberOfAzimuths Number of azimuths in each frame, 0 for adaptive frames (see setFrameSizeController())
+     * @throws IllegalStateException If already started, or started and stopped
+     */
+    public synchronized void startStreaming(int numberOfAzimuths){
+        _start(java.lang.Math.max(0, numberOfAzimuths));
+    }
+    /**
+     * Start the thread serving requests, or streaming if streamAzimuths is not negative.
+     */
+    private void _start(final int streamAzimuths){
+        //A second thread would race on the lidar, and publishers closed by a previous run would deliver nothing
+        if(_thread != null){
+            throw new IllegalStateException("VelodyneLidarManager: Already started, a manager can only run once");
+        }
+        _running = true;
+        _thread = new Thread(new Runnable(){
             public void run(){
-                while (true){
+                while (_running){
                     try{
                         //Block until a request arrives
-                        int num_azimuths_Request = _in.take();
+                        int num_azimuths_Request = (streamAzimuths < 0)? _in.take() : streamAzimuths;
                         if(num_azimuths_Request < 0){break;} //Request to end thread
+                        long requestStart = System.nanoTime();
+                        FrameSizeController controller = _frameSize;
+                        if(num_azimuths_Request == 0 && controller != null){
+                            num_azimuths_Request = controller.nextFrameSize();
+                        }
                     
-                        _lidar.updateLatestFrame(num_azimuths_Request);
-                        _lidar.analyzeLatestFrame();
-                        ArrayList<Obstacle> ret = new ArrayList<Obstacle>();
+                        //Do not scan a second time if nothing came in within the budget
+                        if(_lidar.updateLatestFrame(num_azimuths_Request) != VelodyneLidar.ScanStatus.TIMEOUT){
+                            _lidar.analyzeLatestFrame();
+                        }
+                        if(Thread.currentThread().isInterrupted()){break;} //Stopped while scanning
+                        PacketDecoder.HDLFrame frame = _lidar.getLatestFrame();
+                        if(frame != null){
+                            _frames.submit(frame);
+                        }
+                        long publishStart = System.nanoTime();
+                        LidarEvents.ResultPublished event = new LidarEvents.ResultPublished();
+                        event.begin();
+                        ObstacleList ret = new ObstacleList(_lidar.getMetrics());
+                        ret.includeFrame(_lidar.getLatestFrame());
+                        ret.setScanStatus(_lidar.getLastScanStatus());
+                        ret.setSearchComplete(_lidar.isLastAnalysisComplete());
+                        ret.setAnalysisAge(_lidar.getLastAnalysisAge());
                         while(_lidar.anyObsticlesInFrame()){
                             ret.add(_lidar.getClosestObstacle());
                         }
-                        ret.add(null);
-                        _out.put(ret);
+                        int obstacles = ret.size();
+                        ret.publish();
+                        if(streamAzimuths >= 0){
+                            _obstacles.submit(ret);
+                        }else{
+                            //Subscribers get a copy of their own, without the reply's null terminator
+                            if(_obstacles.hasSubscribers()){
+                                _obstacles.submit((ObstacleList) ret.clone());
+                            }
+                            ret.add(null);
+                            _out.put(ret);
+                        }
+                        _lidar.getMetrics().record(PipelineMetrics.Stage.PUBLISH, System.nanoTime() - publishStart);
+                        if(controller != null && frame != null){
+                            controller.record(frame.getNumberOfAzimuthsInFrame(), System.nanoTime() - requestStart,
+                                frame.getLastPacketNanos() - frame.getFirstPacketNanos());
+                        }
+                        event.end();
+                        if(event.shouldCommit()){
+                            event.port = _lidar.getPort();
+                            event.obstacles = obstacles;
+                            event.age = ret.getAgeAtPublish();
+                            event.commit();
+                        }
                     }catch(InterruptedException ie){
-                        ie.printStackTrace();
+                        break; //Stopped while waiting
                     }
                 }
+                _running = false;
+                _frames.close();
+                _obstacles.close();
             }
-        }).start();
+        }, "VelodyneLidarManager-" + _lidar.getPort());
+        _thread.start();
+    }
+    /**
+     * Get the publisher of every frame scanned. Frames are shared with every subscriber and must not be modified.
+     * Subscribers are completed once the thread ends.
+     * 
+     * @return LidarPublisher of HDLFrames
+     */
+    public LidarPublisher<PacketDecoder.HDLFrame> getFramePublisher(){
+        return _frames;
+    }
+    /**
+     * Get the publisher of every ObstacleList produced (without the null terminator of the replies). Lists are shared
+     * with every subscriber and must not be modified; consume() is only recorded for the first subscriber calling it.
+     * Subscribers are completed once the thread ends.
+     * 
+     * @return LidarPublisher of ObstacleLists
+     */
+    public LidarPublisher<ObstacleList> getObstaclePublisher(){
+        return _obstacles;
+    }
+    /**
+     * Set the controller used to size adaptive frames (requests of 0). Without one, adaptive requests get the smallest
+     * frame.
+     * 
+     * @param controller FrameSizeController to use, NULL for none
+     */
+    public void setFrameSizeController(FrameSizeController controller){
+        _frameSize = controller;
+    }
+    /**
+     * Stop the thread, interrupting whatever it is doing, and wait for it to end. Scans notice the interrupt within a
+     * receive timeout, so this returns quickly even if the lidar stopped sending.
+     * 
+     * @param timeoutMillis Longest to wait for the thread to end, in milliseconds
+     * @return True if the thread ended
+     */
+    public synchronized boolean stop(long timeoutMillis){
+        _running = false;
+        if(_thread == null){
+            return true;
+        }
+        _thread.interrupt();
+        try{
+            _thread.join(timeoutMillis);
+        }catch(InterruptedException ie){
+            Thread.currentThread().interrupt();
+        }
+        return !_thread.isAlive();
+    }
+
+    public boolean isRunning(){
+        return _running;
     }
 
 }